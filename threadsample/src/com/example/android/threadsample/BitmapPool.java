@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * This class keeps Bitmaps that nothing shows any more, so that a decode can draw into one of
+ * them through BitmapFactory.Options.inBitmap instead of allocating a new one. While the grid
+ * scrolls, the thumbnails that scroll off free Bitmaps of the same sizes as the ones that
+ * scroll on, so most decodes re-use memory and the garbage collector has little to do.
+ * <p>
+ * The pool only takes Bitmaps that it handed out itself, and only once nothing uses them.
+ * Each Bitmap that a decode produces is registered with {@link #track}, and every holder (the
+ * task that decoded it, the Bitmap cache, and each PhotoView that shows it) calls
+ * {@link #acquire} and {@link #release}. When the last holder releases it, the Bitmap goes into
+ * the pool. A Bitmap that's still on screen is never drawn over.
+ * <p>
+ * Before API level 19, inBitmap only accepts a Bitmap of exactly the size being decoded, so the
+ * pooled Bitmaps are grouped in buckets by width and height. From API level 19 on, a decode can
+ * draw into any Bitmap whose memory is large enough, so the buckets are by the size of that
+ * memory instead, and a decode gets the smallest pooled Bitmap that fits. Thumbnails whose
+ * aspect ratios differ a little then share memory as well. A Bitmap keeps the memory it was
+ * created with when a decode re-uses it for a smaller image, so the pool remembers each
+ * Bitmap's original size; Bitmap.getAllocationByteCount() isn't in the SDK the app builds
+ * against. The pool is limited by the total size of its Bitmaps, and drops the Bitmaps that
+ * were pooled first.
+ * <p>
+ * The methods can be called on any thread.
+ */
+class BitmapPool {
+
+    // Build.VERSION_CODES.KITKAT, which the SDK the app builds against doesn't define
+    private static final int VERSION_KITKAT = 19;
+
+    // The number of bytes in an ARGB_8888 pixel
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /*
+     * The Bitmaps in the pool, grouped by width and height before API level 19, and by the
+     * size of their memory from then on
+     */
+    private final TreeMap<Long, ArrayDeque<Bitmap>> mBuckets =
+            new TreeMap<Long, ArrayDeque<Bitmap>>();
+
+    // All the pooled Bitmaps, in the order in which they were pooled, so the oldest go first
+    private final ArrayDeque<Bitmap> mPoolOrder = new ArrayDeque<Bitmap>();
+
+    // true if a decode can draw into any Bitmap that's large enough
+    private final boolean mReuseLargerBitmaps = Build.VERSION.SDK_INT >= VERSION_KITKAT;
+
+    // The number of holders of each Bitmap that the pool handed out
+    private final IdentityHashMap<Bitmap, Integer> mHolderCounts =
+            new IdentityHashMap<Bitmap, Integer>();
+
+    /*
+     * The size of the memory that each tracked Bitmap was created with. Bitmap doesn't override
+     * equals(), so the map is by identity, and a Bitmap's entry goes once it's collected.
+     */
+    private final WeakHashMap<Bitmap, Integer> mAllocationSizes =
+            new WeakHashMap<Bitmap, Integer>();
+
+    // The largest total size of the pooled Bitmaps, in bytes
+    private int mMaxSize;
+
+    // The total size of the pooled Bitmaps, in bytes
+    private int mSize;
+
+    // The number of requests that the pool could and couldn't satisfy
+    private long mHitCount;
+    private long mMissCount;
+
+    /**
+     * Creates an empty pool
+     *
+     * @param maxSize The largest total size of the pooled Bitmaps, in bytes
+     */
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Takes a Bitmap out of the pool for a decode to draw into through inBitmap. From API level
+     * 19 on, this is the smallest pooled Bitmap that's large enough; before, it has to be of
+     * exactly the size of the image.
+     *
+     * @param width The width of the decoded image
+     * @param height The height of the decoded image
+     * @return A mutable ARGB_8888 Bitmap, or null if the pool has none that fits
+     */
+    synchronized Bitmap get(int width, int height) {
+        if (!mReuseLargerBitmaps) {
+            return take(mBuckets.get(bucketKey(width, height)), width, height, false);
+        }
+        Map.Entry<Long, ArrayDeque<Bitmap>> entry =
+                mBuckets.ceilingEntry((long) width * height * BYTES_PER_PIXEL);
+        return take((null == entry) ? null : entry.getValue(), width, height, false);
+    }
+
+    /**
+     * Takes a Bitmap of exactly the given size out of the pool, for drawing into with a Canvas
+     *
+     * @param width The width of the Bitmap
+     * @param height The height of the Bitmap
+     * @return A mutable ARGB_8888 Bitmap of that size, or null if the pool has none
+     */
+    synchronized Bitmap getExact(int width, int height) {
+        long key = mReuseLargerBitmaps
+                ? (long) width * height * BYTES_PER_PIXEL : bucketKey(width, height);
+        return take(mBuckets.get(key), width, height, true);
+    }
+
+    /**
+     * Starts tracking a Bitmap that a decode has just produced. The decode is its first
+     * holder, and releases it like any other.
+     *
+     * @param bitmap A Bitmap that nothing else refers to yet
+     */
+    synchronized void track(Bitmap bitmap) {
+        if (bitmap.isMutable() && (Bitmap.Config.ARGB_8888 == bitmap.getConfig())) {
+            mHolderCounts.put(bitmap, 1);
+
+            // A Bitmap that came from the pool keeps the size it was first tracked with
+            if (!mAllocationSizes.containsKey(bitmap)) {
+                mAllocationSizes.put(bitmap, bitmap.getRowBytes() * bitmap.getHeight());
+            }
+        }
+    }
+
+    /**
+     * Records another holder of a Bitmap. Does nothing for a Bitmap the pool doesn't track,
+     * such as a preview.
+     *
+     * @param bitmap The Bitmap, or null
+     */
+    synchronized void acquire(Bitmap bitmap) {
+        Integer count = mHolderCounts.get(bitmap);
+        if (null != count) {
+            mHolderCounts.put(bitmap, count + 1);
+        }
+    }
+
+    /**
+     * Records that a holder is done with a Bitmap. When the last holder is done, the Bitmap
+     * goes into the pool.
+     *
+     * @param bitmap The Bitmap, or null
+     */
+    synchronized void release(Bitmap bitmap) {
+        Integer count = mHolderCounts.get(bitmap);
+        if (null == count) {
+            return;
+        }
+        if (count > 1) {
+            mHolderCounts.put(bitmap, count - 1);
+            return;
+        }
+        mHolderCounts.remove(bitmap);
+        if (bitmap.isRecycled() || (sizeOf(bitmap) > mMaxSize)) {
+            return;
+        }
+        Long key = keyOf(bitmap);
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        if (null == bucket) {
+            bucket = new ArrayDeque<Bitmap>();
+            mBuckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        mPoolOrder.addLast(bitmap);
+        mSize += sizeOf(bitmap);
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Changes the largest total size of the pool, dropping Bitmaps if it shrinks
+     *
+     * @param maxSize The new size, in bytes; 0 empties the pool
+     */
+    synchronized void setMaxSize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the share of requests that the pool satisfied
+     * @return A number between 0 and 1, or 0 if there haven't been any requests
+     */
+    synchronized float getHitRate() {
+        long requests = mHitCount + mMissCount;
+        return (0 == requests) ? 0.0f : (float) mHitCount / requests;
+    }
+
+    /*
+     * Takes the most recently pooled Bitmap out of a bucket, or returns null if the bucket is
+     * missing or empty. If exact is true, only a Bitmap of the given width and height is taken.
+     */
+    private Bitmap take(ArrayDeque<Bitmap> bucket, int width, int height, boolean exact) {
+        Bitmap bitmap = null;
+        if (null != bucket) {
+            Iterator<Bitmap> candidates = bucket.descendingIterator();
+            while ((null == bitmap) && candidates.hasNext()) {
+                Bitmap candidate = candidates.next();
+                if (!exact || ((candidate.getWidth() == width)
+                        && (candidate.getHeight() == height))) {
+                    bitmap = candidate;
+                }
+            }
+        }
+        if (null == bitmap) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        remove(bitmap);
+        return bitmap;
+    }
+
+    /*
+     * Drops the Bitmaps that were pooled first, until the pool fits. The dropped Bitmaps are
+     * left to the garbage collector, which is where they'd have gone without the pool.
+     */
+    private void trimToSize(int maxSize) {
+        while ((mSize > maxSize) && !mPoolOrder.isEmpty()) {
+            remove(mPoolOrder.peekFirst());
+        }
+    }
+
+    // Takes a pooled Bitmap out of its bucket and out of the pool order
+    private void remove(Bitmap bitmap) {
+        Long key = keyOf(bitmap);
+        ArrayDeque<Bitmap> bucket = mBuckets.get(key);
+        bucket.removeLastOccurrence(bitmap);
+        if (bucket.isEmpty()) {
+            mBuckets.remove(key);
+        }
+        mPoolOrder.removeLastOccurrence(bitmap);
+        mSize -= sizeOf(bitmap);
+    }
+
+    // Returns the key of the bucket that a Bitmap goes in
+    private Long keyOf(Bitmap bitmap) {
+        return mReuseLargerBitmaps
+                ? Long.valueOf(sizeOf(bitmap)) : bucketKey(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    // Returns the key of the bucket for a size, before API level 19
+    private static Long bucketKey(int width, int height) {
+        return ((long) width << 32) | height;
+    }
+
+    /*
+     * Returns the memory that a Bitmap holds: the size it was created with, if it's tracked, and
+     * otherwise the size of its pixels. Bitmap.getByteCount() needs API level 12.
+     */
+    private int sizeOf(Bitmap bitmap) {
+        Integer allocationSize = mAllocationSizes.get(bitmap);
+        return (null != allocationSize)
+                ? allocationSize : bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
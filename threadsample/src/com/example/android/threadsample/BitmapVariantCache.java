@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+/**
+ * This class caches decoded Bitmaps, keeping several variants of each image for different
+ * View sizes. The same URL shows up as a 1x cell, a 2x cell, and so on, and each decode is
+ * downsampled for the View that asked for it, so each size is a separate Bitmap.
+ * <p>
+ * Variants are keyed by the URL and a size bucket: the larger side of the View, rounded up to
+ * a power of two. Views whose sizes differ by a few pixels share a variant, and the ImageView
+ * scales it the rest of the way when it draws.
+ * <p>
+ * get() only returns a variant of the bucket that's asked for, so it never draws, and can be
+ * called on the UI thread. When that bucket is empty but a larger variant of the image is
+ * cached, getLargerVariant() hands it out, and the decode stage draws it into a Bitmap of the
+ * right size with downscale(), instead of decoding the image again. The result comes back
+ * through the task like a decoded image, and is cached as a new variant. A filtered draw only
+ * touches each pixel of the smaller Bitmap a few times and needs no file or JPEG work, so it's
+ * much cheaper than a decode, but it's still too slow for the UI thread. It's only done for
+ * variants up to MAXIMUM_DOWNSCALE_STEPS buckets larger. Beyond that, bilinear filtering skips
+ * source pixels and the result shimmers, while a decode with inSampleSize is both cheap and
+ * sharp, so the image is decoded again.
+ * <p>
+ * The cache is one of the holders of each of its Bitmaps in the BitmapPool. The methods can be
+ * called on any thread.
+ */
+class BitmapVariantCache {
+
+    // The smallest size bucket, in pixels
+    private static final int MINIMUM_BUCKET = 64;
+
+    // The number of buckets that a variant can be larger by and still be downscaled
+    private static final int MAXIMUM_DOWNSCALE_STEPS = 2;
+
+    // The pool that the cached Bitmaps come from and go back to
+    private final BitmapPool mPool;
+
+    // The cache itself
+    private final MemoryCache<VariantKey, Bitmap> mCache;
+
+    // The number of larger variants handed out to be downscaled
+    private int mDownscaleCount;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxSize The largest total size of the cached Bitmaps, in bytes
+     * @param policy The policy that chooses which variants to evict
+     * @param pool The pool that tracks the cached Bitmaps
+     */
+    BitmapVariantCache(int maxSize, EvictionPolicy<VariantKey> policy, BitmapPool pool) {
+        mPool = pool;
+        mCache = new MemoryCache<VariantKey, Bitmap>(maxSize, policy) {
+            @Override
+            protected int sizeOf(VariantKey key, Bitmap bitmap) {
+
+                // Bitmap.getByteCount() needs API level 12
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+
+            /*
+             * Lets go of a Bitmap that was evicted, removed, or replaced, so that it goes into
+             * the pool once no View shows it
+             */
+            @Override
+            protected void entryRemoved(boolean evicted, VariantKey key, Bitmap oldValue,
+                    Bitmap newValue) {
+                mPool.release(oldValue);
+            }
+        };
+    }
+
+    /**
+     * Finds the variant of an image for a View's size bucket. Never draws, so it can be called
+     * on the UI thread. The caller becomes a holder of the Bitmap that's returned, and must
+     * release it to the pool once it's shown it.
+     *
+     * @param imageKey The key of the image
+     * @param width The width of the View
+     * @param height The height of the View
+     * @return The Bitmap, or null if no variant of the View's bucket is cached
+     */
+    synchronized Bitmap get(ImageKey imageKey, int width, int height) {
+        Bitmap bitmap = mCache.get(new VariantKey(imageKey, bucketFor(width, height)));
+        if (null != bitmap) {
+            mPool.acquire(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Finds the nearest larger variant of an image that's close enough in size to be drawn
+     * smaller for a View, with downscale(). The caller becomes a holder of the Bitmap, so that
+     * it can't go into the pool while it's being drawn, and must release it afterwards.
+     *
+     * @param imageKey The key of the image
+     * @param width The width of the View
+     * @param height The height of the View
+     * @return The larger variant, or null if the image has to be decoded
+     */
+    synchronized Bitmap getLargerVariant(ImageKey imageKey, int width, int height) {
+        int bucket = bucketFor(width, height);
+        for (int step = 1; step <= MAXIMUM_DOWNSCALE_STEPS; step++) {
+            Bitmap source = mCache.get(new VariantKey(imageKey, bucket << step));
+            if (null != source) {
+                mPool.acquire(source);
+                mDownscaleCount++;
+                return source;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a variant of an image
+     *
+     * @param imageKey The key of the image
+     * @param width The width of the View that the Bitmap was decoded for
+     * @param height The height of the View that the Bitmap was decoded for
+     * @param bitmap The decoded Bitmap
+     */
+    synchronized void put(ImageKey imageKey, int width, int height, Bitmap bitmap) {
+        mPool.acquire(bitmap);
+        mCache.put(new VariantKey(imageKey, bucketFor(width, height)), bitmap);
+    }
+
+    /**
+     * Changes the largest total size of the cache, evicting variants if it shrinks
+     *
+     * @param maxSize The new size, in bytes
+     */
+    void setMaxSize(int maxSize) {
+        mCache.setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the largest total size of the cache
+     * @return The size, in bytes
+     */
+    int maxSize() {
+        return mCache.maxSize();
+    }
+
+    /**
+     * Returns the number of lookups that found a variant, including larger variants that were
+     * handed out to be downscaled
+     * @return The hit count
+     */
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    /**
+     * Returns the number of larger variants that were handed out to be downscaled, instead of
+     * decoding the image again
+     * @return The downscale count
+     */
+    synchronized int downscaleCount() {
+        return mDownscaleCount;
+    }
+
+    /**
+     * Draws a Bitmap into a smaller one that still covers a View of the given size, the way a
+     * decode would have sized it. Re-uses a pooled Bitmap if there's one of that size. Called
+     * on a decode thread; the caller tracks the new Bitmap in the pool.
+     *
+     * @param source A larger variant, from getLargerVariant()
+     * @param width The width of the View
+     * @param height The height of the View
+     * @param pool The pool to take a Bitmap from
+     * @return The smaller Bitmap
+     */
+    static Bitmap downscale(Bitmap source, int width, int height, BitmapPool pool) {
+        float scale = Math.max((float) width / source.getWidth(),
+                (float) height / source.getHeight());
+        int scaledWidth = Math.max(1, (int) Math.ceil(source.getWidth() * scale));
+        int scaledHeight = Math.max(1, (int) Math.ceil(source.getHeight() * scale));
+
+        // A Canvas draws into the whole Bitmap, so only a pooled Bitmap of this size will do
+        Bitmap scaled = pool.getExact(scaledWidth, scaledHeight);
+        if (null == scaled) {
+            scaled = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+        } else {
+
+            // A pooled Bitmap still has an old image in it
+            scaled.eraseColor(0);
+        }
+
+        // Filters the pixels, instead of picking the nearest source pixel
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+        new Canvas(scaled).drawBitmap(source, null,
+                new Rect(0, 0, scaledWidth, scaledHeight), paint);
+        return scaled;
+    }
+
+    /*
+     * Returns the size bucket for a View: its larger side, rounded up to a power of two. A View
+     * that hasn't been laid out yet gets the smallest bucket.
+     */
+    static int bucketFor(int width, int height) {
+        int bucket = MINIMUM_BUCKET;
+        int side = Math.max(width, height);
+        while ((bucket < side) && (bucket < (1 << 30))) {
+            bucket <<= 1;
+        }
+        return bucket;
+    }
+
+    /**
+     * The key of a variant in the cache: the image and the size bucket. It hashes from the
+     * image key's precomputed hash, so a lookup doesn't build a String.
+     */
+    static final class VariantKey {
+        private final ImageKey mImageKey;
+        private final int mBucket;
+
+        VariantKey(ImageKey imageKey, int bucket) {
+            mImageKey = imageKey;
+            mBucket = bucket;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VariantKey)) {
+                return false;
+            }
+            VariantKey other = (VariantKey) o;
+            return (mBucket == other.mBucket) && mImageKey.equals(other.mImageKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * mImageKey.hashCode()) + mBucket;
+        }
+    }
+}
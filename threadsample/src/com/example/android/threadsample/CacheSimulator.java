@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * This class compares eviction policies by replaying a trace of real cache lookups through a
+ * simulated cache for each one. A trace is recorded from a live cache (see
+ * PhotoManager.startCacheTrace()), so the comparison reflects how people actually scroll,
+ * fling, and come back, rather than a synthetic access pattern.
+ * <p>
+ * The simulation stores only keys and sizes, so it can replay a trace at any cache size
+ * without holding any images.
+ */
+class CacheSimulator {
+
+    // The most lookups that a trace records, to bound its memory
+    private static final int MAXIMUM_TRACE_LENGTH = 100000;
+
+    /**
+     * A recording of the lookups in a cache, and of the sizes of the entries that were looked
+     * up. Lookups of a key before its size is known are kept; the simulation uses the size
+     * that was recorded later. The methods can be called on any thread.
+     */
+    static final class Trace {
+
+        // The hash of each key that was looked up, in order
+        private long[] mKeys = new long[1024];
+        private int mLength;
+
+        // The size of each key's value, once it's known
+        private final HashMap<Long, Integer> mSizes = new HashMap<Long, Integer>();
+
+        /**
+         * Records a lookup
+         *
+         * @param key The key that was looked up
+         * @param size The size of its value, or -1 if it wasn't cached
+         */
+        synchronized void recordAccess(Object key, int size) {
+            if (mLength == MAXIMUM_TRACE_LENGTH) {
+                return;
+            }
+            if (mLength == mKeys.length) {
+                long[] keys = new long[Math.min(mKeys.length * 2, MAXIMUM_TRACE_LENGTH)];
+                System.arraycopy(mKeys, 0, keys, 0, mLength);
+                mKeys = keys;
+            }
+            mKeys[mLength++] = keyOf(key);
+            if (size >= 0) {
+                recordSize(key, size);
+            }
+        }
+
+        /**
+         * Records the size of a key's value
+         *
+         * @param key The key
+         * @param size The size of the value
+         */
+        synchronized void recordSize(Object key, int size) {
+            mSizes.put(keyOf(key), size);
+        }
+
+        /**
+         * Returns the number of lookups recorded
+         * @return The length of the trace
+         */
+        synchronized int length() {
+            return mLength;
+        }
+
+        // Returns the key that the trace uses for a cache key
+        private static long keyOf(Object key) {
+            return (key instanceof ImageKey) ? ((ImageKey) key).hash64() : key.hashCode();
+        }
+    }
+
+    /**
+     * Replays a trace through a simulated cache
+     *
+     * @param trace The trace
+     * @param maxSize The size of the simulated cache
+     * @param policy The policy to simulate. It mustn't be used for anything else.
+     * @return The share of the lookups that hit, between 0 and 1
+     */
+    static float hitRate(Trace trace, int maxSize, EvictionPolicy<Long> policy) {
+        MemoryCache<Long, Integer> cache = new MemoryCache<Long, Integer>(maxSize, policy) {
+            @Override
+            protected int sizeOf(Long key, Integer size) {
+                return size;
+            }
+        };
+        long[] keys;
+        int length;
+        HashMap<Long, Integer> sizes;
+        synchronized (trace) {
+            keys = trace.mKeys;
+            length = trace.mLength;
+            sizes = new HashMap<Long, Integer>(trace.mSizes);
+        }
+
+        /*
+         * Each miss is followed by a put, the way PhotoManager caches an image once it's been
+         * downloaded. A key whose size never became known was never cached for real, and is
+         * counted as a miss.
+         */
+        int hits = 0;
+        for (int i = 0; i < length; i++) {
+            Long key = keys[i];
+            if (null != cache.get(key)) {
+                hits++;
+            } else {
+                Integer size = sizes.get(key);
+                if (null != size) {
+                    cache.put(key, size);
+                }
+            }
+        }
+        return (0 == length) ? 0.0f : (float) hits / length;
+    }
+
+    /**
+     * Replays a trace through LRU and W-TinyLFU caches of the same size, and describes the
+     * results
+     *
+     * @param trace The trace
+     * @param maxSize The size of the simulated caches
+     * @return A line with the hit rate of each policy
+     */
+    static String compare(Trace trace, int maxSize) {
+        float lru = hitRate(trace, maxSize, new LruPolicy<Long>());
+        float tinyLfu = hitRate(trace, maxSize, new WTinyLfuPolicy<Long>());
+        return String.format(Locale.US, "%d lookups, %d bytes: LRU %.1f%%, W-TinyLFU %.1f%%",
+                trace.length(), maxSize, lru * 100, tinyLfu * 100);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+/**
+ * This class tracks the health of one host, and stops requests to it while it's failing.
+ * <p>
+ * The breaker starts closed, and every request goes through. After FAILURE_THRESHOLD failures
+ * in a row, it opens: requests fail at once, without using a thread or a connection, so a host
+ * that's down can't tie up the download pool. Once the open period is over, the breaker lets
+ * a single trial request through. If the trial succeeds, the breaker closes; if it fails, the
+ * breaker opens again for twice as long, up to MAXIMUM_OPEN_MILLIS.
+ * <p>
+ * All times are in SystemClock.uptimeMillis(). The methods can be called on any thread.
+ */
+class CircuitBreaker {
+
+    // The number of failures in a row that opens the breaker
+    private static final int FAILURE_THRESHOLD = 5;
+
+    // How long the breaker stays open the first time, and at most
+    private static final long INITIAL_OPEN_MILLIS = 5 * 1000;
+    private static final long MAXIMUM_OPEN_MILLIS = 60 * 1000;
+
+    /*
+     * How long a trial request can take before another one is allowed. A trial that's
+     * cancelled never reports back, and mustn't keep the host closed off for good.
+     */
+    private static final long TRIAL_TIMEOUT_MILLIS = 30 * 1000;
+
+    // The states of the breaker
+    static final int STATE_CLOSED = 0;
+    static final int STATE_OPEN = 1;
+    static final int STATE_HALF_OPEN = 2;
+
+    private int mState = STATE_CLOSED;
+
+    // The number of failures since the last success
+    private int mFailureCount;
+
+    // How long the breaker stays open the next time it opens
+    private long mOpenMillis = INITIAL_OPEN_MILLIS;
+
+    // When the breaker lets a trial request through
+    private long mRetryAtMillis;
+
+    // When the current trial request started, while the breaker is half-open
+    private long mTrialStartMillis;
+
+    /**
+     * Decides whether a request to the host can go ahead. While the breaker is half-open, only
+     * the first caller gets to make the trial request.
+     *
+     * @param nowMillis The current time
+     * @return true if the request can be made
+     */
+    synchronized boolean allowRequest(long nowMillis) {
+        switch (mState) {
+            case STATE_OPEN:
+                if (nowMillis < mRetryAtMillis) {
+                    return false;
+                }
+                mState = STATE_HALF_OPEN;
+                mTrialStartMillis = nowMillis;
+                return true;
+            case STATE_HALF_OPEN:
+                if (nowMillis - mTrialStartMillis < TRIAL_TIMEOUT_MILLIS) {
+                    return false;
+                }
+                mTrialStartMillis = nowMillis;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Detects whether the host is believed to be healthy, without using up a trial request
+     *
+     * @return true if the breaker is closed
+     */
+    synchronized boolean isClosed() {
+        return STATE_CLOSED == mState;
+    }
+
+    /**
+     * Records a successful request, which closes the breaker
+     */
+    synchronized void onSuccess() {
+        mState = STATE_CLOSED;
+        mFailureCount = 0;
+        mOpenMillis = INITIAL_OPEN_MILLIS;
+    }
+
+    /**
+     * Records a failed request. Opens the breaker after too many failures in a row, or when the
+     * trial request fails.
+     *
+     * @param nowMillis The current time
+     * @return true if this failure opened the breaker
+     */
+    synchronized boolean onFailure(long nowMillis) {
+        mFailureCount++;
+        if (STATE_HALF_OPEN == mState) {
+            mOpenMillis = Math.min(MAXIMUM_OPEN_MILLIS, mOpenMillis * 2);
+        } else if ((STATE_OPEN == mState) || (mFailureCount < FAILURE_THRESHOLD)) {
+            return false;
+        }
+        mState = STATE_OPEN;
+        mRetryAtMillis = nowMillis + mOpenMillis;
+        return true;
+    }
+}
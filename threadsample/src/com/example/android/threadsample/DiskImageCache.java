@@ -0,0 +1,494 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps downloaded images in files under the app's cache directory, so that they
+ * survive the process. It's the second tier behind PhotoManager's memory caches: a cold start
+ * reads the thumbnails from here instead of downloading them again.
+ * <p>
+ * The cache is limited by the total size of its files, and removes the least recently used
+ * images first. Its state is kept in an append-only journal, one line per change:
+ * <pre>
+ * DIRTY key           an image is being written
+ * CLEAN key length    the image has been written
+ * READ key            the image was used
+ * REMOVE key          the image was removed
+ * </pre>
+ * An image is written to a temporary file and then renamed, so a reader never sees half an
+ * image. If the process dies in the middle, the next open() replays the journal, drops the
+ * images whose writes didn't finish or whose files don't match the journal, deletes any file
+ * the journal doesn't know about, and writes a compact journal.
+ * <p>
+ * The cache opens itself on the first call to open() or put(), so the journal is never read on
+ * the UI thread. open() opens the file on the calling thread, which should be a background
+ * thread; put() hands the write to the cache's own thread and returns at once. A write that
+ * fails, or that doesn't fit in the write queue, is skipped: the image is downloaded again the
+ * next time.
+ */
+class DiskImageCache {
+
+    // A tag for log messages
+    private static final String LOG_TAG = "DiskImageCache";
+
+    // The names of the journal, and of the journal while it's being rebuilt
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TEMP = "journal.tmp";
+
+    // The first lines of the journal. A journal with other first lines is discarded.
+    private static final String MAGIC = "com.example.android.threadsample.DiskImageCache";
+    private static final String VERSION = "1";
+
+    // The journal operations
+    private static final String CLEAN = "CLEAN";
+    private static final String DIRTY = "DIRTY";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // The suffix of an image that's being written
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /*
+     * The number of journal lines that don't describe the current contents, at which the
+     * journal is rebuilt. READ lines make up most of them.
+     */
+    private static final int REDUNDANT_OPERATION_THRESHOLD = 2000;
+
+    // The number of writes that can wait for the writer thread
+    private static final int WRITE_QUEUE_CAPACITY = 64;
+
+    // The number of seconds the writer thread waits for another write before it stops
+    private static final int WRITER_KEEP_ALIVE_SECONDS = 5;
+
+    // The directory that holds the journal and the images
+    private final File mDirectory;
+
+    // The largest total size of the images, in bytes
+    private final long mMaxSize;
+
+    /*
+     * The length of each image, indexed by key, in access order: the least recently used image
+     * comes first.
+     */
+    private final LinkedHashMap<String, Long> mEntries =
+            new LinkedHashMap<String, Long>(0, 0.75f, true);
+
+    // The total size of the images, in bytes
+    private long mSize;
+
+    // The journal, open for appending; null until the cache has been opened
+    private Writer mJournalWriter;
+
+    // The number of journal lines that don't describe the current contents
+    private int mRedundantOperationCount;
+
+    // true once open() has run, whether or not it succeeded
+    private boolean mOpened;
+
+    // Runs the writes, one at a time
+    private final ThreadPoolExecutor mWriteExecutor;
+
+    /**
+     * Creates a cache in a directory. Nothing is read or written until the cache is used.
+     *
+     * @param directory The directory for the cache, which the cache owns
+     * @param maxSize The largest total size of the images, in bytes
+     */
+    DiskImageCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mWriteExecutor = new ThreadPoolExecutor(1, 1,
+                WRITER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(WRITE_QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "PhotoDiskCacheWriter");
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.DiscardPolicy());
+
+        // Lets the writer thread stop between bursts of writes
+        mWriteExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the key of an image in the cache. The key is also the image's file name, so it's
+     * a hash of the URL rather than the URL itself.
+     *
+     * @param url The image's URL, as a String
+     * @return The key
+     */
+    static String keyFor(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16));
+                key.append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    /**
+     * Opens an image in the cache without reading it, so that it can be decoded straight from
+     * the file. The caller closes the stream. An image that's evicted or replaced while it's open
+     * stays readable until then, because deleting or renaming a file doesn't affect a descriptor
+     * that's already open. Touches the disk, so it must not be called on the UI thread.
+     *
+     * @param key The image's key, from keyFor()
+     * @return A stream positioned at the start of the image, or null if it isn't in the cache
+     */
+    synchronized FileInputStream open(String key) {
+        if (!ensureOpen() || !mEntries.containsKey(key)) {
+            return null;
+        }
+        FileInputStream stream;
+        try {
+            stream = new FileInputStream(getImageFile(key));
+        } catch (FileNotFoundException e) {
+
+            // The file was deleted behind the cache's back
+            removeEntry(key);
+            return null;
+        }
+
+        // Moves the image to the most recently used end, and records the use for the next run
+        mEntries.get(key);
+        appendJournal(READ + ' ' + key);
+        mRedundantOperationCount++;
+        rebuildJournalIfNeeded();
+        return stream;
+    }
+
+    /**
+     * Adds an image to the cache, or replaces it. The write happens on the cache's own thread;
+     * if too many writes are waiting, this one is skipped.
+     *
+     * @param key The image's key, from keyFor()
+     * @param data The image's bytes, which must not change afterwards
+     */
+    void put(final String key, final byte[] data) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(key, data);
+            }
+        });
+    }
+
+    /*
+     * Writes an image to a temporary file, and then renames it into place. Runs on the writer
+     * thread, which is the only thread that writes images.
+     */
+    private void write(String key, byte[] data) {
+        synchronized (this) {
+            if (!ensureOpen() || (data.length > mMaxSize)) {
+                return;
+            }
+            appendJournal(DIRTY + ' ' + key);
+            mRedundantOperationCount++;
+        }
+        File tempFile = new File(mDirectory, key + TEMP_SUFFIX);
+        boolean written = false;
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(tempFile);
+            stream.write(data);
+            stream.close();
+            stream = null;
+            written = true;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Can't write " + key, e);
+        } finally {
+            closeQuietly(stream);
+        }
+        synchronized (this) {
+            if (written && tempFile.renameTo(getImageFile(key))) {
+                Long previous = mEntries.put(key, (long) data.length);
+                mSize += data.length - ((null == previous) ? 0 : previous);
+                appendJournal(CLEAN + ' ' + key + ' ' + data.length);
+                trimToSize();
+            } else {
+
+                // The old image, if any, may have been replaced, so it's removed as well
+                tempFile.delete();
+                removeEntry(key);
+            }
+            rebuildJournalIfNeeded();
+        }
+    }
+
+    /**
+     * Returns the total size of the images in the cache
+     * @return The size in bytes, or 0 if the cache hasn't been opened
+     */
+    synchronized long size() {
+        return mSize;
+    }
+
+    /*
+     * Opens the cache the first time it's used. Returns false if the cache can't be used.
+     */
+    private boolean ensureOpen() {
+        if (!mOpened) {
+            mOpened = true;
+            try {
+                open();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Can't open the disk cache in " + mDirectory, e);
+                closeQuietly(mJournalWriter);
+                mJournalWriter = null;
+            }
+        }
+        return null != mJournalWriter;
+    }
+
+    /*
+     * Reads the journal, recovers from a crash, and writes a compact journal
+     */
+    private void open() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Can't create " + mDirectory);
+        }
+        File journalFile = new File(mDirectory, JOURNAL_FILE);
+        if (journalFile.exists()) {
+            readJournal(journalFile);
+        }
+
+        /*
+         * Keeps only the images whose files are complete. A write that didn't finish left its
+         * file with a different length, or no file at all.
+         */
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            File imageFile = getImageFile(entry.getKey());
+            if (imageFile.length() == entry.getValue()) {
+                mSize += entry.getValue();
+            } else {
+                imageFile.delete();
+                iterator.remove();
+            }
+        }
+
+        // Deletes the temporary files, and anything else that isn't in the journal
+        File[] files = mDirectory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!JOURNAL_FILE.equals(name) && !mEntries.containsKey(name)) {
+                    file.delete();
+                }
+            }
+        }
+        rebuildJournal();
+        trimToSize();
+    }
+
+    /*
+     * Replays the journal into mEntries. A journal from another version is ignored, which
+     * empties the cache. A line that's cut off, because the process died while writing it, ends
+     * the replay.
+     */
+    private void readJournal(File journalFile) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journalFile), "US-ASCII"));
+        try {
+            if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())
+                    || !"".equals(reader.readLine())) {
+                Log.w(LOG_TAG, "Discarding a journal with an unknown header");
+                return;
+            }
+
+            // The keys that were being written when the journal ended
+            HashSet<String> dirtyKeys = new HashSet<String>();
+            String line;
+            while (null != (line = reader.readLine())) {
+                String[] parts = line.split(" ");
+                if (parts.length < 2) {
+                    break;
+                }
+                String key = parts[1];
+                if (CLEAN.equals(parts[0]) && (3 == parts.length)) {
+                    try {
+                        mEntries.put(key, Long.parseLong(parts[2]));
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                    dirtyKeys.remove(key);
+                } else if (DIRTY.equals(parts[0])) {
+                    dirtyKeys.add(key);
+                } else if (READ.equals(parts[0])) {
+
+                    // Moves the image to the most recently used end
+                    mEntries.get(key);
+                } else if (REMOVE.equals(parts[0])) {
+                    mEntries.remove(key);
+                    dirtyKeys.remove(key);
+                } else {
+                    break;
+                }
+            }
+
+            /*
+             * An image whose write didn't finish may have been replaced by the rename before
+             * the CLEAN line was written, so its file can't be trusted. The length check in
+             * open() catches most of these; dropping them is cheaper than being wrong.
+             */
+            for (String key : dirtyKeys) {
+                mEntries.remove(key);
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /*
+     * Writes a journal that only describes the current contents, in access order, and replaces
+     * the old journal with it
+     */
+    private void rebuildJournal() throws IOException {
+        closeQuietly(mJournalWriter);
+        mJournalWriter = null;
+        File tempFile = new File(mDirectory, JOURNAL_FILE_TEMP);
+        Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tempFile), "US-ASCII"));
+        try {
+            writer.write(MAGIC + '\n' + VERSION + "\n\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+            throw new IOException("Can't replace the journal in " + mDirectory);
+        }
+        mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(mDirectory, JOURNAL_FILE), true), "US-ASCII"));
+        mRedundantOperationCount = 0;
+    }
+
+    // Rebuilds the journal once most of its lines are redundant
+    private void rebuildJournalIfNeeded() {
+        if ((mRedundantOperationCount >= REDUNDANT_OPERATION_THRESHOLD)
+                && (mRedundantOperationCount >= mEntries.size())) {
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Can't rebuild the journal; turning the disk cache off", e);
+                closeQuietly(mJournalWriter);
+                mJournalWriter = null;
+            }
+        }
+    }
+
+    /*
+     * Appends a line to the journal, and flushes it, so that the line survives the process. An
+     * error turns the cache off, because the journal no longer matches the files.
+     */
+    private void appendJournal(String line) {
+        if (null == mJournalWriter) {
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Can't write the journal; turning the disk cache off", e);
+            closeQuietly(mJournalWriter);
+            mJournalWriter = null;
+        }
+    }
+
+    // Removes the least recently used images until the cache fits in mMaxSize
+    private void trimToSize() {
+        if (mSize <= mMaxSize) {
+            return;
+        }
+
+        // Copies the keys, because removing an entry changes the map
+        ArrayList<String> keys = new ArrayList<String>(mEntries.keySet());
+        for (String key : keys) {
+            if (mSize <= mMaxSize) {
+                break;
+            }
+            removeEntry(key);
+        }
+    }
+
+    // Deletes an image's file and entry, and records the removal
+    private void removeEntry(String key) {
+        getImageFile(key).delete();
+        Long length = mEntries.remove(key);
+        if (null != length) {
+            mSize -= length;
+        }
+        appendJournal(REMOVE + ' ' + key);
+        mRedundantOperationCount += 2;
+    }
+
+    // Returns the file that holds an image
+    private File getImageFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+    // Closes a stream, ignoring errors, because there's nothing left to do with it
+    private static void closeQuietly(Closeable closeable) {
+        if (null != closeable) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+
+            }
+        }
+    }
+}
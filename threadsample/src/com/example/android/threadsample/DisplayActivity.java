@@ -164,6 +164,9 @@ public class DisplayActivity extends FragmentActivity implements OnBackStackChan
         
         // Calls the super method (required)
         super.onCreate(stateBundle);
+
+        // Lets PhotoManager keep downloaded images on disk between runs of the app
+        PhotoManager.initialize(this);
         
         // Inflates the main View, which will be the host View for the fragments
         mMainView = getLayoutInflater().inflate(R.layout.fragmenthost, null);
@@ -286,6 +289,37 @@ public class DisplayActivity extends FragmentActivity implements OnBackStackChan
         super.onDestroy();
     }
 
+    /*
+     * This callback is invoked when the Activity becomes visible again. The system doesn't
+     * trim the memory of a foreground app except when it's running low, so the image caches
+     * can grow back.
+     */
+    @Override
+    protected void onStart() {
+        super.onStart();
+        PhotoManager.onMemoryAvailable();
+    }
+
+    /*
+     * This callback is invoked when the system wants the app to release memory. The image
+     * caches shrink in proportion to the level. Only called on API level 14 and later.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        PhotoManager.onTrimMemory(level);
+    }
+
+    /*
+     * This callback is invoked when the whole system is short of memory. Before API level 14,
+     * it's the only warning the app gets, so the image caches are emptied.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        PhotoManager.onLowMemory();
+    }
+
     /*
      * This callback is invoked when the system is stopping the Activity. It stops
      * background threads.
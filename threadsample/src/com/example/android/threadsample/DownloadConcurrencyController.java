@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+/**
+ * This class chooses how many images to download at the same time, based on the throughput and
+ * latency of recent downloads.
+ * <p>
+ * Completed downloads are collected into measurement windows. At the end of each window, the
+ * controller compares the window's throughput (bytes per second across all downloads) and
+ * average latency with the previous windows, and moves the concurrency level:
+ * <ul>
+ *     <li>
+ *         If latency has grown well beyond the best latency seen, without a matching gain in
+ *         throughput, the network is congested and extra downloads are only adding to the wait.
+ *         The level is cut multiplicatively.
+ *     </li>
+ *     <li>
+ *         Otherwise the controller hill-climbs: it keeps stepping by one in the same direction
+ *         while throughput improves, steps back when throughput drops, and probes upwards now
+ *         and then when throughput is flat.
+ *     </li>
+ * </ul>
+ * The class doesn't depend on Android, and takes the time as an argument, so it can be driven by
+ * a test against a throttled local HTTP server. Its methods are synchronized, because downloads
+ * finish on many threads.
+ */
+class DownloadConcurrencyController {
+
+    // The number of completed downloads that make up a window, per download in flight
+    private static final int SAMPLES_PER_SLOT = 2;
+
+    // The smallest number of downloads in a window
+    private static final int MINIMUM_WINDOW_SAMPLES = 8;
+
+    // The shortest window, so that a burst of fast downloads doesn't count as a measurement
+    private static final long MINIMUM_WINDOW_MILLIS = 500;
+
+    // A change in throughput smaller than this fraction is treated as no change
+    private static final double THROUGHPUT_TOLERANCE = 0.05;
+
+    // Latency this many times the best latency seen means the network is congested
+    private static final double CONGESTION_LATENCY_FACTOR = 2.0;
+
+    // The factor that the level is multiplied by when the network is congested
+    private static final double DECREASE_FACTOR = 0.75;
+
+    // The number of flat windows after which the controller tries one more download
+    private static final int FLAT_WINDOWS_BEFORE_PROBE = 4;
+
+    /*
+     * The best latency seen is allowed to drift upwards by this factor every window, so that a
+     * single fast window long ago doesn't make every later window look congested.
+     */
+    private static final double BASELINE_DECAY = 1.05;
+
+    // The bounds for the concurrency level
+    private final int mMinimumConcurrency;
+    private final int mMaximumConcurrency;
+
+    // The current concurrency level
+    private int mConcurrency;
+
+    // The direction of the last step: 1 for up, -1 for down, 0 if the level didn't change
+    private int mLastStep;
+
+    // The number of windows in a row in which throughput didn't change
+    private int mFlatWindows;
+
+    // Measurements for the window in progress
+    private long mWindowStartMillis = -1;
+    private long mWindowBytes;
+    private long mWindowLatencyMillis;
+    private int mWindowSamples;
+
+    // Results of the previous windows
+    private double mLastThroughput;
+    private double mBaselineLatency;
+
+    /**
+     * Creates a controller
+     *
+     * @param initialConcurrency The level to start at
+     * @param minimumConcurrency The lowest level the controller will choose
+     * @param maximumConcurrency The highest level the controller will choose
+     */
+    DownloadConcurrencyController(int initialConcurrency, int minimumConcurrency,
+            int maximumConcurrency) {
+        if ((minimumConcurrency < 1) || (maximumConcurrency < minimumConcurrency)) {
+            throw new IllegalArgumentException("Invalid concurrency bounds");
+        }
+        mMinimumConcurrency = minimumConcurrency;
+        mMaximumConcurrency = maximumConcurrency;
+        mConcurrency = clamp(initialConcurrency);
+    }
+
+    /**
+     * Returns the number of downloads that should run at the same time
+     * @return The current concurrency level
+     */
+    synchronized int getConcurrency() {
+        return mConcurrency;
+    }
+
+    /**
+     * Records a completed download. At the end of a window, this may change the concurrency
+     * level.
+     *
+     * @param byteCount The size of the downloaded image
+     * @param latencyMillis The time from opening the connection to reading the last byte
+     * @param nowMillis The current time, from a monotonic clock
+     * @return true if the concurrency level changed
+     */
+    synchronized boolean onDownloadComplete(long byteCount, long latencyMillis, long nowMillis) {
+
+        // The first window starts when the first download finishes
+        if (mWindowStartMillis < 0) {
+            mWindowStartMillis = nowMillis - latencyMillis;
+        }
+        mWindowBytes += byteCount;
+        mWindowLatencyMillis += latencyMillis;
+        mWindowSamples++;
+
+        // Waits until the window has enough downloads, over enough time, to be a measurement
+        long windowMillis = nowMillis - mWindowStartMillis;
+        if ((mWindowSamples < Math.max(MINIMUM_WINDOW_SAMPLES, mConcurrency * SAMPLES_PER_SLOT))
+                || (windowMillis < MINIMUM_WINDOW_MILLIS)) {
+            return false;
+        }
+
+        double throughput = (mWindowBytes * 1000.0) / windowMillis;
+        double latency = (double) mWindowLatencyMillis / mWindowSamples;
+
+        // Starts the next window
+        mWindowStartMillis = nowMillis;
+        mWindowBytes = 0;
+        mWindowLatencyMillis = 0;
+        mWindowSamples = 0;
+
+        int previousConcurrency = mConcurrency;
+        adjust(throughput, latency);
+        return mConcurrency != previousConcurrency;
+    }
+
+    /*
+     * Chooses the next concurrency level from the results of a window
+     */
+    private void adjust(double throughput, double latency) {
+
+        // The first window sets the reference points, and then probes upwards
+        if (0 == mLastThroughput) {
+            mLastThroughput = throughput;
+            mBaselineLatency = latency;
+            step(1);
+            return;
+        }
+
+        boolean throughputRose = throughput > mLastThroughput * (1 + THROUGHPUT_TOLERANCE);
+        boolean throughputFell = throughput < mLastThroughput * (1 - THROUGHPUT_TOLERANCE);
+
+        if ((latency > mBaselineLatency * CONGESTION_LATENCY_FACTOR) && !throughputRose) {
+
+            // Congested: backs off multiplicatively
+            int decreased = (int) Math.floor(mConcurrency * DECREASE_FACTOR);
+            step(Math.min(decreased, mConcurrency - 1) - mConcurrency);
+
+        } else if (throughputRose) {
+
+            // The last step helped, so takes another one in the same direction
+            step(0 == mLastStep ? 1 : mLastStep);
+
+        } else if (throughputFell) {
+
+            // The last step hurt, so goes back the other way
+            step(0 == mLastStep ? -1 : -mLastStep);
+
+        } else if (++mFlatWindows >= FLAT_WINDOWS_BEFORE_PROBE) {
+
+            // Nothing is changing, so checks whether there's bandwidth to spare
+            step(1);
+
+        } else {
+            mLastStep = 0;
+        }
+
+        mLastThroughput = throughput;
+        mBaselineLatency = Math.min(latency, mBaselineLatency * BASELINE_DECAY);
+    }
+
+    /*
+     * Moves the concurrency level by the given amount, within the bounds
+     */
+    private void step(int delta) {
+        int next = clamp(mConcurrency + delta);
+        mLastStep = Integer.signum(next - mConcurrency);
+        mConcurrency = next;
+        mFlatWindows = 0;
+    }
+
+    private int clamp(int concurrency) {
+        return Math.max(mMinimumConcurrency, Math.min(mMaximumConcurrency, concurrency));
+    }
+}
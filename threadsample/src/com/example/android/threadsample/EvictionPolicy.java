@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+/**
+ * This interface decides which entry a MemoryCache evicts when it's full. The cache tells the
+ * policy about every lookup, insert, and removal, and asks it for a victim whenever the
+ * entries take up more than the cache's maximum size.
+ * <p>
+ * A policy is only called by its cache, while the cache holds its lock, so an implementation
+ * doesn't have to be thread-safe. Each cache needs its own policy object.
+ *
+ * @param <K> The type of the cache's keys
+ */
+interface EvictionPolicy<K> {
+
+    /**
+     * Tells the policy the largest total size of the cache. Called before any other method,
+     * and again if the cache is resized.
+     *
+     * @param maxSize The size, in the units of MemoryCache.sizeOf()
+     */
+    void setMaxSize(int maxSize);
+
+    /**
+     * Records a lookup of a key, whether or not the cache has an entry for it
+     *
+     * @param key The key that was looked up
+     */
+    void recordAccess(K key);
+
+    /**
+     * Records a new entry, or a new value for a key that already has one
+     *
+     * @param key The key of the entry
+     * @param size The size of the entry's value
+     */
+    void recordInsert(K key, int size);
+
+    /**
+     * Records an entry that the cache removed on its own, other than by eviction
+     *
+     * @param key The key of the entry
+     */
+    void recordRemoval(K key);
+
+    /**
+     * Chooses the entry to evict, and forgets it
+     *
+     * @return The key of the entry, or null if the policy has no entries
+     */
+    K selectVictim();
+}
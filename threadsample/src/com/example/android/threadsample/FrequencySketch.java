@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+/**
+ * This class estimates how often each key has been looked up recently, in a fixed amount of
+ * memory. It's a count-min sketch: each key is hashed to four 4-bit counters, and its
+ * frequency is the smallest of them, so collisions can only make a key look more popular,
+ * never less.
+ * <p>
+ * Counters stop at 15. After ten lookups per counter row, every counter is halved, so that
+ * keys that were popular a while ago fade and newly popular keys can overtake them.
+ * <p>
+ * The class isn't thread-safe; its owner locks around it.
+ */
+class FrequencySketch {
+
+    // The seeds of the four hash functions
+    private static final long[] SEEDS = new long[] {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    // Masks of the lowest bit, and of the three lowest bits, of each 4-bit counter
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // The number of lookups between resets, per long in the table
+    private static final int SAMPLE_FACTOR = 10;
+
+    // The counters, 16 to a long
+    private long[] mTable;
+    private int mTableMask;
+
+    // The number of lookups that changed a counter since the last reset, and the limit
+    private int mSize;
+    private int mSampleSize;
+
+    /**
+     * Creates a sketch for about the given number of keys
+     *
+     * @param expectedKeys The number of keys the owner expects to hold
+     */
+    FrequencySketch(int expectedKeys) {
+        ensureCapacity(expectedKeys);
+    }
+
+    /**
+     * Grows the sketch so that it keeps its accuracy for the given number of keys. Growing
+     * starts the counts over.
+     *
+     * @param expectedKeys The number of keys the owner expects to hold
+     */
+    void ensureCapacity(int expectedKeys) {
+        int length = Integer.highestOneBit(Math.max(2, Math.min(expectedKeys, 1 << 24)) - 1) << 1;
+        if ((null != mTable) && (mTable.length >= length)) {
+            return;
+        }
+        mTable = new long[length];
+        mTableMask = length - 1;
+        mSampleSize = SAMPLE_FACTOR * length;
+        mSize = 0;
+    }
+
+    /**
+     * Returns the estimated number of recent lookups of a key
+     *
+     * @param key The key
+     * @return A number from 0 to 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Records a lookup of a key
+     *
+     * @param key The key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && (++mSize >= mSampleSize)) {
+            reset();
+        }
+    }
+
+    // Adds one to a counter, unless it's already at 15
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long mask = 0xfL << offset;
+        if ((mTable[index] & mask) == mask) {
+            return false;
+        }
+        mTable[index] += 1L << offset;
+        return true;
+    }
+
+    /*
+     * Halves every counter. The lookups that are dropped by rounding down are taken off the
+     * size as well.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < mTable.length; i++) {
+            odd += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize = (mSize >>> 1) - (odd >>> 2);
+    }
+
+    // Returns the index in the table of a key's counter for one of the hash functions
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & mTableMask;
+    }
+
+    // Mixes the bits of a hash code, since many hashCode() implementations are weak
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is the work queue for the download thread pool. It keeps a separate queue of
+ * PhotoDownloadRunnable objects for each host, and limits how many downloads from one host can
+ * run at the same time. Without the limit, a single slow host could hold every download thread
+ * and starve images that come from other hosts.
+ * <p>
+ * When a thread asks for work, the queue looks at the first download of every host that's below
+ * its limit. Visible images still come before prefetches, so the queue picks the hosts whose
+ * first download is in the highest priority tier, and then takes turns between those hosts.
+ * Within one host, downloads run in the order set by the comparator.
+ * <p>
+ * A host's running count goes down when {@link #onDownloadFinished} is called, which the thread
+ * pool does from ThreadPoolExecutor.afterExecute().
+ * <p>
+ * The queue holds a limited number of downloads. When it's full, a new download replaces a
+ * download whose Views have all gone away or been bound to other URLs; if there's none, it
+ * replaces the queued download that would run last, as long as the new download would run
+ * before it. The replaced download is passed to the {@link OnDropListener}. If the new download
+ * would run last, offer() returns false and the thread pool rejects it.
+ */
+class HostFairDownloadQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    // The initial capacity of each host's queue; the queues grow as needed
+    private static final int HOST_QUEUE_INITIAL_CAPACITY = 16;
+
+    /**
+     * An interface for objects that are told when the queue drops a waiting download to make
+     * room for a new one.
+     */
+    interface OnDropListener {
+
+        /**
+         * Called after a download has been removed from the queue. Called on the thread that
+         * offered the new download, without any lock held.
+         * @param download The download that was dropped
+         */
+        void onDownloadDropped(Runnable download);
+    }
+
+    /*
+     * The downloads for one host
+     */
+    private static final class HostQueue {
+
+        // The downloads that are waiting, in priority order
+        final PriorityQueue<Runnable> mPending;
+
+        // The number of downloads from this host that are running
+        int mRunning;
+
+        HostQueue(Comparator<Runnable> order) {
+            mPending = new PriorityQueue<Runnable>(HOST_QUEUE_INITIAL_CAPACITY, order);
+        }
+    }
+
+    // The order of downloads within one host
+    private final Comparator<Runnable> mOrder;
+
+    // The number of downloads from one host that are allowed to run at the same time
+    private final int mMaxRunningPerHost;
+
+    // The number of downloads that can wait in the queue
+    private final int mCapacity;
+
+    // Told about downloads that are dropped to make room
+    private final OnDropListener mDropListener;
+
+    // Guards all the fields below
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    // Signaled when a download may have become available to a waiting thread
+    private final Condition mAvailable = mLock.newCondition();
+
+    // The queue for each host, indexed by host name
+    private final HashMap<String, HostQueue> mHostQueues = new HashMap<String, HostQueue>();
+
+    // The hosts in the order they take turns
+    private final ArrayList<String> mHostOrder = new ArrayList<String>();
+
+    // The position in mHostOrder of the host that gets the next turn
+    private int mNextHost;
+
+    // The downloads that this queue handed to a thread and that haven't finished, with their host
+    private final HashMap<Runnable, String> mRunning = new HashMap<Runnable, String>();
+
+    // The total number of waiting downloads
+    private int mCount;
+
+    /**
+     * Creates a queue
+     *
+     * @param order The order of the downloads for a single host
+     * @param maxRunningPerHost The number of downloads from one host that can run at a time
+     * @param capacity The number of downloads that can wait in the queue
+     * @param dropListener Told about downloads that are dropped to make room
+     */
+    HostFairDownloadQueue(Comparator<Runnable> order, int maxRunningPerHost, int capacity,
+            OnDropListener dropListener) {
+        mOrder = order;
+        mMaxRunningPerHost = maxRunningPerHost;
+        mCapacity = capacity;
+        mDropListener = dropListener;
+    }
+
+    /*
+     * Returns the host that a download Runnable fetches from
+     */
+    private static String hostOf(Runnable download) {
+
+        // The key's host is already lower case, so the circuit breakers use the same name
+        return ((PhotoTask) ((PhotoDownloadRunnable) download).mPhotoTask).getImageKey()
+                .getHost();
+    }
+
+    /*
+     * Returns the priority tier of a download. Downloads for visible Views are in a higher tier
+     * than downloads for Views that are off screen or for prefetches.
+     */
+    private static int tierOf(Runnable download) {
+        return (((PhotoDownloadRunnable) download).mPhotoTask.getPriority()
+                >= PhotoManager.PRIORITY_VISIBLE) ? 1 : 0;
+    }
+
+    /**
+     * Tells the queue that a download that it handed out has finished, so that another download
+     * from the same host can start.
+     *
+     * @param download The Runnable that finished
+     */
+    void onDownloadFinished(Runnable download) {
+        mLock.lock();
+        try {
+            String host = mRunning.remove(download);
+            if (null != host) {
+                HostQueue hostQueue = mHostQueues.get(host);
+                hostQueue.mRunning--;
+                removeIfIdle(host, hostQueue);
+                mAvailable.signal();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of downloads waiting for a host
+     *
+     * @param host A host name
+     * @return The number of queued downloads for the host
+     */
+    int getQueueDepth(String host) {
+        mLock.lock();
+        try {
+            HostQueue hostQueue = mHostQueues.get(host.toLowerCase(Locale.US));
+            return (null == hostQueue) ? 0 : hostQueue.mPending.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of downloads waiting for each host that has waiting downloads
+     *
+     * @return A map from host name to queue depth
+     */
+    Map<String, Integer> getQueueDepths() {
+        mLock.lock();
+        try {
+            HashMap<String, Integer> depths = new HashMap<String, Integer>();
+            for (Map.Entry<String, HostQueue> entry : mHostQueues.entrySet()) {
+                if (!entry.getValue().mPending.isEmpty()) {
+                    depths.put(entry.getKey(), entry.getValue().mPending.size());
+                }
+            }
+            return depths;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Finds the host whose download should run next, or returns null if every host with waiting
+     * downloads is at its limit. Must be called with the lock held.
+     */
+    private String nextHost() {
+        int hostCount = mHostOrder.size();
+        String bestHost = null;
+        int bestTier = -1;
+
+        // Takes the first eligible host in turn order, among the hosts in the highest tier
+        for (int i = 0; i < hostCount; i++) {
+            String host = mHostOrder.get((mNextHost + i) % hostCount);
+            HostQueue hostQueue = mHostQueues.get(host);
+            if (hostQueue.mPending.isEmpty() || (hostQueue.mRunning >= mMaxRunningPerHost)) {
+                continue;
+            }
+
+            /*
+             * A runnable that's still running can't be dispatched again: its slot would be
+             * counted twice and only given back once. It waits until the running attempt ends.
+             */
+            if (mRunning.containsKey(hostQueue.mPending.peek())) {
+                continue;
+            }
+            int tier = tierOf(hostQueue.mPending.peek());
+            if (tier > bestTier) {
+                bestTier = tier;
+                bestHost = host;
+            }
+        }
+        return bestHost;
+    }
+
+    /*
+     * Takes the next download and counts it as running, or returns null if no download can run.
+     * Must be called with the lock held.
+     */
+    private Runnable dispatch() {
+        String host = nextHost();
+        if (null == host) {
+            return null;
+        }
+        HostQueue hostQueue = mHostQueues.get(host);
+        Runnable download = hostQueue.mPending.poll();
+        hostQueue.mRunning++;
+        mRunning.put(download, host);
+        mCount--;
+
+        // The next turn goes to the host after this one
+        mNextHost = (mHostOrder.indexOf(host) + 1) % mHostOrder.size();
+        return download;
+    }
+
+    /*
+     * Forgets a host that has nothing waiting and nothing running. Must be called with the lock
+     * held.
+     */
+    private void removeIfIdle(String host, HostQueue hostQueue) {
+        if (hostQueue.mPending.isEmpty() && (0 == hostQueue.mRunning)) {
+            int index = mHostOrder.indexOf(host);
+            mHostOrder.remove(index);
+            mHostQueues.remove(host);
+            if (mNextHost > index) {
+                mNextHost--;
+            }
+            if (mNextHost >= mHostOrder.size()) {
+                mNextHost = 0;
+            }
+        }
+    }
+
+    /*
+     * Chooses the download to drop when the queue is full: a stale or expired download if there
+     * is one, otherwise the download that would run last, if the new download would run before it.
+     * Returns null if the new download should be rejected. Must be called with the lock held.
+     */
+    private Runnable findDropCandidate(Runnable newDownload) {
+        Runnable lastDownload = null;
+        for (HostQueue hostQueue : mHostQueues.values()) {
+            for (Runnable download : hostQueue.mPending) {
+                PhotoDownloadRunnable.TaskRunnableDownloadMethods task =
+                        ((PhotoDownloadRunnable) download).mPhotoTask;
+                if (task.isStale() || task.isExpired()) {
+                    return download;
+                }
+                if ((null == lastDownload) || (mOrder.compare(download, lastDownload) > 0)) {
+                    lastDownload = download;
+                }
+            }
+        }
+        if ((null != lastDownload) && (mOrder.compare(newDownload, lastDownload) < 0)) {
+            return lastDownload;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean offer(Runnable download) {
+        if (null == download) {
+            throw new NullPointerException();
+        }
+        String host = hostOf(download);
+        Runnable droppedDownload = null;
+        mLock.lock();
+        try {
+
+            // If the queue is full, makes room by dropping a download, or rejects this one
+            if (mCount >= mCapacity) {
+                droppedDownload = findDropCandidate(download);
+                if ((null == droppedDownload) || !removeLocked(droppedDownload)) {
+                    return false;
+                }
+            }
+            HostQueue hostQueue = mHostQueues.get(host);
+            if (null == hostQueue) {
+                hostQueue = new HostQueue(mOrder);
+                mHostQueues.put(host, hostQueue);
+                mHostOrder.add(host);
+            }
+            hostQueue.mPending.offer(download);
+            mCount++;
+            mAvailable.signal();
+        } finally {
+            mLock.unlock();
+        }
+
+        // Reports the drop outside the lock, because the listener calls back into the app
+        if (null != droppedDownload) {
+            mDropListener.onDownloadDropped(droppedDownload);
+        }
+        return true;
+    }
+
+    @Override
+    public void put(Runnable download) {
+        offer(download);
+    }
+
+    @Override
+    public boolean offer(Runnable download, long timeout, TimeUnit unit) {
+        return offer(download);
+    }
+
+    @Override
+    public Runnable poll() {
+        mLock.lock();
+        try {
+            return dispatch();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Runnable download;
+            while (null == (download = dispatch())) {
+                mAvailable.await();
+            }
+
+            // Passes the signal on, in case another download can also run
+            mAvailable.signal();
+            return download;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Runnable download;
+            while (null == (download = dispatch())) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mAvailable.awaitNanos(nanos);
+            }
+            mAvailable.signal();
+            return download;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Returns the download that would run next, without taking it
+     */
+    @Override
+    public Runnable peek() {
+        mLock.lock();
+        try {
+            String host = nextHost();
+            return (null == host) ? null : mHostQueues.get(host).mPending.peek();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object download) {
+        mLock.lock();
+        try {
+            return removeLocked(download);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Removes a waiting download. Must be called with the lock held.
+     */
+    private boolean removeLocked(Object download) {
+        for (Map.Entry<String, HostQueue> entry : mHostQueues.entrySet()) {
+            if (entry.getValue().mPending.remove(download)) {
+                mCount--;
+                removeIfIdle(entry.getKey(), entry.getValue());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Returns the number of downloads that can be added without dropping one. When the queue is
+     * full, offer() can still succeed by dropping a download.
+     */
+    @Override
+    public int remainingCapacity() {
+        mLock.lock();
+        try {
+            return Math.max(0, mCapacity - mCount);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Removes every waiting download, regardless of the host limits. Used by the thread pool
+     * when it shuts down, and by PhotoManager to re-rank the queue.
+     */
+    @Override
+    public int drainTo(Collection<? super Runnable> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+        mLock.lock();
+        try {
+            int drained = 0;
+            for (HostQueue hostQueue : mHostQueues.values()) {
+                while ((drained < maxElements) && !hostQueue.mPending.isEmpty()) {
+                    collection.add(hostQueue.mPending.poll());
+                    drained++;
+                }
+            }
+            mCount -= drained;
+            for (String host : new ArrayList<String>(mHostOrder)) {
+                removeIfIdle(host, mHostQueues.get(host));
+            }
+            return drained;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /*
+     * Returns an iterator over a snapshot of the waiting downloads. Removing through the
+     * iterator removes the download from the queue.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final ArrayList<Runnable> snapshot = new ArrayList<Runnable>();
+        mLock.lock();
+        try {
+            for (HostQueue hostQueue : mHostQueues.values()) {
+                snapshot.addAll(hostQueue.mPending);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<Runnable> snapshotIterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            private Runnable mLast;
+
+            @Override
+            public boolean hasNext() {
+                return snapshotIterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                mLast = snapshotIterator.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (null == mLast) {
+                    throw new IllegalStateException();
+                }
+                HostFairDownloadQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * This class holds the keep-alive settings that the app's HTTP connections share, and helpers
+ * that let HttpURLConnection re-use its connections.
+ * <p>
+ * Opening a connection costs a TCP handshake, and for https a TLS handshake as well, which is
+ * a large part of the time it takes to fetch a thumbnail. HttpURLConnection keeps idle
+ * connections in a pool for each host, but it only puts a connection back once its response
+ * has been read to the end and the stream has been closed. A response that's abandoned
+ * half-way, such as an error body that nobody reads, costs a new connection next time.
+ * <p>
+ * The image downloads, the RSS feed download, and {@link NioDownloadEngine} all use the limits
+ * defined here, so the app keeps the same number of idle connections to a host whichever way
+ * it talks to it.
+ */
+final class HttpKeepAlive {
+
+    /**
+     * The number of idle connections kept for each host. This matches the number of downloads
+     * that can run for a host at the same time.
+     */
+    static final int MAXIMUM_IDLE_CONNECTIONS_PER_HOST = 6;
+
+    /**
+     * The number of idle connections kept in all, by each pool
+     */
+    static final int MAXIMUM_IDLE_CONNECTIONS = 16;
+
+    /**
+     * How long an idle connection is kept, in milliseconds. Servers usually close idle
+     * connections after a minute or so; closing them sooner avoids sending a request on a
+     * connection that the server has just closed.
+     */
+    static final long IDLE_TIMEOUT_MILLIS = 30 * 1000;
+
+    // The most bytes that are read from a response that isn't wanted, so that it can be re-used
+    private static final int MAXIMUM_DRAIN_BYTES = 64 * 1024;
+
+    // true once the system properties have been set
+    private static boolean sConfigured;
+
+    private HttpKeepAlive() {
+    }
+
+    /**
+     * Sets the system properties that control HttpURLConnection's connection pool. Must be called
+     * before the first connection is opened; later calls do nothing.
+     */
+    static synchronized void configure() {
+        if (sConfigured) {
+            return;
+        }
+        sConfigured = true;
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections",
+                Integer.toString(MAXIMUM_IDLE_CONNECTIONS_PER_HOST));
+        System.setProperty("http.keepAliveDuration", Long.toString(IDLE_TIMEOUT_MILLIS));
+    }
+
+    /**
+     * Reads the rest of a response and closes it, so that HttpURLConnection can re-use the
+     * connection. A response that's too long to be worth reading is just closed, which closes
+     * the connection as well.
+     *
+     * @param stream The response stream, or null
+     */
+    static void drainAndClose(InputStream stream) {
+        if (null == stream) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[4096];
+            int drained = 0;
+            int readResult;
+            while ((drained < MAXIMUM_DRAIN_BYTES)
+                    && ((readResult = stream.read(buffer)) >= 0)) {
+                drained += readResult;
+            }
+        } catch (IOException e) {
+
+            // The connection can't be re-used, and closing it is all that's left to do
+        } finally {
+            try {
+                stream.close();
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    /**
+     * Reads and closes the body of an error response, which HttpURLConnection keeps apart from
+     * the normal response stream
+     *
+     * @param connection A connection whose response code wasn't a success
+     */
+    static void drainErrorStream(HttpURLConnection connection) {
+        drainAndClose(connection.getErrorStream());
+    }
+
+    /**
+     * Reads and closes whatever response a connection has that hasn't been used, such as the
+     * empty body of a 304 Not Modified response, or the body of an error
+     *
+     * @param connection A connection whose response code has been read
+     */
+    static void release(HttpURLConnection connection) {
+        try {
+            drainAndClose(connection.getInputStream());
+        } catch (IOException e) {
+            drainErrorStream(connection);
+        }
+    }
+}
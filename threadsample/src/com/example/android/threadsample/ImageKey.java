@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class identifies an image. It's the key of the memory and disk caches, of the tasks
+ * in flight, and of the image that a PhotoView shows.
+ * <p>
+ * java.net.URL is a poor key: URL.equals() and URL.hashCode() resolve the host name, which
+ * can block on the network, and parsing a URL for every bind of a grid cell adds up. An
+ * ImageKey is parsed once, when the feed is loaded, and compares by a canonical form of the
+ * URL with a precomputed 64-bit FNV-1a hash, so lookups never touch the network.
+ * <p>
+ * The canonical form treats URLs that name the same image as equal: the scheme (http or
+ * https) and the default port are left out, the host is lower-cased, the fragment is dropped,
+ * and the numbered shards of a CDN (lh3.googleusercontent.com, lh4.googleusercontent.com, and
+ * so on) are folded into one host. The image is still downloaded from the URL it was given.
+ * <p>
+ * ImageKey objects are immutable, and can be shared between threads.
+ */
+public final class ImageKey {
+
+    // The domains of CDNs that serve the same content from numbered or lettered hosts
+    private static final String[] SHARDED_DOMAINS = new String[] {
+            "googleusercontent.com", "ggpht.com", "cdninstagram.com", "instagram.com",
+            "fbcdn.net", "akamaihd.net"};
+
+    // Matches a shard's host label, such as "lh3" or "scontent-b", and captures its name
+    private static final Pattern SHARD_LABEL = Pattern.compile("([a-z]+)(?:\\d+|-[a-z])");
+
+    // The FNV-1a 64-bit offset basis and prime
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // The URL that the image is downloaded from
+    private final URL mURL;
+
+    /*
+     * The host, lower-cased once here, so that the circuit breakers and the download queue
+     * key each host the same way
+     */
+    private final String mHost;
+
+    // The canonical form, which decides equality
+    private final String mCanonicalURL;
+
+    // The FNV-1a hash of the canonical form
+    private final long mHash;
+
+    private ImageKey(URL url) {
+        mURL = url;
+        mHost = url.getHost().toLowerCase(Locale.US);
+        mCanonicalURL = canonicalize(url, mHost);
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < mCanonicalURL.length(); i++) {
+            hash ^= mCanonicalURL.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        mHash = hash;
+    }
+
+    /**
+     * Parses a key from a URL string
+     *
+     * @param urlString The URL of the image
+     * @return The key
+     * @throws MalformedURLException if the string isn't a URL
+     */
+    public static ImageKey parse(String urlString) throws MalformedURLException {
+        return new ImageKey(new URL(urlString));
+    }
+
+    /**
+     * Parses a key from a URL string that may be missing or malformed
+     *
+     * @param urlString The URL of the image, or null
+     * @return The key, or null if there's no string or it isn't a URL
+     */
+    public static ImageKey parseOrNull(String urlString) {
+        if (null == urlString) {
+            return null;
+        }
+        try {
+            return parse(urlString);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the URL to download the image from
+     * @return The URL, as it was given
+     */
+    public URL getURL() {
+        return mURL;
+    }
+
+    /**
+     * Returns the host to download the image from
+     * @return The host name, in lower case
+     */
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Returns the canonical form of the URL, which is the same for every URL of the image
+     * @return The canonical form
+     */
+    public String getCanonicalURL() {
+        return mCanonicalURL;
+    }
+
+    /**
+     * Returns the 64-bit hash of the canonical form
+     * @return The hash
+     */
+    public long hash64() {
+        return mHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ImageKey)) {
+            return false;
+        }
+        ImageKey other = (ImageKey) o;
+        return (mHash == other.mHash) && mCanonicalURL.equals(other.mCanonicalURL);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mHash ^ (mHash >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return mURL.toString();
+    }
+
+    // Builds the canonical form of a URL
+    private static String canonicalize(URL url, String host) {
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        host = foldShard(host);
+
+        StringBuilder canonical = new StringBuilder(host.length() + url.getFile().length() + 8);
+        canonical.append("//").append(host);
+        int port = url.getPort();
+        if ((-1 != port) && (url.getDefaultPort() != port)) {
+            canonical.append(':').append(port);
+        }
+        return canonical.append(url.getFile()).toString();
+    }
+
+    // Replaces a CDN shard's host with a host that stands for all the shards
+    private static String foldShard(String host) {
+        int dot = host.indexOf('.');
+        if (-1 == dot) {
+            return host;
+        }
+        String domain = host.substring(dot + 1);
+        for (String shardedDomain : SHARDED_DOMAINS) {
+            if (domain.equals(shardedDomain)) {
+                Matcher label = SHARD_LABEL.matcher(host.substring(0, dot));
+                return label.matches() ? label.group(1) + "*." + domain : host;
+            }
+        }
+        return host;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * This class evicts the least recently used entry, like support-v4's LruCache. It's the
+ * baseline that other policies are measured against (see CacheSimulator).
+ *
+ * @param <K> The type of the cache's keys
+ */
+class LruPolicy<K> implements EvictionPolicy<K> {
+
+    // The keys, from the least to the most recently used
+    private final LinkedHashMap<K, Boolean> mKeys = new LinkedHashMap<K, Boolean>(16, 0.75f, true);
+
+    @Override
+    public void setMaxSize(int maxSize) {
+        // The order of the keys doesn't depend on the size
+    }
+
+    @Override
+    public void recordAccess(K key) {
+
+        // Moves the key to the most recently used end, if it's in the cache
+        mKeys.get(key);
+    }
+
+    @Override
+    public void recordInsert(K key, int size) {
+        mKeys.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void recordRemoval(K key) {
+        mKeys.remove(key);
+    }
+
+    @Override
+    public K selectVictim() {
+        Iterator<K> keys = mKeys.keySet().iterator();
+        if (!keys.hasNext()) {
+            return null;
+        }
+        K victim = keys.next();
+        keys.remove();
+        return victim;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.HashMap;
+
+/**
+ * This class is a memory cache that holds entries up to a total size, and lets an
+ * EvictionPolicy choose what to evict when it's full. Its methods follow support-v4's
+ * LruCache, with two additions: the policy is pluggable,
+ * and the maximum size can be changed in place.
+ * <p>
+ * Every lookup, hit or miss, is reported to the policy, because a frequency-based policy
+ * needs to know how often a key is asked for even while it isn't cached. Lookups can also be
+ * recorded in a CacheSimulator.Trace, to compare policies on real use.
+ * <p>
+ * The methods can be called on any thread. sizeOf() and entryRemoved() are called while the
+ * cache holds its lock, so they mustn't call back into the cache.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+class MemoryCache<K, V> {
+
+    // The entries. Their order is kept by the policy.
+    private final HashMap<K, V> mEntries = new HashMap<K, V>();
+
+    // Chooses the entries to evict
+    private final EvictionPolicy<K> mPolicy;
+
+    // The total size of the entries, and the largest it can be
+    private int mSize;
+    private int mMaxSize;
+
+    // The number of lookups that found an entry, and that didn't
+    private int mHitCount;
+    private int mMissCount;
+
+    // Records the lookups, or null if they aren't being recorded
+    private CacheSimulator.Trace mTrace;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxSize The largest total size of the entries, in the units of sizeOf()
+     * @param policy The policy that chooses what to evict. It mustn't be shared with another
+     * cache.
+     */
+    MemoryCache(int maxSize, EvictionPolicy<K> policy) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mPolicy = policy;
+        mPolicy.setMaxSize(maxSize);
+    }
+
+    /**
+     * Returns the value for a key
+     *
+     * @param key The key
+     * @return The value, or null if the cache has no entry for the key
+     */
+    final synchronized V get(K key) {
+        mPolicy.recordAccess(key);
+        V value = mEntries.get(key);
+        if (null != value) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        if (null != mTrace) {
+            mTrace.recordAccess(key, (null == value) ? -1 : sizeOf(key, value));
+        }
+        return value;
+    }
+
+    /**
+     * Adds an entry, replacing any entry that the key already has, and evicts entries if the
+     * cache is over its maximum size
+     *
+     * @param key The key
+     * @param value The value
+     * @return The value that was replaced, or null
+     */
+    final synchronized V put(K key, V value) {
+        if ((null == key) || (null == value)) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int size = sizeOf(key, value);
+        V previous = mEntries.put(key, value);
+        mSize += size;
+        if (null != previous) {
+            mSize -= sizeOf(key, previous);
+        }
+        mPolicy.recordInsert(key, size);
+        if (null != mTrace) {
+            mTrace.recordSize(key, size);
+        }
+        if (null != previous) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(mMaxSize);
+        return previous;
+    }
+
+    /**
+     * Removes the entry for a key
+     *
+     * @param key The key
+     * @return The value that was removed, or null if there was no entry
+     */
+    final synchronized V remove(K key) {
+        V previous = mEntries.remove(key);
+        if (null != previous) {
+            mSize -= sizeOf(key, previous);
+            mPolicy.recordRemoval(key);
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /**
+     * Evicts entries, in the order that the policy chooses, until the cache is no larger than
+     * the given size
+     *
+     * @param maxSize The size to trim to, or -1 to evict every entry
+     */
+    final synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize) {
+            K key = mPolicy.selectVictim();
+            if (null == key) {
+                break;
+            }
+            V value = mEntries.remove(key);
+            if (null != value) {
+                mSize -= sizeOf(key, value);
+                entryRemoved(true, key, value, null);
+            }
+        }
+    }
+
+    /**
+     * Evicts every entry
+     */
+    final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * Changes the largest total size of the cache, evicting entries if it shrinks
+     *
+     * @param maxSize The new size
+     */
+    final synchronized void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mPolicy.setMaxSize(maxSize);
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Starts or stops recording lookups
+     *
+     * @param trace The trace to record into, or null to stop
+     */
+    final synchronized void setTrace(CacheSimulator.Trace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Returns the trace that lookups are being recorded into
+     * @return The trace, or null if lookups aren't being recorded
+     */
+    final synchronized CacheSimulator.Trace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Returns the total size of the entries
+     * @return The size, in the units of sizeOf()
+     */
+    final synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the largest total size of the entries
+     * @return The size, in the units of sizeOf()
+     */
+    final synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of lookups that found an entry
+     * @return The hit count
+     */
+    final synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Returns the number of lookups that didn't find an entry
+     * @return The miss count
+     */
+    final synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the size of an entry. The default counts each entry as 1.
+     *
+     * @param key The key
+     * @param value The value
+     * @return The size, which mustn't change while the entry is cached
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called when an entry is evicted, removed, or replaced. Does nothing by default.
+     *
+     * @param evicted true if the policy evicted the entry to make room
+     * @param key The key
+     * @param oldValue The value that left the cache
+     * @param newValue The value that replaced it, or null
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class downloads images over plain HTTP with non-blocking sockets, so that many downloads
+ * can be in flight on a single thread.
+ * <p>
+ * A blocking download holds a thread for the whole transfer, and most of that time the thread
+ * is waiting for the network. Here, a download pool thread only resolves the host name and
+ * hands the download to the engine. One selector thread then runs every connection, with
+ * {@link NioHttpTransfer} writing the request and parsing the response as it arrives, and
+ * reports the result through a {@link TransferListener}.
+ * <p>
+ * When a response allows it, the connection is kept open afterwards, and the next download from
+ * the same host sends its request on it instead of connecting again. Idle connections are kept
+ * within the limits in {@link HttpKeepAlive}, and closed when they've been idle too long or the
+ * server closes them. A request that fails on a re-used connection before any of the response
+ * has arrived is sent again on a new connection, because the server may have closed the idle
+ * connection just as the request went out. Requests aren't pipelined: a connection carries one
+ * request at a time, so that a slow image can't hold up the ones queued behind it.
+ * <p>
+ * The engine only takes http: URLs without a proxy; https: URLs, and hosts that have sent a
+ * response that the engine doesn't handle, such as a redirect, are left to HttpURLConnection.
+ * The number of transfers in flight is limited: when the engine is full, the thread that hands
+ * over a download waits for a transfer to finish.
+ */
+class NioDownloadEngine {
+
+    // Sets the log tag
+    private static final String LOG_TAG = "NioDownloadEngine";
+
+    // How long a connection can take to connect, and how long it can go without any progress
+    private static final long CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final long READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // How often the selector thread looks for cancelled and timed out transfers
+    private static final long SWEEP_INTERVAL_MILLIS = 250;
+
+    /**
+     * Receives the progress and the result of a transfer. All the methods are called on the
+     * engine's selector thread, and must return quickly.
+     */
+    interface TransferListener {
+
+        /**
+         * Detects whether the download has been cancelled, so that its connection can be closed
+         * @return true if the transfer should stop
+         */
+        boolean isCancelled();
+
+        /**
+         * Reports that more of the body has arrived
+         * @param buffer The body so far; it may be replaced as the body grows
+         * @param length The number of bytes received
+         */
+        void onDataReceived(byte[] buffer, int length);
+
+        /**
+         * Reports that the whole body has arrived
+         * @param body The image bytes
+         */
+        void onTransferComplete(byte[] body);
+
+        /**
+         * Reports that the transfer failed, timed out, or was cancelled
+         * @param e The reason
+         */
+        void onTransferFailed(IOException e);
+    }
+
+    // The name of the selector thread
+    private final String mName;
+
+    // Limits the number of transfers in flight
+    private final Semaphore mTransferSlots;
+
+    // The transfers that have been handed over, and haven't been registered with the selector
+    private final ConcurrentLinkedQueue<NioHttpTransfer> mNewTransfers =
+            new ConcurrentLinkedQueue<NioHttpTransfer>();
+
+    // The hosts that have sent a response that the engine doesn't handle, in lower case
+    private final Set<String> mBlockingHosts =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /*
+     * An open connection that's waiting for the next request to its host. While it waits, its
+     * selection key has this as its attachment, and watches for the server closing it.
+     */
+    private static final class IdleConnection {
+        final String mHostKey;
+        final SelectionKey mKey;
+        final long mIdleSinceMillis;
+
+        IdleConnection(String hostKey, SelectionKey key, long idleSinceMillis) {
+            mHostKey = hostKey;
+            mKey = key;
+            mIdleSinceMillis = idleSinceMillis;
+        }
+    }
+
+    /*
+     * The idle connections, oldest first. Only used on the selector thread. The list is short,
+     * so it's searched instead of indexed by host.
+     */
+    private final ArrayList<IdleConnection> mIdleConnections = new ArrayList<IdleConnection>();
+
+    // The number of transfers that opened a new connection, and that re-used one
+    private final AtomicLong mOpenedConnectionCount = new AtomicLong();
+    private final AtomicLong mReusedConnectionCount = new AtomicLong();
+
+    // The selector, and the thread that runs it; both are created by the first download
+    private Selector mSelector;
+    private Thread mSelectorThread;
+
+    /**
+     * Creates an engine. The selector thread isn't started until the first download.
+     *
+     * @param name The name of the selector thread
+     * @param maximumTransfers The number of transfers that can be in flight at the same time
+     */
+    NioDownloadEngine(String name, int maximumTransfers) {
+        mName = name;
+        mTransferSlots = new Semaphore(maximumTransfers);
+    }
+
+    /**
+     * Detects whether the engine can download a URL
+     *
+     * @param url An image URL
+     * @return true for a plain http: URL whose host hasn't been left to HttpURLConnection
+     */
+    boolean canDownload(URL url) {
+        if (!"http".equalsIgnoreCase(url.getProtocol()) || (null != url.getUserInfo())) {
+            return false;
+        }
+
+        // HttpURLConnection goes through the system proxy, if there is one; the engine doesn't
+        String proxyHost = System.getProperty("http.proxyHost");
+        if ((null != proxyHost) && (proxyHost.length() > 0)) {
+            return false;
+        }
+        return !mBlockingHosts.contains(url.getHost().toLowerCase(Locale.US));
+    }
+
+    /**
+     * Starts a download. The host name is resolved on the calling thread, which then waits until
+     * the engine has room for another transfer. The result is reported to the listener, on the
+     * selector thread.
+     *
+     * @param url An http: URL that {@link #canDownload} accepted
+     * @param listener Receives the progress and the result
+     * @throws IOException If the host can't be resolved or the selector can't be opened
+     * @throws InterruptedException If the thread is interrupted while it waits for room
+     */
+    void download(URL url, TransferListener listener) throws IOException, InterruptedException {
+        int port = (-1 == url.getPort()) ? url.getDefaultPort() : url.getPort();
+        InetSocketAddress address = new InetSocketAddress(url.getHost(), port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(url.getHost());
+        }
+        mTransferSlots.acquire();
+        try {
+            Selector selector = startSelector();
+            mNewTransfers.add(new NioHttpTransfer(url, address, listener));
+            selector.wakeup();
+        } catch (IOException e) {
+            mTransferSlots.release();
+            throw e;
+        }
+    }
+
+    /*
+     * Opens the selector and starts its thread, the first time a download is handed over
+     */
+    private synchronized Selector startSelector() throws IOException {
+        if (null == mSelectorThread) {
+            mSelector = Selector.open();
+            mSelectorThread = new Thread(mName) {
+                @Override
+                public void run() {
+                    runSelector();
+                }
+            };
+            mSelectorThread.setDaemon(true);
+            mSelectorThread.start();
+        }
+        return mSelector;
+    }
+
+    /*
+     * The selector thread's loop. It never ends; the engine lives as long as its pipeline.
+     */
+    private void runSelector() {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        long lastSweepMillis = SystemClock.uptimeMillis();
+        while (true) {
+            try {
+                mSelector.select(SWEEP_INTERVAL_MILLIS);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "select() failed", e);
+            }
+            long nowMillis = SystemClock.uptimeMillis();
+
+            // Starts connecting the transfers that have been handed over
+            NioHttpTransfer newTransfer;
+            while (null != (newTransfer = mNewTransfers.poll())) {
+                startTransfer(newTransfer, nowMillis);
+            }
+
+            // Moves the transfers whose connections are ready
+            Iterator<SelectionKey> selectedKeys = mSelector.selectedKeys().iterator();
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+
+                /*
+                 * An idle connection has nothing to read, so the server has closed it, or has
+                 * sent something it shouldn't have. Either way it can't be used again.
+                 */
+                if (key.attachment() instanceof IdleConnection) {
+                    closeIdleConnection((IdleConnection) key.attachment());
+                    continue;
+                }
+                NioHttpTransfer transfer = (NioHttpTransfer) key.attachment();
+                try {
+                    if (key.isValid() && transfer.onReady(key, nowMillis)) {
+                        finish(transfer, null);
+                    }
+                } catch (IOException e) {
+                    finish(transfer, e);
+                }
+            }
+
+            // Closes the transfers that have been cancelled or have stopped making progress
+            if (nowMillis - lastSweepMillis >= SWEEP_INTERVAL_MILLIS) {
+                lastSweepMillis = nowMillis;
+                sweep(nowMillis);
+            }
+        }
+    }
+
+    /*
+     * Sends a transfer's request on an idle connection to its host, if there is one, or opens a
+     * new connection
+     */
+    private void startTransfer(NioHttpTransfer transfer, long nowMillis) {
+        try {
+            IdleConnection idleConnection = takeIdleConnection(transfer.mHostKey);
+            if (null != idleConnection) {
+                transfer.reuse(idleConnection.mKey, nowMillis);
+                mReusedConnectionCount.incrementAndGet();
+            } else {
+                transfer.open(mSelector, nowMillis);
+                mOpenedConnectionCount.incrementAndGet();
+            }
+        } catch (IOException e) {
+            finish(transfer, e);
+        }
+    }
+
+    /*
+     * Takes the most recently used idle connection to a host out of the pool, or returns null
+     * if there isn't one. The newest connection is the least likely to have been closed.
+     */
+    private IdleConnection takeIdleConnection(String hostKey) {
+        for (int i = mIdleConnections.size() - 1; i >= 0; i--) {
+            IdleConnection idleConnection = mIdleConnections.get(i);
+            if (idleConnection.mHostKey.equals(hostKey)) {
+                mIdleConnections.remove(i);
+                if (idleConnection.mKey.isValid()) {
+                    return idleConnection;
+                }
+                closeQuietly(idleConnection.mKey);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Puts the connection of a finished transfer in the pool. If the host, or the pool, already
+     * has as many idle connections as it can keep, the oldest one is closed.
+     */
+    private void keepConnection(NioHttpTransfer transfer, long nowMillis) {
+        SelectionKey key = transfer.getKey();
+        if ((null == key) || !key.isValid()) {
+            transfer.close();
+            return;
+        }
+        key.attach(new IdleConnection(transfer.mHostKey, key, nowMillis));
+        key.interestOps(SelectionKey.OP_READ);
+        mIdleConnections.add((IdleConnection) key.attachment());
+
+        int hostCount = 0;
+        for (int i = mIdleConnections.size() - 1; i >= 0; i--) {
+            IdleConnection idleConnection = mIdleConnections.get(i);
+            if (idleConnection.mHostKey.equals(transfer.mHostKey)
+                    && (++hostCount > HttpKeepAlive.MAXIMUM_IDLE_CONNECTIONS_PER_HOST)) {
+                closeIdleConnection(idleConnection);
+            }
+        }
+        while (mIdleConnections.size() > HttpKeepAlive.MAXIMUM_IDLE_CONNECTIONS) {
+            closeIdleConnection(mIdleConnections.get(0));
+        }
+    }
+
+    /*
+     * Takes an idle connection out of the pool and closes it
+     */
+    private void closeIdleConnection(IdleConnection idleConnection) {
+        mIdleConnections.remove(idleConnection);
+        closeQuietly(idleConnection.mKey);
+    }
+
+    /*
+     * Closes a connection, which also cancels its key
+     */
+    private static void closeQuietly(SelectionKey key) {
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+
+            // The connection is unusable either way
+        }
+    }
+
+    /**
+     * Returns the share of transfers that re-used an open connection instead of connecting
+     * @return A number between 0 and 1, or 0 if there haven't been any transfers
+     */
+    float getConnectionReuseRatio() {
+        long reused = mReusedConnectionCount.get();
+        long total = reused + mOpenedConnectionCount.get();
+        return (0 == total) ? 0.0f : (float) reused / total;
+    }
+
+    /*
+     * Finishes the transfers that have been cancelled or have timed out, and closes the
+     * connections that have been idle too long. Closing a channel only cancels its key, so the
+     * key set can be iterated while this happens.
+     */
+    private void sweep(long nowMillis) {
+        while (!mIdleConnections.isEmpty() && (nowMillis - mIdleConnections.get(0).mIdleSinceMillis
+                > HttpKeepAlive.IDLE_TIMEOUT_MILLIS)) {
+            closeIdleConnection(mIdleConnections.get(0));
+        }
+        for (SelectionKey key : mSelector.keys()) {
+            if (!(key.attachment() instanceof NioHttpTransfer)) {
+                continue;
+            }
+            NioHttpTransfer transfer = (NioHttpTransfer) key.attachment();
+            if (transfer.mFinished) {
+                continue;
+            }
+            long timeoutMillis = (0 != (key.interestOps() & SelectionKey.OP_CONNECT))
+                    ? CONNECT_TIMEOUT_MILLIS : READ_TIMEOUT_MILLIS;
+            if (transfer.mListener.isCancelled()) {
+                finish(transfer, new InterruptedIOException("Download cancelled"));
+            } else if (nowMillis - transfer.mLastActivityMillis > timeoutMillis) {
+                finish(transfer, new SocketTimeoutException("Download timed out: "
+                        + transfer.mURL));
+            }
+        }
+    }
+
+    /*
+     * Ends a transfer, frees its slot, and reports its result. The connection is kept for the
+     * next transfer to the host if the response allows it, and closed otherwise. A transfer is
+     * only finished once.
+     */
+    private void finish(NioHttpTransfer transfer, IOException error) {
+        if (transfer.mFinished) {
+            return;
+        }
+        transfer.mFinished = true;
+        long nowMillis = SystemClock.uptimeMillis();
+
+        /*
+         * A re-used connection that fails before the response starts was most likely closed by
+         * the server while it was idle. Sends the request again on a new connection, keeping
+         * the transfer's slot. Cancellations and timeouts aren't retried.
+         */
+        if ((null != error) && transfer.isReusedConnection() && !transfer.hasResponseStarted()
+                && !(error instanceof InterruptedIOException)) {
+            transfer.close();
+            NioHttpTransfer retry =
+                    new NioHttpTransfer(transfer.mURL, transfer.mAddress, transfer.mListener);
+            try {
+                retry.open(mSelector, nowMillis);
+                mOpenedConnectionCount.incrementAndGet();
+                return;
+            } catch (IOException e) {
+                retry.close();
+                error = e;
+            }
+        }
+
+        if ((null == error) && transfer.isReusable()) {
+            keepConnection(transfer, nowMillis);
+        } else {
+            transfer.close();
+        }
+        mTransferSlots.release();
+
+        // Later downloads from a host that the engine can't handle go to HttpURLConnection
+        if (error instanceof NioHttpTransfer.UnsupportedResponseException) {
+            mBlockingHosts.add(transfer.mURL.getHost().toLowerCase(Locale.US));
+        }
+
+        // A listener that throws mustn't take the selector thread, and every transfer, down
+        try {
+            if (null == error) {
+                transfer.mListener.onTransferComplete(transfer.getBody());
+            } else {
+                transfer.mListener.onTransferFailed(error);
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Transfer listener failed", e);
+        }
+    }
+}
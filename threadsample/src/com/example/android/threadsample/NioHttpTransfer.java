@@ -0,0 +1,557 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+
+/**
+ * This class runs a single HTTP/1.1 GET on a non-blocking SocketChannel, for
+ * {@link NioDownloadEngine}. It writes the request, and parses the response as the bytes
+ * arrive, however they're split between reads.
+ * <p>
+ * The client only does what image downloads need. It asks for the identity encoding, and it
+ * understands a Content-Length, a chunked body, or a body that ends when the server closes the
+ * connection. Responses that it can't handle, such as redirects, throw
+ * {@link UnsupportedResponseException}, so that the engine can leave the host to
+ * HttpURLConnection.
+ * <p>
+ * The client asks the server to keep the connection open. If the response allows it, the engine
+ * keeps the connection when the transfer is over, and the next transfer to the same host
+ * {@link #reuse re-uses} it instead of connecting again.
+ * <p>
+ * All the methods except the constructor must be called on the engine's selector thread.
+ */
+class NioHttpTransfer {
+
+    // The largest response header that's accepted
+    private static final int MAXIMUM_HEADER_SIZE = 16 * 1024;
+
+    // The largest image that's accepted, so that a bad Content-Length can't exhaust the heap
+    private static final int MAXIMUM_BODY_SIZE = 32 * 1024 * 1024;
+
+    // The size of the buffer that each read fills
+    private static final int READ_SIZE = 8 * 1024;
+
+    // The initial size of the body buffer, if the server doesn't send a Content-Length
+    private static final int INITIAL_BODY_SIZE = 16 * 1024;
+
+    // The stages of parsing a response
+    private static final int PHASE_STATUS_LINE = 0;
+    private static final int PHASE_HEADERS = 1;
+    private static final int PHASE_BODY = 2;
+    private static final int PHASE_CHUNK_SIZE = 3;
+    private static final int PHASE_CHUNK_DATA = 4;
+    private static final int PHASE_CHUNK_END = 5;
+    private static final int PHASE_TRAILERS = 6;
+    private static final int PHASE_DONE = 7;
+
+    /**
+     * Thrown for a response that the client doesn't handle, such as a redirect or a compressed
+     * body. The same URL may work with HttpURLConnection.
+     */
+    static class UnsupportedResponseException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedResponseException(String message) {
+            super(message);
+        }
+    }
+
+    // The image URL, and the address of its host, which the caller has already resolved
+    final URL mURL;
+    final InetSocketAddress mAddress;
+
+    // Identifies the connections that can be re-used for this transfer: the host and the port
+    final String mHostKey;
+
+    // Receives the progress and the result of the transfer
+    final NioDownloadEngine.TransferListener mListener;
+
+    // The connection, once it has been opened, and its selection key
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+
+    // true if the connection was left open by an earlier transfer
+    private boolean mReusedConnection;
+
+    /*
+     * true if the connection can be re-used after the response: the server speaks HTTP/1.1,
+     * hasn't asked to close, and has marked where the body ends
+     */
+    private boolean mKeepAlive;
+
+    // true if the server sent more than the response, so the connection is out of step
+    private boolean mExtraBytes;
+
+    // The request, and the part of it that hasn't been written yet
+    private ByteBuffer mRequest;
+
+    // The buffer that each read fills
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocate(READ_SIZE);
+
+    // The current stage of parsing the response
+    private int mPhase = PHASE_STATUS_LINE;
+
+    // The line being parsed, for the status line, the headers, and the chunk sizes
+    private final StringBuilder mLine = new StringBuilder();
+    private int mHeaderSize;
+
+    // What the headers said about the body
+    private int mStatusCode;
+    private long mContentLength = -1;
+    private boolean mChunked;
+
+    // The body received so far
+    private byte[] mBody;
+    private int mBodyLength;
+
+    // The bytes left in the current chunk
+    private long mChunkRemaining;
+
+    // The last time the connection made progress, in SystemClock.uptimeMillis()
+    long mLastActivityMillis;
+
+    // true once the engine has reported the result of the transfer
+    boolean mFinished;
+
+    /**
+     * Creates a transfer. Nothing is sent until {@link #open} is called.
+     *
+     * @param url The URL of the image, which must be an http: URL
+     * @param address The resolved address of the URL's host and port
+     * @param listener Receives the progress and the result of the transfer
+     */
+    NioHttpTransfer(URL url, InetSocketAddress address,
+            NioDownloadEngine.TransferListener listener) {
+        mURL = url;
+        mAddress = address;
+        mListener = listener;
+        mHostKey = hostKey(url);
+    }
+
+    /**
+     * Returns the key that identifies the connections a URL can use
+     * @param url An http: URL
+     * @return The host name and the port
+     */
+    static String hostKey(URL url) {
+        int port = (-1 == url.getPort()) ? url.getDefaultPort() : url.getPort();
+        return url.getHost().toLowerCase(Locale.US) + ":" + port;
+    }
+
+    /**
+     * Starts connecting, and registers the channel with the selector
+     *
+     * @param selector The engine's selector
+     * @param nowMillis The current time, in SystemClock.uptimeMillis()
+     * @throws IOException If the connection can't be started
+     */
+    void open(Selector selector, long nowMillis) throws IOException {
+        mRequest = ByteBuffer.wrap(buildRequest());
+        mLastActivityMillis = nowMillis;
+        mChannel = SocketChannel.open();
+        mChannel.configureBlocking(false);
+        if (mChannel.connect(mAddress)) {
+            mKey = mChannel.register(selector, SelectionKey.OP_WRITE, this);
+        } else {
+            mKey = mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+    }
+
+    /**
+     * Sends the request on a connection that an earlier transfer left open
+     *
+     * @param key The selection key of the idle connection
+     * @param nowMillis The current time, in SystemClock.uptimeMillis()
+     * @throws IOException If the request can't be built
+     */
+    void reuse(SelectionKey key, long nowMillis) throws IOException {
+        mRequest = ByteBuffer.wrap(buildRequest());
+        mLastActivityMillis = nowMillis;
+        mChannel = (SocketChannel) key.channel();
+        mKey = key;
+        mReusedConnection = true;
+        key.attach(this);
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /*
+     * Builds the request, asking the server to keep the connection open afterwards
+     */
+    private byte[] buildRequest() throws UnsupportedEncodingException {
+        String path = mURL.getFile();
+        if (0 == path.length()) {
+            path = "/";
+        }
+        String host = mURL.getHost();
+        if ((-1 != mURL.getPort()) && (mURL.getDefaultPort() != mURL.getPort())) {
+            host = host + ":" + mURL.getPort();
+        }
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "User-Agent: " + Constants.USER_AGENT + "\r\n"
+                + "Accept-Encoding: identity\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n";
+        return request.getBytes("ISO-8859-1");
+    }
+
+    /**
+     * Handles the selector's readiness for the channel
+     *
+     * @param key The channel's selection key
+     * @param nowMillis The current time, in SystemClock.uptimeMillis()
+     * @return true when the whole response has arrived
+     * @throws IOException If the connection fails or the response is malformed
+     */
+    boolean onReady(SelectionKey key, long nowMillis) throws IOException {
+        if (key.isConnectable()) {
+            if (!mChannel.finishConnect()) {
+                return false;
+            }
+            mLastActivityMillis = nowMillis;
+            key.interestOps(SelectionKey.OP_WRITE);
+            return false;
+        }
+        if (key.isWritable()) {
+            if (mChannel.write(mRequest) > 0) {
+                mLastActivityMillis = nowMillis;
+            }
+            if (!mRequest.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return false;
+        }
+        if (key.isReadable()) {
+            return read(nowMillis);
+        }
+        return false;
+    }
+
+    /*
+     * Reads what has arrived, and parses it. Returns true when the response is complete.
+     */
+    private boolean read(long nowMillis) throws IOException {
+        mReadBuffer.clear();
+        int readResult = mChannel.read(mReadBuffer);
+        if (readResult < 0) {
+
+            // Without a length, the body ends when the server closes the connection
+            if ((PHASE_BODY == mPhase) && (mContentLength < 0)) {
+                mPhase = PHASE_DONE;
+                return true;
+            }
+            throw new EOFException("Connection closed before the response was complete");
+        }
+        if (0 == readResult) {
+            return false;
+        }
+        mLastActivityMillis = nowMillis;
+        int bodyLengthBefore = mBodyLength;
+        parse(mReadBuffer.array(), 0, readResult);
+
+        // Lets the listener look at the new part of the body, for progressive previews
+        if (mBodyLength > bodyLengthBefore) {
+            mListener.onDataReceived(mBody, mBodyLength);
+        }
+        return PHASE_DONE == mPhase;
+    }
+
+    /*
+     * Parses the bytes that have just arrived
+     */
+    private void parse(byte[] data, int offset, int length) throws IOException {
+        int end = offset + length;
+        int position = offset;
+        while ((position < end) && (PHASE_DONE != mPhase)) {
+            switch (mPhase) {
+                case PHASE_BODY: {
+                    int count = end - position;
+                    if (mContentLength >= 0) {
+                        count = (int) Math.min(count, mContentLength - mBodyLength);
+                    }
+                    appendBody(data, position, count);
+                    position += count;
+                    if ((mContentLength >= 0) && (mBodyLength == mContentLength)) {
+                        mPhase = PHASE_DONE;
+                    }
+                    break;
+                }
+                case PHASE_CHUNK_DATA: {
+                    int count = (int) Math.min(end - position, mChunkRemaining);
+                    appendBody(data, position, count);
+                    position += count;
+                    mChunkRemaining -= count;
+                    if (0 == mChunkRemaining) {
+                        mPhase = PHASE_CHUNK_END;
+                    }
+                    break;
+                }
+
+                // The other stages are made of lines
+                default: {
+                    int b = data[position++] & 0xFF;
+                    if ((mPhase <= PHASE_HEADERS) && (++mHeaderSize > MAXIMUM_HEADER_SIZE)) {
+                        throw new ProtocolException("Response header too large");
+                    }
+                    if (mLine.length() > MAXIMUM_HEADER_SIZE) {
+                        throw new ProtocolException("Response line too long");
+                    }
+                    if ('\n' != b) {
+                        if ('\r' != b) {
+                            mLine.append((char) b);
+                        }
+                        break;
+                    }
+                    String line = mLine.toString();
+                    mLine.setLength(0);
+                    onLine(line);
+                    break;
+                }
+            }
+        }
+
+        // Anything after the response means that the connection can't be trusted again
+        if (position < end) {
+            mExtraBytes = true;
+        }
+    }
+
+    /*
+     * Handles a complete line of the status line, the headers, or the chunk framing
+     */
+    private void onLine(String line) throws IOException {
+        switch (mPhase) {
+            case PHASE_STATUS_LINE:
+                parseStatusLine(line);
+                mPhase = PHASE_HEADERS;
+                break;
+            case PHASE_HEADERS:
+                if (line.length() > 0) {
+                    parseHeader(line);
+                } else {
+                    startBody();
+                }
+                break;
+            case PHASE_CHUNK_SIZE:
+                int extension = line.indexOf(';');
+                String size = ((extension >= 0) ? line.substring(0, extension) : line).trim();
+                try {
+                    mChunkRemaining = Long.parseLong(size, 16);
+                } catch (NumberFormatException e) {
+                    throw new ProtocolException("Bad chunk size: " + line);
+                }
+                if (mChunkRemaining < 0) {
+                    throw new ProtocolException("Bad chunk size: " + line);
+                }
+                ensureBodyCapacity(mBodyLength + mChunkRemaining);
+                mPhase = (0 == mChunkRemaining) ? PHASE_TRAILERS : PHASE_CHUNK_DATA;
+                break;
+            case PHASE_CHUNK_END:
+                mPhase = PHASE_CHUNK_SIZE;
+                break;
+            case PHASE_TRAILERS:
+                if (0 == line.length()) {
+                    mPhase = PHASE_DONE;
+                }
+                break;
+        }
+    }
+
+    /*
+     * Checks the status code. Only a 200 response has the image; errors fail the download, as
+     * they do with HttpURLConnection, and anything else is left to HttpURLConnection.
+     */
+    private void parseStatusLine(String line) throws IOException {
+        if (!line.startsWith("HTTP/1.") || (line.length() < 12)) {
+            throw new ProtocolException("Bad status line: " + line);
+        }
+        try {
+            mStatusCode = Integer.parseInt(line.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad status line: " + line);
+        }
+        mKeepAlive = line.startsWith("HTTP/1.1");
+        if ((mStatusCode >= 400) && (mStatusCode < 500)) {
+
+            // A client error, reported the way HttpURLConnection reports it
+            throw new FileNotFoundException("HTTP " + mStatusCode + " for " + mURL);
+        }
+        if (mStatusCode >= 500) {
+            throw new IOException("HTTP " + mStatusCode + " for " + mURL);
+        }
+        if (200 != mStatusCode) {
+            throw new UnsupportedResponseException("HTTP " + mStatusCode + " for " + mURL);
+        }
+    }
+
+    /*
+     * Picks out the headers that describe the body
+     */
+    private void parseHeader(String line) throws IOException {
+        int colon = line.indexOf(':');
+        if (colon <= 0) {
+            return;
+        }
+        String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+        String value = line.substring(colon + 1).trim().toLowerCase(Locale.US);
+        if ("content-length".equals(name)) {
+            try {
+                mContentLength = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Bad Content-Length: " + value);
+            }
+        } else if ("transfer-encoding".equals(name)) {
+            if ("chunked".equals(value)) {
+                mChunked = true;
+            } else if (!"identity".equals(value)) {
+                throw new UnsupportedResponseException("Transfer-Encoding: " + value);
+            }
+        } else if ("connection".equals(name)) {
+            if (value.contains("close")) {
+                mKeepAlive = false;
+            } else if (value.contains("keep-alive")) {
+                mKeepAlive = true;
+            }
+        } else if ("content-encoding".equals(name) && !"identity".equals(value)) {
+            throw new UnsupportedResponseException("Content-Encoding: " + value);
+        }
+    }
+
+    /*
+     * Moves on to the body once the headers have ended
+     */
+    private void startBody() throws IOException {
+        if (mChunked) {
+            mContentLength = -1;
+            ensureBodyCapacity(INITIAL_BODY_SIZE);
+            mPhase = PHASE_CHUNK_SIZE;
+        } else if (mContentLength >= 0) {
+            ensureBodyCapacity(mContentLength);
+            mPhase = (0 == mContentLength) ? PHASE_DONE : PHASE_BODY;
+        } else {
+
+            // The body ends when the connection does, so the connection can't be re-used
+            mKeepAlive = false;
+            ensureBodyCapacity(INITIAL_BODY_SIZE);
+            mPhase = PHASE_BODY;
+        }
+    }
+
+    /*
+     * Adds bytes to the end of the body
+     */
+    private void appendBody(byte[] data, int offset, int count) throws IOException {
+        ensureBodyCapacity((long) mBodyLength + count);
+        System.arraycopy(data, offset, mBody, mBodyLength, count);
+        mBodyLength += count;
+    }
+
+    /*
+     * Makes room in the body buffer. The buffer doubles, so that a body without a length
+     * isn't copied again for every read.
+     */
+    private void ensureBodyCapacity(long capacity) throws IOException {
+        if (capacity > MAXIMUM_BODY_SIZE) {
+            throw new ProtocolException("Image too large: " + capacity + " bytes");
+        }
+        if ((null != mBody) && (mBody.length >= capacity)) {
+            return;
+        }
+        int newSize = (null == mBody) ? (int) capacity
+                : (int) Math.min(MAXIMUM_BODY_SIZE, Math.max(capacity, mBody.length * 2L));
+        byte[] expandedBody = new byte[newSize];
+        if (null != mBody) {
+            System.arraycopy(mBody, 0, expandedBody, 0, mBodyLength);
+        }
+        mBody = expandedBody;
+    }
+
+    /**
+     * Returns the body of a complete response, trimmed to its length
+     * @return The image bytes
+     */
+    byte[] getBody() {
+        if ((null != mBody) && (mBody.length == mBodyLength)) {
+            return mBody;
+        }
+        byte[] body = new byte[mBodyLength];
+        if (null != mBody) {
+            System.arraycopy(mBody, 0, body, 0, mBodyLength);
+        }
+        return body;
+    }
+
+    /**
+     * Detects whether the connection can carry another request, once the response is complete
+     * @return true if the connection can be kept
+     */
+    boolean isReusable() {
+        return (PHASE_DONE == mPhase) && mKeepAlive && !mExtraBytes && mChannel.isOpen();
+    }
+
+    /**
+     * Detects whether the transfer ran on a connection that an earlier transfer left open
+     * @return true for a re-used connection
+     */
+    boolean isReusedConnection() {
+        return mReusedConnection;
+    }
+
+    /**
+     * Detects whether any of the response has arrived. A re-used connection that fails before
+     * that was probably closed by the server while it was idle, and the request can be sent
+     * again on a new connection.
+     * @return true once the first byte of the response has arrived
+     */
+    boolean hasResponseStarted() {
+        return (mHeaderSize > 0) || (PHASE_STATUS_LINE != mPhase);
+    }
+
+    /**
+     * Returns the connection's selection key
+     * @return The key, or null if the connection hasn't been opened
+     */
+    SelectionKey getKey() {
+        return mKey;
+    }
+
+    /**
+     * Closes the connection, which also takes it out of the selector
+     */
+    void close() {
+        if (null != mChannel) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+
+                // The transfer is over either way
+            }
+        }
+    }
+}
@@ -18,8 +18,12 @@ package com.example.android.threadsample;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.util.Log;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+
 /**
  * This runnable decodes a byte array containing an image.
  *
@@ -32,11 +36,17 @@ import android.util.Log;
  */
 class PhotoDecodeRunnable implements Runnable {
     
-    // Limits the number of times the decoder tries to process an image
-    private static final int NUMBER_OF_DECODE_TRIES = 2;
+    /*
+     * Limits the number of times the decoder tries to process an image. One try can be lost to
+     * a pooled Bitmap that doesn't fit the image, and one to running out of memory.
+     */
+    private static final int NUMBER_OF_DECODE_TRIES = 3;
 
-    // Tells the Runnable to pause for a certain number of milliseconds
-    private static final long SLEEP_TIME_MILLISECONDS = 250;
+    /*
+     * Build.VERSION_CODES.KITKAT, which the SDK the app builds against doesn't define. From this
+     * version on, inBitmap works for sampled decodes, as long as the Bitmap is large enough.
+     */
+    private static final int VERSION_KITKAT = 19;
     
     // Sets the log tag
     private static final String LOG_TAG = "PhotoDecodeRunnable";
@@ -45,6 +55,7 @@ class PhotoDecodeRunnable implements Runnable {
     static final int DECODE_STATE_FAILED = -1;
     static final int DECODE_STATE_STARTED = 0;
     static final int DECODE_STATE_COMPLETED = 1;
+    static final int DECODE_STATE_DROPPED = -2;
     
     // Defines a field that contains the calling object of type PhotoTask.
     final TaskRunnableDecodeMethods mPhotoTask;
@@ -63,6 +74,12 @@ class PhotoDecodeRunnable implements Runnable {
          * @param currentThread the current Thread
          */
         void setImageDecodeThread(Thread currentThread);
+
+        /**
+         * Moves the task from the decode queue to the decoding stage
+         * @return false if the task was cancelled while it waited in the queue
+         */
+        boolean beginDecode();
         
         /**
          * Returns the current contents of the download buffer
@@ -70,6 +87,25 @@ class PhotoDecodeRunnable implements Runnable {
          */
         byte[] getByteBuffer();
 
+        /**
+         * Returns the image's file in the disk cache, when the image came from there instead of
+         * the download buffer
+         * @return The open file, or null if the image is in the download buffer
+         */
+        FileInputStream getImageFile();
+
+        /**
+         * Returns a larger decoded variant of the image, when the task was started from the
+         * Bitmap cache instead of from the encoded image
+         * @return The variant to draw smaller, or null if the image has to be decoded
+         */
+        Bitmap getSourceImage();
+
+        /**
+         * Closes the image's file in the disk cache, if it has one
+         */
+        void closeImageFile();
+
         /**
          * Sets the actions for each state of the PhotoTask instance.
          * @param state The state being handled.
@@ -93,6 +129,18 @@ class PhotoDecodeRunnable implements Runnable {
          * @param image
          */
         void setImage(Bitmap image);
+
+        /**
+         * Detects whether the decode is still needed
+         * @return true if every View that wanted the image has gone away or shows another URL
+         */
+        boolean isStale();
+
+        /**
+         * Detects whether the decode's deadline has passed
+         * @return true if the decode is too late to be useful
+         */
+        boolean isExpired();
     }
 
     /**
@@ -111,18 +159,22 @@ class PhotoDecodeRunnable implements Runnable {
     @Override
     public void run() {
 
+        /*
+         * If no View needs the image anymore, its deadline has passed, or the task was
+         * cancelled while it waited, drops the task before it uses the CPU, and releases the
+         * encoded image.
+         */
+        if (mPhotoTask.isStale() || mPhotoTask.isExpired() || !mPhotoTask.beginDecode()) {
+            mPhotoTask.handleDecodeState(DECODE_STATE_DROPPED);
+            return;
+        }
+
         /*
          * Stores the current Thread in the the PhotoTask instance, so that the instance
          * can interrupt the Thread.
          */
         mPhotoTask.setImageDecodeThread(Thread.currentThread());
         
-        /*
-         * Gets the image cache buffer object from the PhotoTask instance. This makes the
-         * to both PhotoDownloadRunnable and PhotoTask.
-         */
-        byte[] imageBuffer = mPhotoTask.getByteBuffer();
-        
         // Defines the Bitmap object that this thread will create
         Bitmap returnBitmap = null;
 
@@ -155,6 +207,23 @@ class PhotoDecodeRunnable implements Runnable {
                 
                 return;
             }
+
+            /*
+             * If the task was started from a larger cached variant, draws it at the target
+             * size instead of decoding the image again. This is much cheaper than a decode,
+             * but too slow for the UI thread, so it's done here.
+             */
+            Bitmap sourceImage = mPhotoTask.getSourceImage();
+            if (null != sourceImage) {
+                try {
+                    returnBitmap = BitmapVariantCache.downscale(sourceImage, targetWidth,
+                            targetHeight, PhotoManager.getBitmapPool());
+                } catch (OutOfMemoryError e) {
+                    Log.e(LOG_TAG, "Out of memory in downscale. Trimming the caches.");
+                    PhotoManager.onDecodeOutOfMemory();
+                }
+                return;
+            }
     
             /*
              * Even if the decoder doesn't set a Bitmap, this flag tells
@@ -166,8 +235,7 @@ class PhotoDecodeRunnable implements Runnable {
              * First pass of decoding to get scaling and sampling
              * parameters from the image
              */
-            BitmapFactory
-                    .decodeByteArray(imageBuffer, 0, imageBuffer.length, bitmapOptions);
+            decode(bitmapOptions);
     
             /*
              * Sets horizontal and vertical scaling factors so that the
@@ -179,10 +247,12 @@ class PhotoDecodeRunnable implements Runnable {
     
             /*
              * Sets the sample size to be larger of the horizontal or
-             * vertical scale factor
+             * vertical scale factor, rounded down to a power of two.
+             * BitmapFactory rounds it down the same way, so the pooled
+             * Bitmap below is asked for at the size the image actually
+             * decodes to.
              */
-            //
-            int sampleSize = Math.max(hScale, wScale);
+            int sampleSize = Integer.highestOneBit(Math.max(1, Math.max(hScale, wScale)));
     
             /*
              * If either of the scaling factors is > 1, the image's
@@ -198,6 +268,19 @@ class PhotoDecodeRunnable implements Runnable {
             if (Thread.interrupted()) {
                 return;
             }
+
+            /*
+             * Draws into a pooled Bitmap of the decoded size, if there is one, instead of
+             * allocating a new one. Before KitKat, inBitmap only works when the image isn't
+             * sampled. The decoded Bitmap is mutable, so that it can be pooled in turn.
+             */
+            bitmapOptions.inMutable = true;
+            if ((Build.VERSION.SDK_INT >= VERSION_KITKAT) || (sampleSize <= 1)) {
+                int sample = Math.max(1, sampleSize);
+                bitmapOptions.inBitmap = PhotoManager.getBitmapPool().get(
+                        (bitmapOptions.outWidth + sample - 1) / sample,
+                        (bitmapOptions.outHeight + sample - 1) / sample);
+            }
     
             // Second pass of decoding. If no bitmap is created, nothing
             // is set in the object.
@@ -205,53 +288,53 @@ class PhotoDecodeRunnable implements Runnable {
     
             /*
              * This does the actual decoding of the buffer. If the
-             * decode encounters an an out-of-memory error, it may throw
-             * an Exception or an Error, both of which need to be
-             * handled. Once the problem is handled, the decode is
-             * re-tried.
+             * decode encounters an an out-of-memory error, or the pooled
+             * Bitmap doesn't fit the image, it throws an Error or an
+             * Exception, both of which need to be handled. Once the
+             * problem is handled, the decode is re-tried.
              */
             for (int i = 0; i < NUMBER_OF_DECODE_TRIES; i++) {
                 try {
-                    // Tries to decode the image buffer
-                    returnBitmap = BitmapFactory.decodeByteArray(
-                            imageBuffer,
-                            0,
-                            imageBuffer.length,
-                            bitmapOptions
-                            );
+                    // Tries to decode the image buffer, or the cached file
+                    returnBitmap = decode(bitmapOptions);
+
                     /*
                      * If the decode works, no Exception or Error has occurred.
+                     */
                     break;
     
                     /*
                      * If the decode fails, this block tries to get more memory.
                      */
-                } catch (Throwable e) {
+                } catch (OutOfMemoryError e) {
     
                     // Logs an error
-                    Log.e(LOG_TAG, "Out of memory in decode stage. Throttling.");
-    
+                    Log.e(LOG_TAG, "Out of memory in decode stage. Trimming the caches.");
+
                     /*
-                     * Tells the system that garbage collection is
-                     * necessary. Notice that collection may or may not
-                     * occur.
+                     * Makes room by shrinking the memory caches and the Bitmap pool, and tries
+                     * again at once. The failed allocation has already made the VM collect
+                     * garbage, so asking for another collection, or sleeping, would only add
+                     * to the pause.
                      */
-                    java.lang.System.gc();
+                    PhotoManager.onDecodeOutOfMemory();
+                    bitmapOptions.inBitmap = null;
     
                     if (Thread.interrupted()) {
                         return;
-    
                     }
-                    /*
-                     * Tries to pause the thread for 250 milliseconds,
-                     * and catches an Exception if something tries to
-                     * activate the thread before it wakes up.
-                     */
-                    try {
-                        Thread.sleep(SLEEP_TIME_MILLISECONDS);
-                    } catch (java.lang.InterruptedException interruptException) {
-                        return;
+                } catch (IllegalArgumentException e) {
+
+                    // The pooled Bitmap didn't fit the image, so decodes into a new Bitmap
+                    if (null != bitmapOptions.inBitmap) {
+                        bitmapOptions.inBitmap = null;
+                    } else {
+                        Log.e(LOG_TAG, "Can't decode the image", e);
+                        break;
                     }
+                } catch (RuntimeException e) {
+                    Log.e(LOG_TAG, "Can't decode the image", e);
+                    break;
                 }
             }
 
@@ -269,6 +352,9 @@ class PhotoDecodeRunnable implements Runnable {
     
             } else {
                 
+                // Lets the pool take the Bitmap back once the task, caches, and Views are done
+                PhotoManager.getBitmapPool().track(returnBitmap);
+
                 // Sets the ImageView Bitmap
                 mPhotoTask.setImage(returnBitmap);
                 
@@ -276,6 +362,9 @@ class PhotoDecodeRunnable implements Runnable {
                 mPhotoTask.handleDecodeState(DECODE_STATE_COMPLETED);
             }
     
+            // Closes the cached file, if the image came from one; the Bitmap doesn't need it
+            mPhotoTask.closeImageFile();
+
             // Sets the current Thread to null, releasing its storage
             mPhotoTask.setImageDecodeThread(null);
             
@@ -285,4 +374,25 @@ class PhotoDecodeRunnable implements Runnable {
         }
 
     }
+
+    /*
+     * Decodes the image from the task's cached file if it has one, and otherwise from its byte
+     * buffer. BitmapFactory reads the file through its descriptor in native code, so the encoded
+     * image never sits on the Java heap, and the descriptor's position is left unchanged, so
+     * the bounds pass and the decode can both read from the start. Returns null if the file
+     * can't be read.
+     */
+    private Bitmap decode(BitmapFactory.Options options) {
+        FileInputStream imageFile = mPhotoTask.getImageFile();
+        if (null != imageFile) {
+            try {
+                return BitmapFactory.decodeFileDescriptor(imageFile.getFD(), null, options);
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Can't read the cached image", e);
+                return null;
+            }
+        }
+        byte[] imageBuffer = mPhotoTask.getByteBuffer();
+        return BitmapFactory.decodeByteArray(imageBuffer, 0, imageBuffer.length, options);
+    }
 }
@@ -19,8 +19,10 @@ package com.example.android.threadsample;
 import com.example.android.threadsample.PhotoDecodeRunnable.TaskRunnableDecodeMethods;
 
 import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
@@ -46,9 +48,83 @@ class PhotoDownloadRunnable implements Runnable {
     static final int HTTP_STATE_FAILED = -1;
     static final int HTTP_STATE_STARTED = 0;
     static final int HTTP_STATE_COMPLETED = 1;
+    static final int HTTP_STATE_DROPPED = -2;
+
+    // The server answered, but with an error that trying again won't fix, such as 404
+    static final int HTTP_STATE_FAILED_PERMANENTLY = -3;
+
+    /*
+     * How long a blocking download waits to connect, and for each read. Without a limit, a host
+     * that stops answering holds its download threads indefinitely.
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    /*
+     * The numbers of complete progressive JPEG scans at which a preview is shown. The first scan
+     * is a blocky outline of the whole image; each later one adds detail.
+     */
+    private static final int[] PREVIEW_SCAN_COUNTS = { 1, 3, 6 };
     
     // Defines a field that contains the calling object of type PhotoTask.
     final TaskRunnableDownloadMethods mPhotoTask;
+
+    /*
+     * Follows the JPEG markers of the download, for progressive previews. A runnable only runs
+     * one download at a time, so the scanner and the preview count are reset for each run.
+     */
+    private final ProgressiveJpegScanner mJpegScanner = new ProgressiveJpegScanner();
+    private int mPreviewCount;
+
+    /*
+     * Set on a download pool thread when its download has been handed to the non-blocking
+     * engine, so that the pool doesn't treat the download as finished when run() returns
+     */
+    private static final ThreadLocal<Boolean> sHandedOff = new ThreadLocal<Boolean>();
+
+    // Receives the result of a download that was handed to the non-blocking engine
+    private final NioDownloadEngine.TransferListener mTransferListener =
+            new NioDownloadEngine.TransferListener() {
+        @Override
+        public boolean isCancelled() {
+            return mPhotoTask.isCancelled();
+        }
+
+        @Override
+        public void onDataReceived(byte[] buffer, int length) {
+            publishPreviewIfReady(buffer, length);
+        }
+
+        @Override
+        public void onTransferComplete(byte[] body) {
+            mPhotoTask.onTransferFinished();
+            mPhotoTask.setByteBuffer(body);
+            mPhotoTask.handleDownloadState(HTTP_STATE_COMPLETED);
+        }
+
+        @Override
+        public void onTransferFailed(IOException e) {
+            mPhotoTask.onTransferFinished();
+
+            /*
+             * A response that the engine can't parse, such as a redirect or a compressed body,
+             * says nothing about the host's health. The engine now leaves the host to
+             * HttpURLConnection, so the same attempt runs again on that path at once, without
+             * counting as a failure or a retry.
+             */
+            if ((e instanceof NioHttpTransfer.UnsupportedResponseException)
+                    && mPhotoTask.rerunOnBlockingPath()) {
+                return;
+            }
+            if (!(e instanceof InterruptedIOException)) {
+                e.printStackTrace();
+            }
+
+            // The engine reports a client error response as FileNotFoundException
+            mPhotoTask.handleDownloadState((e instanceof FileNotFoundException)
+                    ? HTTP_STATE_FAILED_PERMANENTLY : HTTP_STATE_FAILED);
+        }
+    };
     
     /**
      *
@@ -64,6 +140,27 @@ class PhotoDownloadRunnable implements Runnable {
          * @param currentThread the current Thread
          */
         void setDownloadThread(Thread currentThread);
+
+        /**
+         * Moves the task from the download queue to the downloading stage
+         * @return false if the task was cancelled while it waited in the queue
+         */
+        boolean beginDownload();
+
+        /**
+         * Detects whether the View wants previews of a progressive JPEG while it downloads
+         * @return true if previews should be published
+         */
+        boolean isProgressiveRenderingEnabled();
+
+        /**
+         * Offers the bytes downloaded so far for a preview. The bytes are copied, so the buffer
+         * can keep growing.
+         * @param buffer The download buffer
+         * @param length The number of bytes downloaded so far
+         * @param scanCount The number of complete progressive scans in the bytes
+         */
+        void publishPartialImage(byte[] buffer, int length, int scanCount);
         
         /**
          * Returns the current contents of the download buffer
@@ -88,6 +185,70 @@ class PhotoDownloadRunnable implements Runnable {
          * @return The image URL
          */
         URL getImageURL();
+
+        /**
+         * Gets the scheduling priority of the download. Higher values are run first.
+         * @return The current priority
+         */
+        int getPriority();
+
+        /**
+         * Gets the order in which the download was queued, used to keep downloads with the
+         * same priority in FIFO order.
+         * @return The sequence number assigned when the task was started
+         */
+        long getSequenceNumber();
+
+        /**
+         * Gets the time after which the download isn't worth doing. Among downloads with the
+         * same priority, the one with the earliest deadline is run first.
+         * @return A time in SystemClock.uptimeMillis(), or 0 if the download has no deadline
+         */
+        long getDeadline();
+
+        /**
+         * Detects whether the download is still needed
+         * @return true if every View that wanted the image has gone away or shows another URL
+         */
+        boolean isStale();
+
+        /**
+         * Detects whether the download's deadline has passed
+         * @return true if the download is too late to be useful
+         */
+        boolean isExpired();
+
+        /**
+         * Detects whether the task has been cancelled
+         * @return true if the download should stop
+         */
+        boolean isCancelled();
+
+        /**
+         * Opens the image in the disk cache, if the task uses the cache, and keeps the file for
+         * the decode
+         * @return true if the image was found, and doesn't have to be downloaded
+         */
+        boolean openDiskCache();
+
+        /**
+         * Gets the pipeline's non-blocking download engine
+         * @return The engine, or null if the pipeline only uses blocking downloads
+         */
+        NioDownloadEngine getDownloadEngine();
+
+        /**
+         * Reports that a download that was handed to the non-blocking engine has ended, so that
+         * the download queue can start another download from the same host
+         */
+        void onTransferFinished();
+
+        /**
+         * Queues the download again for HttpURLConnection, after the non-blocking engine
+         * couldn't handle the host's response. The attempt isn't counted again.
+         * @return false if the task was cancelled, in which case the failure is reported
+         */
+        boolean rerunOnBlockingPath();
     }
     
     /**
@@ -107,6 +268,16 @@ class PhotoDownloadRunnable implements Runnable {
     @Override
     public void run() {
 
+        /*
+         * If no View needs the image anymore, its deadline has passed, or the task was
+         * cancelled while it waited, drops the task before it uses the network. The download
+         * may have waited in the queue long after its View was recycled.
+         */
+        if (mPhotoTask.isStale() || mPhotoTask.isExpired() || !mPhotoTask.beginDownload()) {
+            mPhotoTask.handleDownloadState(HTTP_STATE_DROPPED);
+            return;
+        }
+
         /*
          * Stores the current Thread in the the PhotoTask instance, so that the instance
          * can interrupt the Thread.
@@ -122,6 +293,22 @@ class PhotoDownloadRunnable implements Runnable {
          */
         byte[] byteBuffer = mPhotoTask.getByteBuffer();
 
+        /*
+         * true once every byte of the image is in byteBuffer. The buffer is allocated before the
+         * body is read, so a read that fails partway leaves it non-null; this flag, not the
+         * buffer, decides whether the failure is reported.
+         */
+        boolean completed = (null != byteBuffer);
+
+        // true once the download has been handed to the non-blocking engine
+        boolean handedOff = false;
+
+        // true if the image was found in the disk cache
+        boolean cachedOnDisk = false;
+
+        // The state that's reported if the download fails
+        int failureState = HTTP_STATE_FAILED;
+
         /*
          * A try block that downloads a Picasa image from a URL. The URL value is in the field
          * PhotoTask.mImageURL
@@ -135,8 +322,17 @@ class PhotoDownloadRunnable implements Runnable {
                 throw new InterruptedException();
             }
             
-            // If there's no cache buffer for this image
+            /*
+             * If there's no cache buffer for this image, looks for it on disk. An image from the
+             * disk cache is decoded from the file, so it isn't read into a buffer here. It never
+             * reports that its download started, so it isn't counted as a network download.
+             */
             if (null == byteBuffer) {
+                cachedOnDisk = mPhotoTask.openDiskCache();
+            }
+
+            // If the image wasn't cached anywhere
+            if ((null == byteBuffer) && !cachedOnDisk) {
 
                 /*
                  * Calls the PhotoTask implementation of {@link #handleDownloadState} to
@@ -144,19 +340,47 @@ class PhotoDownloadRunnable implements Runnable {
                  */
                 mPhotoTask.handleDownloadState(HTTP_STATE_STARTED);
 
+                // Starts following the JPEG markers again for this image
+                mJpegScanner.reset();
+                mPreviewCount = 0;
+
+                /*
+                 * If the pipeline has a non-blocking engine that can take the URL, hands the
+                 * download over, and returns the Thread to the pool. The engine reports the
+                 * result through mTransferListener.
+                 */
+                NioDownloadEngine engine = mPhotoTask.getDownloadEngine();
+                if ((null != engine) && engine.canDownload(mPhotoTask.getImageURL())) {
+                    try {
+                        engine.download(mPhotoTask.getImageURL(), mTransferListener);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return;
+                    }
+                    handedOff = true;
+                    sHandedOff.set(Boolean.TRUE);
+                    return;
+                }
+
                 // Defines a handle for the byte download stream
                 InputStream byteStream = null;
 
+                // The connection, kept so that an error response can be read to the end
+                HttpURLConnection httpConn = null;
+
                 // Downloads the image and catches IO errors
                 try {
 
                     // Opens an HTTP connection to the image's URL
-                    HttpURLConnection httpConn =
-                            (HttpURLConnection) mPhotoTask.getImageURL().openConnection();
+                    httpConn = (HttpURLConnection) mPhotoTask.getImageURL().openConnection();
 
                     // Sets the user agent to report to the server
                     httpConn.setRequestProperty("User-Agent", Constants.USER_AGENT);
 
+                    // Gives up on a host that doesn't answer, so that the download can be retried
+                    httpConn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+                    httpConn.setReadTimeout(READ_TIMEOUT_MILLIS);
+
                     // Before continuing, checks to see that the Thread
                     // hasn't been interrupted
                     if (Thread.interrupted()) {
@@ -235,6 +459,9 @@ class PhotoDownloadRunnable implements Runnable {
                                 // the amount of buffer left
                                 bufferLeft -= readResult;
 
+                                // Shows a preview if enough progressive scans have arrived
+                                publishPreviewIfReady(tempBuffer, bufferOffset);
+
                                 if (Thread.interrupted()) {
                                     
                                     throw new InterruptedException();
@@ -322,6 +549,9 @@ class PhotoDownloadRunnable implements Runnable {
                             // remaining length
                             remainingLength -= readResult;
 
+                            // Shows a preview if enough progressive scans have arrived
+                            publishPreviewIfReady(byteBuffer, bufferOffset);
+
                             if (Thread.interrupted()) {
                                 
                                 throw new InterruptedException();
@@ -334,9 +564,35 @@ class PhotoDownloadRunnable implements Runnable {
                         throw new InterruptedException();
                     }
 
+                    // The last byte has been read
+                    completed = true;
+
                     // If an IO error occurs, returns immediately
                 } catch (IOException e) {
                     e.printStackTrace();
+
+                    /*
+                     * Reads the body of an error response, so that the connection goes back to
+                     * the pool instead of being closed
+                     */
+                    if (null != httpConn) {
+                        HttpKeepAlive.drainErrorStream(httpConn);
+                    }
+
+                    /*
+                     * HttpURLConnection reports an error response as FileNotFoundException. A
+                     * client error, such as 404, will happen again, so it isn't retried.
+                     */
+                    if ((e instanceof FileNotFoundException) && (null != httpConn)) {
+                        try {
+                            if (httpConn.getResponseCode() < 500) {
+                                failureState = HTTP_STATE_FAILED_PERMANENTLY;
+                            }
+                        } catch (IOException e2) {
+
+                            // The response code was already read, so this doesn't happen
+                        }
+                    }
                     return;
 
                     /*
@@ -373,16 +629,19 @@ class PhotoDownloadRunnable implements Runnable {
         // In all cases, handle the results
         } finally {
             
-            // If the byteBuffer is null, reports that the download failed.
-            if (null == byteBuffer) {
-                mPhotoTask.handleDownloadState(HTTP_STATE_FAILED);
+            /*
+             * If the image wasn't read to the end, reports that the download failed, unless the
+             * engine is still downloading it. A task that isn't told it failed would stay in
+             * the in-flight table, and the retry policy and circuit breaker would never see it.
+             */
+            if (!completed && !handedOff && !cachedOnDisk) {
+                mPhotoTask.handleDownloadState(failureState);
             }
 
             /*
              * The implementation of setHTTPDownloadThread() in PhotoTask calls
-             * PhotoTask.setCurrentThread(), which then locks on the static ThreadPool
-             * object and returns the current thread. Locking keeps all references to Thread
-             * objects the same until the reference to the current Thread is deleted.
+             * PhotoTask.setCurrentThread(), which stores the Thread in an atomic reference, so
+             * a Thread that cancels the task sees either this Thread or null.
              */
             
             // Sets the reference to the current Thread to null, releasing its storage
@@ -392,5 +651,38 @@ class PhotoDownloadRunnable implements Runnable {
             Thread.interrupted();
         }
     }
-}
 
+    /**
+     * Detects whether the download that just ran on this Thread was handed to the non-blocking
+     * engine, and clears the flag. Called by the download pool after each download.
+     * @return true if the download is still running in the engine
+     */
+    static boolean consumeHandOff() {
+        boolean handedOff = Boolean.TRUE.equals(sHandedOff.get());
+        sHandedOff.remove();
+        return handedOff;
+    }
+
+    /*
+     * If the View wants previews and the image is a progressive JPEG, publishes the bytes so far
+     * each time another of the PREVIEW_SCAN_COUNTS scans has arrived. A baseline JPEG, or any
+     * other format, never produces a preview.
+     */
+    private void publishPreviewIfReady(byte[] buffer, int length) {
+        if ((mPreviewCount >= PREVIEW_SCAN_COUNTS.length)
+                || !mPhotoTask.isProgressiveRenderingEnabled()) {
+            return;
+        }
+        mJpegScanner.update(buffer, length);
+        int scanCount = mJpegScanner.getCompletedScanCount();
+        if (mJpegScanner.isProgressive() && (scanCount >= PREVIEW_SCAN_COUNTS[mPreviewCount])) {
+
+            // Skips the thresholds that a large read went past
+            while ((mPreviewCount < PREVIEW_SCAN_COUNTS.length)
+                    && (scanCount >= PREVIEW_SCAN_COUNTS[mPreviewCount])) {
+                mPreviewCount++;
+            }
+            mPhotoTask.publishPartialImage(buffer, length, scanCount);
+        }
+    }
+}
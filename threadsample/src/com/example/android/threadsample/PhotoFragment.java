@@ -29,7 +29,6 @@ import android.view.ViewGroup;
 import android.widget.GridView;
 
 import java.net.MalformedURLException;
-import java.net.URL;
 
 public class PhotoFragment extends Fragment implements View.OnClickListener {
     // Constants
@@ -54,14 +53,14 @@ public class PhotoFragment extends Fragment implements View.OnClickListener {
             try {
                 
                 // Converts the URL string to a valid URL
-                URL localURL = new URL(mURLString);
+                ImageKey localKey = ImageKey.parse(mURLString);
                 
                 /*
-                 * setImageURL(url,false,null) attempts to download and decode the picture at
-                 * at "url" without caching and without providing a Drawable. The result will be
+                 * setImageKey(key,false,null) attempts to download and decode the picture at
+                 * at "key" without caching and without providing a Drawable. The result will be
                  * a BitMap stored in the PhotoView for this Fragment.
                  */
-                mPhotoView.setImageURL(localURL, false, null);
+                mPhotoView.setImageKey(localKey, false, null);
                 
             // Catches an invalid URL format
             } catch (MalformedURLException localMalformedURLException) {
@@ -122,6 +121,15 @@ public class PhotoFragment extends Fragment implements View.OnClickListener {
          * class is invoked when users click a photo.
          */
         mPhotoView.setOnClickListener(this);
+
+        /*
+         * Full-size photos are large enough that a blurry preview is worth showing while the
+         * rest of the photo downloads
+         */
+        mPhotoView.setProgressiveRendering(true);
+
+        // Full-size photos have their own pipeline, so they don't wait behind the thumbnails
+        mPhotoView.setPipeline(PhotoManager.PIPELINE_FULLSCREEN);
         
         // If the bundle argument contains data, uses it as a URL for the picture to display
         if (bundle != null) {
@@ -17,23 +17,43 @@
 package com.example.android.threadsample;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
-import android.support.v4.util.LruCache;
+import android.os.SystemClock;
+import android.view.Choreographer;
 
-import java.net.URL;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class creates pools of background threads for downloading
  * Picasa images from the web, based on URLs retrieved from Picasa's featured images RSS feed.
- * The class is implemented as a singleton; the only way to get an PhotoManager instance is to
- * call {@link #getInstance}.
+ * <p>
+ * Each PhotoManager instance is a separate pipeline, with its own thread pools, queues, cache,
+ * and task pool. The app uses two: one for the grid of thumbnails, and one for the full-size
+ * photo. A full-size photo is what the user is waiting for after a tap, so it must not wait
+ * behind the hundreds of thumbnails that a scroll can queue. A PhotoView picks its pipeline
+ * with {@link PhotoView#setPipeline}; {@link #getPipeline} returns the instances, and
+ * {@link #getInstance} returns the thumbnail pipeline.
  * <p>
  * The class sets the pool size and cache size based on the particular operation it's performing.
  * The algorithm doesn't apply to all situations, so if you re-use the code to implement a pool
@@ -43,10 +63,30 @@ import java.util.concurrent.TimeUnit;
  * <p>
  * This class actually uses two threadpools in order to limit the number of
  * simultaneous image decoding threads to the number of available processor
- * cores.
+ * cores. The decoding threads steal work from each other (see
+ * {@link WorkStealingDecodeExecutor}), so that small decodes don't wait behind large ones.
+ * <p>
+ * Downloads don't run in FIFO order. Each task is ranked by how much of its PhotoView is on
+ * screen, so that visible images are downloaded before images that have scrolled away, and
+ * the queue is re-ranked when the grid scrolls (see {@link #reprioritizeDownloads}). The
+ * download queue also takes turns between hosts, and limits the downloads running for each
+ * host, so that one slow host can't hold every download thread.
+ * <p>
+ * A download that fails is tried again after a randomized, growing wait (see
+ * {@link RetryPolicy}), and each host has a {@link CircuitBreaker}: while a host keeps failing,
+ * its downloads fail at once instead of taking up threads, and a View that has another URL for
+ * the image can use that instead (see {@link #selectURL}).
+ * <p>
+ * Images are cached three times: decoded Bitmaps, which a View can show at once; behind them
+ * the downloaded bytes, which only need to be decoded again; and behind those, the bytes in
+ * files that survive the process (see {@link DiskImageCache}). The first two are checked on
+ * the UI thread when a View asks for an image, and the disk cache is checked by the download
+ * thread before it goes to the network.
  * <p>
  * Finally, this class defines a handler that communicates back to the UI
- * thread to change the bitmap to reflect the state.
+ * thread to change the bitmap to reflect the state. State changes are collected and applied
+ * together once per frame, so that a burst of completions doesn't flood the UI thread with
+ * messages.
  */
 @SuppressWarnings("unused")
 public class PhotoManager {
@@ -58,10 +98,77 @@ public class PhotoManager {
     static final int DOWNLOAD_COMPLETE = 2;
     static final int DECODE_STARTED = 3;
     static final int TASK_COMPLETE = 4;
+    static final int TASK_DROPPED = 5;
+    static final int PREVIEW_READY = 6;
+    static final int PREFETCH_COMPLETE = 7;
+
+    /*
+     * Download priorities. Tasks with a higher priority are downloaded first. A task whose
+     * PhotoView is on screen gets PRIORITY_VISIBLE plus the percentage of the View that's
+     * visible, so the most visible cells are served first.
+     */
+    static final int PRIORITY_PREFETCH = 0;
+    static final int PRIORITY_OFFSCREEN = 1;
+    static final int PRIORITY_VISIBLE = 100;
+
+    /**
+     * The pipeline for the grid of thumbnails
+     */
+    public static final int PIPELINE_THUMBNAILS = 0;
+
+    /**
+     * The pipeline for full-size photos
+     */
+    public static final int PIPELINE_FULLSCREEN = 1;
 
-    // Sets the size of the storage that's used to cache images
+    /*
+     * Sets the size of the storage that's used to cache images, until initialize() sizes the
+     * caches for the device
+     */
     private static final int IMAGE_CACHE_SIZE = 1024 * 1024 * 4;
 
+    /*
+     * Sets the number of segments in the byte cache. The download threads, the decode threads,
+     * and the UI thread all use the byte cache, so each segment has its own lock. More segments
+     * would mean less waiting, but each segment's eviction policy would see fewer images.
+     */
+    private static final int CACHE_SEGMENTS = 4;
+
+    /*
+     * Sets the size of the storage that's used to cache decoded Bitmaps, until initialize()
+     * sizes the caches for the device. A decoded thumbnail takes several times the memory of its
+     * JPEG, but showing it again costs nothing.
+     */
+    private static final int DECODED_IMAGE_CACHE_SIZE = 1024 * 1024 * 6;
+
+    /*
+     * Sets the size of the pool of Bitmaps that decodes re-use, until initialize() sizes it for
+     * the device
+     */
+    private static final int BITMAP_POOL_SIZE = 1024 * 1024 * 2;
+
+    /*
+     * The thumbnail caches get 1/CACHE_HEAP_DIVISOR of the app's memory class, so they grow
+     * with the heap of the device. Decoded Bitmaps save the most work, so they get
+     * BITMAP_CACHE_SHARE of it; the pool of Bitmaps for re-use gets BITMAP_POOL_SHARE, and the
+     * bytes get the rest.
+     */
+    private static final int CACHE_HEAP_DIVISOR = 5;
+    private static final float BITMAP_CACHE_SHARE = 0.5f;
+    private static final float BITMAP_POOL_SHARE = 0.2f;
+
+    // The share of their full sizes that the memory caches get at each level of memory pressure
+    private static final float CACHE_SCALE_FULL = 1.0f;
+    private static final float CACHE_SCALE_LOW = 0.5f;
+    private static final float CACHE_SCALE_CRITICAL = 0.25f;
+    private static final float CACHE_SCALE_EMPTY = 0.0f;
+
+    // Sets the size of the files that are used to cache images between runs of the app
+    private static final long DISK_CACHE_SIZE = 1024 * 1024 * 20;
+
+    // The name of the disk cache's directory, under the app's cache directory
+    private static final String DISK_CACHE_DIRECTORY = "images";
+
     // Sets the amount of time an idle thread will wait for a task before terminating
     private static final int KEEP_ALIVE_TIME = 1;
 
@@ -71,8 +178,52 @@ public class PhotoManager {
     // Sets the initial threadpool size to 8
     private static final int CORE_POOL_SIZE = 8;
 
-    // Sets the maximum threadpool size to 8
-    private static final int MAXIMUM_POOL_SIZE = 8;
+    /*
+     * The bounds for the number of simultaneous downloads. The download pool starts at
+     * CORE_POOL_SIZE threads, and is resized within these bounds based on measured throughput.
+     */
+    private static final int MINIMUM_DOWNLOAD_CONCURRENCY = 2;
+    private static final int MAXIMUM_DOWNLOAD_CONCURRENCY = 16;
+
+    /*
+     * The number of downloads from a single host that can run at the same time, so that one slow
+     * host can't hold every download thread. Browsers use the same limit for HTTP/1.1.
+     */
+    private static final int MAXIMUM_DOWNLOADS_PER_HOST = 6;
+
+    /*
+     * The number of tasks that can wait in each queue. A fast fling can bind hundreds of Views;
+     * without a limit, the queues grow with every row that scrolls past, and the app spends its
+     * time on images that nobody will see. When a queue is full, stale tasks are dropped first.
+     */
+    private static final int DOWNLOAD_QUEUE_CAPACITY = 96;
+    private static final int DECODE_QUEUE_CAPACITY = 32;
+
+    // The number of finished tasks that are kept for re-use
+    private static final int TASK_POOL_CAPACITY = 32;
+
+    /*
+     * The number of plain HTTP thumbnail downloads that the non-blocking engine runs at the same
+     * time. They share one selector thread; the download pool threads only resolve host names
+     * and hand the downloads over, and run the downloads that the engine can't.
+     */
+    private static final int NON_BLOCKING_TRANSFERS = 32;
+
+    /*
+     * The budget of the full-size photo pipeline. Only one or two full-size photos are wanted at
+     * a time, so the queues are short and the pool is small; what matters is that there's always
+     * a thread free for the photo that was just tapped. Full-size photos aren't cached, so the
+     * cache only needs a token size.
+     */
+    private static final int FULLSCREEN_DOWNLOAD_THREADS = 2;
+    private static final int FULLSCREEN_MINIMUM_DOWNLOAD_CONCURRENCY = 1;
+    private static final int FULLSCREEN_MAXIMUM_DOWNLOAD_CONCURRENCY = 4;
+    private static final int FULLSCREEN_DOWNLOADS_PER_HOST = 4;
+    private static final int FULLSCREEN_DOWNLOAD_QUEUE_CAPACITY = 8;
+    private static final int FULLSCREEN_DECODE_QUEUE_CAPACITY = 4;
+    private static final int FULLSCREEN_IMAGE_CACHE_SIZE = 1024 * 1024;
+    private static final int FULLSCREEN_DECODED_IMAGE_CACHE_SIZE = 1024 * 1024;
+    private static final int FULLSCREEN_TASK_POOL_CAPACITY = 4;
 
     /**
      * NOTE: This is the number of total available cores. On current versions of
@@ -83,78 +234,340 @@ public class PhotoManager {
     private static int NUMBER_OF_CORES = Runtime.getRuntime().availableProcessors();
 
     /*
-     * Creates a cache of byte arrays indexed by image URLs. As new items are added to the
-     * cache, the oldest items are ejected and subject to garbage collection.
+     * Creates a cache of byte arrays indexed by image keys. As new items are added to the
+     * cache, its eviction policies choose the items that are ejected and subject to garbage
+     * collection. The cache shrinks and grows when its budget changes (see scaleCaches()).
+     */
+    private final StripedMemoryCache<ImageKey, byte[]> mPhotoCache;
+
+    // Whether the memory caches evict by frequency (W-TinyLFU) instead of recency (LRU)
+    private final boolean mEvictByFrequency;
+
+    /*
+     * Creates a cache of decoded Bitmaps in front of the byte cache, holding a variant of each
+     * image for each size of View it was decoded for. A hit goes straight to the View, without
+     * a decode; a miss falls back to the byte cache, and then to the network.
      */
-    private final LruCache<URL, byte[]> mPhotoCache;
+    private final BitmapVariantCache mBitmapCache;
+
+    // The sizes of the two memory caches when memory isn't short, in bytes
+    private int mFullCacheSize;
+    private int mFullBitmapCacheSize;
 
-    // A queue of Runnables for the image download pool
-    private final BlockingQueue<Runnable> mDownloadWorkQueue;
+    // The share of their full sizes that the memory caches currently get
+    private static float sCacheScale = CACHE_SCALE_FULL;
 
-    // A queue of Runnables for the image decoding pool
-    private final BlockingQueue<Runnable> mDecodeWorkQueue;
+    // A queue of Runnables for the image download pool, with a separate queue for each host
+    private final HostFairDownloadQueue mDownloadWorkQueue;
+
+    /*
+     * A pool of PhotoManager tasks for re-use. Tasks are handed to a ThreadPool. The pool is
+     * bounded, so a burst of tasks doesn't stay allocated after it's over.
+     */
+    private final PhotoTaskPool mPhotoTaskPool;
 
-    // A queue of PhotoManager tasks. Tasks are handed to a ThreadPool.
-    private final Queue<PhotoTask> mPhotoTaskWorkQueue;
+    /*
+     * The tasks that are currently downloading or decoding, indexed by image key. A View that
+     * asks for an image that's already in progress is attached to the running task instead of
+     * starting another download. Only used on the UI thread.
+     */
+    private final HashMap<ImageKey, PhotoTask> mInFlightTasks =
+            new HashMap<ImageKey, PhotoTask>();
 
     // A managed pool of background download threads
     private final ThreadPoolExecutor mDownloadThreadPool;
 
-    // A managed pool of background decoder threads
-    private final ThreadPoolExecutor mDecodeThreadPool;
+    // Runs plain HTTP downloads on non-blocking sockets, or null if the pipeline doesn't
+    private final NioDownloadEngine mDownloadEngine;
+
+    // A managed pool of background decoder threads, each with its own deque of decodes
+    private final WorkStealingDecodeExecutor mDecodeThreadPool;
+
+    // Chooses the size of the download pool from the throughput of recent downloads
+    private final DownloadConcurrencyController mConcurrencyController;
+
+    // Hands out the sequence numbers that keep downloads with equal priority in FIFO order
+    private final AtomicLong mSequenceNumber = new AtomicLong();
+
+    // The number of tasks that were dropped before they finished
+    private final AtomicLong mDroppedTaskCount = new AtomicLong();
+
+    // The number of dropped tasks whose deadlines had passed
+    private final AtomicLong mExpiredTaskCount = new AtomicLong();
+
+    // Decides whether failed downloads are tried again
+    private final RetryPolicy mRetryPolicy = new RetryPolicy();
+
+    // The number of downloads that failed at once because their host's breaker was open
+    private final AtomicLong mFastFailureCount = new AtomicLong();
+
+    /*
+     * The circuit breakers, by host name. The pipelines share them, because a host that fails
+     * thumbnails is likely to fail full-size photos as well.
+     */
+    private static final ConcurrentHashMap<String, CircuitBreaker> sCircuitBreakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    /*
+     * The disk cache, behind the memory caches of both pipelines. It needs a Context, so it's
+     * null until initialize() is called.
+     */
+    private static volatile DiskImageCache sDiskCache;
+
+    /*
+     * The Bitmaps that decodes can draw into, shared by both pipelines. Declared before the
+     * static block, so that it exists when the pipelines' caches are created.
+     */
+    private static final BitmapPool sBitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+
+    // The size of the Bitmap pool when memory isn't short, in bytes
+    private static int sBitmapPoolFullSize = BITMAP_POOL_SIZE;
+
+    /*
+     * Orders the download queue. Runs the highest priority first. Among tasks with the same
+     * priority, runs the one with the earliest deadline, then tasks without a deadline, and
+     * otherwise the one that was queued first.
+     */
+    private static final Comparator<Runnable> DOWNLOAD_ORDER = new Comparator<Runnable>() {
+        @Override
+        public int compare(Runnable lhs, Runnable rhs) {
+            PhotoDownloadRunnable.TaskRunnableDownloadMethods lhsTask =
+                    ((PhotoDownloadRunnable) lhs).mPhotoTask;
+            PhotoDownloadRunnable.TaskRunnableDownloadMethods rhsTask =
+                    ((PhotoDownloadRunnable) rhs).mPhotoTask;
+            if (lhsTask.getPriority() != rhsTask.getPriority()) {
+                return lhsTask.getPriority() > rhsTask.getPriority() ? -1 : 1;
+            }
+            long lhsDeadline = lhsTask.getDeadline();
+            long rhsDeadline = rhsTask.getDeadline();
+            if (lhsDeadline != rhsDeadline) {
+
+                // No deadline sorts after every deadline
+                if (0 == lhsDeadline) {
+                    return 1;
+                }
+                if (0 == rhsDeadline) {
+                    return -1;
+                }
+                return lhsDeadline < rhsDeadline ? -1 : 1;
+            }
+            if (lhsTask.getSequenceNumber() != rhsTask.getSequenceNumber()) {
+                return lhsTask.getSequenceNumber() < rhsTask.getSequenceNumber() ? -1 : 1;
+            }
+            return 0;
+        }
+    };
 
     // An object that manages Messages in a Thread
     private Handler mHandler;
 
-    // A single instance of PhotoManager, used to implement the singleton pattern
-    private static PhotoManager sInstance = null;
+    // The state changes that haven't been applied to the Views yet
+    private final ConcurrentLinkedQueue<StateUpdate> mPendingUpdates =
+            new ConcurrentLinkedQueue<StateUpdate>();
+
+    // true while a batch is scheduled and hasn't started applying the pending updates
+    private final AtomicBoolean mBatchScheduled = new AtomicBoolean();
+
+    // Posted to mHandler to schedule a batch; waits for the next frame where that's possible
+    private final Runnable mFrameScheduler;
+
+    // How long the last batch took to apply, in nanoseconds
+    private volatile long mLastBatchNanos;
+
+    // The pipelines, indexed by PIPELINE_THUMBNAILS and PIPELINE_FULLSCREEN
+    private static final PhotoManager[] sPipelines = new PhotoManager[2];
 
     // A static block that sets class fields
     static {
         
         // The time unit for "keep alive" is in seconds
         KEEP_ALIVE_TIME_UNIT = TimeUnit.SECONDS;
+
+        // Lets HttpURLConnection keep connections to the image hosts open between downloads
+        HttpKeepAlive.configure();
         
-        // Creates a single static instance of PhotoManager
-        sInstance = new PhotoManager();
+        // Creates the thumbnail pipeline
+        Budget thumbnails = new Budget();
+        thumbnails.downloadThreads = CORE_POOL_SIZE;
+        thumbnails.minimumDownloadConcurrency = MINIMUM_DOWNLOAD_CONCURRENCY;
+        thumbnails.maximumDownloadConcurrency = MAXIMUM_DOWNLOAD_CONCURRENCY;
+        thumbnails.downloadsPerHost = MAXIMUM_DOWNLOADS_PER_HOST;
+        thumbnails.downloadQueueCapacity = DOWNLOAD_QUEUE_CAPACITY;
+        thumbnails.decodeThreads = NUMBER_OF_CORES;
+        thumbnails.decodeQueueCapacity = DECODE_QUEUE_CAPACITY;
+        thumbnails.cacheSize = IMAGE_CACHE_SIZE;
+        thumbnails.bitmapCacheSize = DECODED_IMAGE_CACHE_SIZE;
+        thumbnails.taskPoolCapacity = TASK_POOL_CAPACITY;
+        thumbnails.nonBlockingTransfers = NON_BLOCKING_TRANSFERS;
+        thumbnails.evictByFrequency = true;
+        thumbnails.name = "Thumbnails";
+        sPipelines[PIPELINE_THUMBNAILS] = new PhotoManager(thumbnails);
+
+        /*
+         * Creates the full-size photo pipeline. It gets half the cores for decoding, so that a
+         * full-size decode doesn't have to wait for the thumbnail decoders, or starve them.
+         */
+        Budget fullscreen = new Budget();
+        fullscreen.downloadThreads = FULLSCREEN_DOWNLOAD_THREADS;
+        fullscreen.minimumDownloadConcurrency = FULLSCREEN_MINIMUM_DOWNLOAD_CONCURRENCY;
+        fullscreen.maximumDownloadConcurrency = FULLSCREEN_MAXIMUM_DOWNLOAD_CONCURRENCY;
+        fullscreen.downloadsPerHost = FULLSCREEN_DOWNLOADS_PER_HOST;
+        fullscreen.downloadQueueCapacity = FULLSCREEN_DOWNLOAD_QUEUE_CAPACITY;
+        fullscreen.decodeThreads = Math.max(1, NUMBER_OF_CORES / 2);
+        fullscreen.decodeQueueCapacity = FULLSCREEN_DECODE_QUEUE_CAPACITY;
+        fullscreen.cacheSize = FULLSCREEN_IMAGE_CACHE_SIZE;
+        fullscreen.bitmapCacheSize = FULLSCREEN_DECODED_IMAGE_CACHE_SIZE;
+        fullscreen.taskPoolCapacity = FULLSCREEN_TASK_POOL_CAPACITY;
+        fullscreen.name = "Fullscreen";
+        sPipelines[PIPELINE_FULLSCREEN] = new PhotoManager(fullscreen);
+    }
+
+    /**
+     * The sizes of a pipeline's thread pools, queues, cache, and task pool
+     */
+    static final class Budget {
+
+        // The name of the pipeline, used to name its threads
+        String name;
+
+        // The initial number of download threads, and the bounds for resizing the pool
+        int downloadThreads;
+        int minimumDownloadConcurrency;
+        int maximumDownloadConcurrency;
+
+        // The number of downloads from a single host that can run at the same time
+        int downloadsPerHost;
+
+        // The number of downloads and decodes that can wait in the queues
+        int downloadQueueCapacity;
+        int decodeQueueCapacity;
+
+        // The number of decode threads
+        int decodeThreads;
+
+        // The size of the byte cache, in bytes
+        int cacheSize;
+
+        // The size of the decoded Bitmap cache, in bytes
+        int bitmapCacheSize;
+
+        // The number of finished tasks that are kept for re-use
+        int taskPoolCapacity;
+
+        /*
+         * The number of downloads that the non-blocking engine can run at the same time, or 0
+         * to run every download on a download pool thread
+         */
+        int nonBlockingTransfers;
+
+        /*
+         * Whether the memory caches admit and evict by how often an image is looked at
+         * (W-TinyLFU), so that a fling doesn't push out the images that are revisited
+         */
+        boolean evictByFrequency;
     }
+
     /**
      * Constructs the work queues and thread pools used to download and decode images.
+     *
+     * @param budget The sizes of the pipeline's pools, queues, and cache
      */
-    private PhotoManager() {
+    PhotoManager(Budget budget) {
 
         /*
-         * Creates a work queue for the pool of Thread objects used for downloading, using a linked
-         * list queue that blocks when the queue is empty.
+         * Creates a work queue for the pool of Thread objects used for downloading, using a queue
+         * that blocks when no download can run. The queue takes turns between hosts and limits
+         * the downloads running for each host; for each host, threads take the download with the
+         * highest priority instead of the oldest one. When the queue is full, it drops a stale
+         * or low-priority download to make room.
          */
-        mDownloadWorkQueue = new LinkedBlockingQueue<Runnable>();
+        mDownloadWorkQueue = new HostFairDownloadQueue(DOWNLOAD_ORDER,
+                budget.downloadsPerHost, budget.downloadQueueCapacity,
+                new HostFairDownloadQueue.OnDropListener() {
+                    @Override
+                    public void onDownloadDropped(Runnable download) {
+                        handleState((PhotoTask) ((PhotoDownloadRunnable) download).mPhotoTask,
+                                TASK_DROPPED);
+                    }
+                });
 
         /*
-         * Creates a work queue for the pool of Thread objects used for decoding, using a linked
-         * list queue that blocks when the queue is empty.
+         * Creates a pool for the set of task objects that control downloading and decoding.
+         * Tasks that don't fit are left for the garbage collector.
          */
-        mDecodeWorkQueue = new LinkedBlockingQueue<Runnable>();
+        mPhotoTaskPool = new PhotoTaskPool(budget.taskPoolCapacity);
 
         /*
-         * Creates a work queue for the set of of task objects that control downloading and
-         * decoding, using a linked list queue that blocks when the queue is empty.
+         * Creates a new pool of Thread objects for the download work queue. When a download
+         * finishes, the pool tells the queue, so that another download from the same host can
+         * start. If the queue has no room for a new download, the download is dropped.
          */
-        mPhotoTaskWorkQueue = new LinkedBlockingQueue<PhotoTask>();
+        mDownloadThreadPool = new ThreadPoolExecutor(
+                budget.downloadThreads, budget.downloadThreads,
+                KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, mDownloadWorkQueue,
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable download,
+                            ThreadPoolExecutor executor) {
+                        handleState((PhotoTask) ((PhotoDownloadRunnable) download).mPhotoTask,
+                                TASK_DROPPED);
+                    }
+                }) {
+            @Override
+            protected void afterExecute(Runnable download, Throwable throwable) {
+
+                // A download that was handed to the engine is finished when its transfer ends
+                if (!PhotoDownloadRunnable.consumeHandOff()) {
+                    mDownloadWorkQueue.onDownloadFinished(download);
+
+                    // A retry waits until the slot is free, so it can't run beside this attempt
+                    PhotoTask photoTask =
+                            (PhotoTask) ((PhotoDownloadRunnable) download).mPhotoTask;
+                    long delayMillis = photoTask.consumePendingRetry();
+                    if (delayMillis >= 0) {
+                        scheduleResubmit(photoTask, delayMillis);
+                    }
+                }
+            }
+        };
 
         /*
-         * Creates a new pool of Thread objects for the download work queue
+         * Starts every core thread now. While the pool has fewer threads than its core size,
+         * execute() hands a download straight to a new thread instead of offering it to the
+         * queue, which would skip the per-host limits and the priority order.
          */
-        mDownloadThreadPool = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE,
-                KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, mDownloadWorkQueue);
+        mDownloadThreadPool.prestartAllCoreThreads();
+
+        // Creates the non-blocking download engine, if the pipeline uses one
+        if (budget.nonBlockingTransfers > 0) {
+            mDownloadEngine = new NioDownloadEngine(
+                    "PhotoNioDownload-" + budget.name, budget.nonBlockingTransfers);
+        } else {
+            mDownloadEngine = null;
+        }
+
+        // Creates the controller that resizes the download pool
+        mConcurrencyController = new DownloadConcurrencyController(budget.downloadThreads,
+                budget.minimumDownloadConcurrency, budget.maximumDownloadConcurrency);
 
         /*
-         * Creates a new pool of Thread objects for the decoding work queue
+         * Creates a new pool of Thread objects for decoding, up to one per core. Each thread has
+         * its own work deque, and steals from the other threads when its deque is empty.
          */
-        mDecodeThreadPool = new ThreadPoolExecutor(NUMBER_OF_CORES, NUMBER_OF_CORES,
-                KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT, mDecodeWorkQueue);
+        mDecodeThreadPool = new WorkStealingDecodeExecutor(
+                budget.decodeThreads, budget.decodeQueueCapacity);
 
-        // Instantiates a new cache based on the cache size estimate
-        mPhotoCache = new LruCache<URL, byte[]>(IMAGE_CACHE_SIZE) {
+        // Instantiates the memory caches based on the cache size estimates
+        mFullCacheSize = budget.cacheSize;
+        mFullBitmapCacheSize = budget.bitmapCacheSize;
+        mEvictByFrequency = budget.evictByFrequency;
+        mPhotoCache = new StripedMemoryCache<ImageKey, byte[]>(budget.cacheSize, CACHE_SEGMENTS,
+                new StripedMemoryCache.PolicyFactory<ImageKey>() {
+                    @Override
+                    public EvictionPolicy<ImageKey> newPolicy() {
+                        return PhotoManager.this.<ImageKey>newEvictionPolicy();
+                    }
+                }) {
 
             /*
              * This overrides the default sizeOf() implementation to return the
@@ -162,277 +575,1190 @@ public class PhotoManager {
              */
 
             @Override
-            protected int sizeOf(URL paramURL, byte[] paramArrayOfByte) {
+            protected int sizeOf(ImageKey paramKey, byte[] paramArrayOfByte) {
                 return paramArrayOfByte.length;
             }
         };
+        mBitmapCache = new BitmapVariantCache(budget.bitmapCacheSize,
+                this.<BitmapVariantCache.VariantKey>newEvictionPolicy(), sBitmapPool);
         /*
-         * Instantiates a new anonymous Handler object and defines its
-         * handleMessage() method. The Handler *must* run on the UI thread, because it moves photo
-         * Bitmaps from the PhotoTask object to the View object.
-         * To force the Handler to run on the UI thread, it's defined as part of the PhotoManager
-         * constructor. The constructor is invoked when the class is first referenced, and that
-         * happens when the View invokes startDownload. Since the View runs on the UI Thread, so
-         * does the constructor and the Handler.
+         * Instantiates a new Handler object on the UI thread. The Handler *must* run on the UI
+         * thread, because it moves photo Bitmaps from the PhotoTask object to the View object.
+         * Instead of one Message for every state change, the Handler runs a single Runnable that
+         * waits for the next frame and then applies all the state changes that have arrived.
          */
-        mHandler = new Handler(Looper.getMainLooper()) {
+        mHandler = new Handler(Looper.getMainLooper());
 
-            /*
-             * handleMessage() defines the operations to perform when the
-             * Handler receives a new Message to process.
-             */
-            @Override
-            public void handleMessage(Message inputMessage) {
+        /*
+         * On Android 4.1 and above, the updates are applied in a Choreographer frame callback,
+         * just before the frame is drawn. On older versions, they're applied as soon as the
+         * Handler runs, which still batches everything that arrived in the meantime.
+         */
+        if (Build.VERSION.SDK_INT >= 16) {
+            mFrameScheduler = new ChoreographerFrameScheduler();
+        } else {
+            mFrameScheduler = mApplyUpdatesRunnable;
+        }
+    }
 
-                // Gets the image task from the incoming Message object.
-                PhotoTask photoTask = (PhotoTask) inputMessage.obj;
+    /*
+     * A state change that's waiting to be applied to a task's Views
+     */
+    private static final class StateUpdate {
+        final PhotoTask mPhotoTask;
+        final int mState;
 
-                // Sets an PhotoView that's a weak reference to the
-                // input ImageView
-                PhotoView localView = photoTask.getPhotoView();
+        StateUpdate(PhotoTask photoTask, int state) {
+            mPhotoTask = photoTask;
+            mState = state;
+        }
+    }
 
-                // If this input view isn't null
-                if (localView != null) {
+    /*
+     * Applies the pending updates. Runs on the UI thread.
+     */
+    private final Runnable mApplyUpdatesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingUpdates();
+        }
+    };
 
-                    /*
-                     * Gets the URL of the *weak reference* to the input
-                     * ImageView. The weak reference won't have changed, even if
-                     * the input ImageView has.
-                     */
-                    URL localURL = localView.getLocation();
+    /*
+     * Waits for the next vsync, and then applies the pending updates. Only created on Android 4.1
+     * and above, where Choreographer is available.
+     */
+    @TargetApi(16)
+    private final class ChoreographerFrameScheduler
+            implements Runnable, Choreographer.FrameCallback {
 
-                    /*
-                     * Compares the URL of the input ImageView to the URL of the
-                     * weak reference. Only updates the bitmap in the ImageView
-                     * if this particular Thread is supposed to be serving the
-                     * ImageView.
-                     */
-                    if (photoTask.getImageURL() == localURL)
-
-                        /*
-                         * Chooses the action to take, based on the incoming message
-                         */
-                        switch (inputMessage.what) {
-
-                            // If the download has started, sets background color to dark green
-                            case DOWNLOAD_STARTED:
-                                localView.setStatusResource(R.drawable.imagedownloading);
-                                break;
-
-                            /*
-                             * If the download is complete, but the decode is waiting, sets the
-                             * background color to golden yellow
-                             */
-                            case DOWNLOAD_COMPLETE:
-                                // Sets background color to golden yellow
-                                localView.setStatusResource(R.drawable.decodequeued);
-                                break;
-                            // If the decode has started, sets background color to orange
-                            case DECODE_STARTED:
-                                localView.setStatusResource(R.drawable.decodedecoding);
-                                break;
-                            /*
-                             * The decoding is done, so this sets the
-                             * ImageView's bitmap to the bitmap in the
-                             * incoming message
-                             */
-                            case TASK_COMPLETE:
-                                localView.setImageBitmap(photoTask.getImage());
-                                recycleTask(photoTask);
-                                break;
-                            // The download failed, sets the background color to dark red
-                            case DOWNLOAD_FAILED:
-                                localView.setStatusResource(R.drawable.imagedownloadfailed);
-                                
-                                // Attempts to re-use the Task object
-                                recycleTask(photoTask);
-                                break;
-                            default:
-                                // Otherwise, calls the super method
-                                super.handleMessage(inputMessage);
-                        }
-                }
-            }
-        };
+        // Runs on the UI thread, so Choreographer.getInstance() returns the UI thread's instance
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            applyPendingUpdates();
+        }
     }
 
-    /**
-     * Returns the PhotoManager object
-     * @return The global PhotoManager object
+    /*
+     * Queues a state change for the task's Views, and makes sure that a batch is scheduled. Can
+     * be called on any thread.
      */
-    public static PhotoManager getInstance() {
+    private void postUpdate(PhotoTask photoTask, int state) {
+        mPendingUpdates.offer(new StateUpdate(photoTask, state));
 
-        return sInstance;
+        // Only the first update after a batch has been applied schedules the next batch
+        if (mBatchScheduled.compareAndSet(false, true)) {
+            mHandler.post(mFrameScheduler);
+        }
     }
-    
-    /**
-     * Handles state messages for a particular task object
-     * @param photoTask A task object
-     * @param state The state of the task
+
+    /*
+     * Applies all the state changes that have arrived since the last batch. Several changes for
+     * the same task collapse into the last one, so each View gets at most one status change or
+     * bitmap per frame. States only move forward, so a finished task's last change is always
+     * TASK_COMPLETE, DOWNLOAD_FAILED, or TASK_DROPPED, and that one is never lost. A task isn't
+     * recycled until its last change has been applied here, so the same task object can't show
+     * up twice for different images.
      */
-    @SuppressLint("HandlerLeak")
-    public void handleState(PhotoTask photoTask, int state) {
-        switch (state) {
-            
-            // The task finished downloading and decoding the image
-            case TASK_COMPLETE:
-                
-                // Puts the image into cache
-                if (photoTask.isCacheEnabled()) {
-                    // If the task is set to cache the results, put the buffer
-                    // that was
-                    // successfully decoded into the cache
-                    mPhotoCache.put(photoTask.getImageURL(), photoTask.getByteBuffer());
-                }
-                
-                // Gets a Message object, stores the state in it, and sends it to the Handler
-                Message completeMessage = mHandler.obtainMessage(state, photoTask);
-                completeMessage.sendToTarget();
-                break;
-            
-            // The task finished downloading the image
-            case DOWNLOAD_COMPLETE:
-                /*
-                 * Decodes the image, by queuing the decoder object to run in the decoder
-                 * thread pool
-                 */
-                mDecodeThreadPool.execute(photoTask.getPhotoDecodeRunnable());
-            
-            // In all other cases, pass along the message without any other action.
-            default:
-                mHandler.obtainMessage(state, photoTask).sendToTarget();
-                break;
+    private void applyPendingUpdates() {
+        long startNanos = System.nanoTime();
+
+        /*
+         * Clears the flag before draining, so that an update that arrives while the batch is
+         * being applied schedules another batch instead of being left in the queue.
+         */
+        mBatchScheduled.set(false);
+        LinkedHashMap<PhotoTask, Integer> latestStates = new LinkedHashMap<PhotoTask, Integer>();
+        StateUpdate update;
+        while (null != (update = mPendingUpdates.poll())) {
+
+            /*
+             * A preview is decoded alongside the download, so it can arrive after the task has
+             * finished. It never replaces the task's final state.
+             */
+            Integer latestState = latestStates.get(update.mPhotoTask);
+            if ((PREVIEW_READY == update.mState) && (null != latestState)
+                    && isFinalState(latestState)) {
+                continue;
+            }
+
+            // Removes the task first, so that it moves to the end of the order
+            latestStates.remove(update.mPhotoTask);
+            latestStates.put(update.mPhotoTask, update.mState);
+        }
+        for (Map.Entry<PhotoTask, Integer> entry : latestStates.entrySet()) {
+            applyState(entry.getKey(), entry.getValue());
         }
+        mLastBatchNanos = System.nanoTime() - startNanos;
+    }
 
+    // Returns true for the states after which a task is finished and recycled
+    private static boolean isFinalState(int state) {
+        return (TASK_COMPLETE == state) || (DOWNLOAD_FAILED == state) || (TASK_DROPPED == state)
+                || (PREFETCH_COMPLETE == state);
     }
 
-    /**
-     * Cancels all Threads in the ThreadPool
+    /*
+     * Applies a state change to the Views that are waiting for a task. Runs on the UI thread.
      */
-    public static void cancelAll() {
+    private void applyState(PhotoTask photoTask, int state) {
 
         /*
-         * Creates an array of tasks that's the same size as the task work queue
+         * A preview is only shown while the task is still working on the final image. Once a
+         * preview is showing, the status drawables would only hide it, so they're skipped.
          */
-        PhotoTask[] taskArray = new PhotoTask[sInstance.mDownloadWorkQueue.size()];
-
-        // Populates the array with the task objects in the queue
-        sInstance.mDownloadWorkQueue.toArray(taskArray);
-
-        // Stores the array length in order to iterate over the array
-        int taskArraylen = taskArray.length;
+        Bitmap preview = photoTask.getPreviewImage();
+        int taskState = photoTask.getState();
+        boolean previewCurrent = (null != preview)
+                && ((PhotoTask.STATE_DOWNLOADING == taskState)
+                        || (PhotoTask.STATE_DECODE_QUEUED == taskState)
+                        || (PhotoTask.STATE_DECODING == taskState));
+        if (previewCurrent && ((DOWNLOAD_STARTED == state) || (DOWNLOAD_COMPLETE == state)
+                || (DECODE_STARTED == state))) {
+            state = PREVIEW_READY;
+        }
 
         /*
-         * Locks on the singleton to ensure that other processes aren't mutating Threads, then
-         * iterates over the array of tasks and interrupts the task's current Thread.
+         * Gets the Views that are still waiting for this task. A View is only returned
+         * if it still exists and is still bound to the task's URL, so the bitmap is only
+         * updated in Views that this particular task is supposed to be serving. More than
+         * one View can be waiting if several Views asked for the same URL.
          */
-        synchronized (sInstance) {
-            
-            // Iterates over the array of tasks
-            for (int taskArrayIndex = 0; taskArrayIndex < taskArraylen; taskArrayIndex++) {
-                
-                // Gets the task's current thread
-                Thread thread = taskArray[taskArrayIndex].mThreadThis;
-                
-                // if the Thread exists, post an interrupt to it
-                if (null != thread) {
-                    thread.interrupt();
-                }
+        for (PhotoView localView : photoTask.getPhotoViews()) {
+
+            /*
+             * Chooses the action to take, based on the state
+             */
+            switch (state) {
+
+                // If the download has started, sets background color to dark green
+                case DOWNLOAD_STARTED:
+                    localView.setStatusResource(R.drawable.imagedownloading);
+                    break;
+
+                /*
+                 * If the download is complete, but the decode is waiting, sets the
+                 * background color to golden yellow
+                 */
+                case DOWNLOAD_COMPLETE:
+                    // Sets background color to golden yellow
+                    localView.setStatusResource(R.drawable.decodequeued);
+                    break;
+                // If the decode has started, sets background color to orange
+                case DECODE_STARTED:
+                    localView.setStatusResource(R.drawable.decodedecoding);
+                    break;
+                /*
+                 * The decoding is done, so this sets the
+                 * ImageView's bitmap to the bitmap in the
+                 * task
+                 */
+                case TASK_COMPLETE:
+                    localView.setImageBitmap(photoTask.getImage());
+                    break;
+                // The download failed, sets the background color to dark red
+                case DOWNLOAD_FAILED:
+                    localView.setStatusResource(R.drawable.imagedownloadfailed);
+                    break;
+                /*
+                 * The task was dropped while the View still wanted the image, so the
+                 * View starts it again the next time it's drawn. Nothing else may redraw
+                 * it soon, so this asks for the draw, which also picks up bytes that were
+                 * cached when the decode was dropped.
+                 */
+                case TASK_DROPPED:
+                    localView.resetDownload();
+                    localView.invalidate();
+                    break;
+                /*
+                 * A prefetch finished without decoding, but the View asked for the image in the
+                 * meantime. The image is in the cache now, so the View starts again.
+                 */
+                case PREFETCH_COMPLETE:
+                    localView.resetDownload();
+                    localView.invalidate();
+                    break;
+                // A preview of a progressive JPEG is ready, so shows it until the final image
+                case PREVIEW_READY:
+                    if (previewCurrent) {
+                        localView.setImageBitmap(preview);
+                    }
+                    break;
+                default:
+                    break;
             }
         }
+
+        // When the task is finished, stops sharing it and attempts to re-use it
+        if (isFinalState(state)) {
+            finishTask(photoTask);
+        }
     }
 
     /**
-     * Stops a download Thread and removes it from the threadpool
-     *
-     * @param downloaderTask The download task associated with the Thread
-     * @param pictureURL The URL being downloaded
+     * Returns how long the UI thread spent applying the most recent batch of image updates
+     * @return The time in nanoseconds
      */
-    static public void removeDownload(PhotoTask downloaderTask, URL pictureURL) {
+    public long getLastBatchNanos() {
+        return mLastBatchNanos;
+    }
 
-        // If the Thread object still exists and the download matches the specified URL
-        if (downloaderTask != null && downloaderTask.getImageURL().equals(pictureURL)) {
+    /**
+     * Sets up the disk cache in the app's cache directory. Call this from the first Activity's
+     * onCreate(); until it's called, images are only cached in memory. The cache directory isn't
+     * read until the first download, which is on a background thread.
+     *
+     * @param context A Context of the app
+     */
+    public static synchronized void initialize(Context context) {
+        if (null == sDiskCache) {
+            File directory = new File(
+                    context.getApplicationContext().getCacheDir(), DISK_CACHE_DIRECTORY);
+            sDiskCache = new DiskImageCache(directory, DISK_CACHE_SIZE);
 
             /*
-             * Locks on this class to ensure that other processes aren't mutating Threads.
+             * Sizes the thumbnail caches for the device's heap. The full-size pipeline doesn't
+             * cache, so its token caches are left alone.
              */
-            synchronized (sInstance) {
-                
-                // Gets the Thread that the downloader task is running on
-                Thread thread = downloaderTask.getCurrentThread();
-
-                // If the Thread exists, posts an interrupt to it
-                if (null != thread)
-                    thread.interrupt();
+            ActivityManager activityManager =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            int cacheBudget = activityManager.getMemoryClass() * 1024 * 1024 / CACHE_HEAP_DIVISOR;
+            int bitmapCacheSize = (int) (cacheBudget * BITMAP_CACHE_SHARE);
+            int bitmapPoolSize = (int) (cacheBudget * BITMAP_POOL_SHARE);
+            PhotoManager thumbnails = sPipelines[PIPELINE_THUMBNAILS];
+            synchronized (thumbnails) {
+                thumbnails.mFullCacheSize = cacheBudget - bitmapCacheSize - bitmapPoolSize;
+                thumbnails.mFullBitmapCacheSize = bitmapCacheSize;
             }
-            /*
-             * Removes the download Runnable from the ThreadPool. This opens a Thread in the
-             * ThreadPool's work queue, allowing a task in the queue to start.
-             */
-            sInstance.mDownloadThreadPool.remove(downloaderTask.getHTTPDownloadRunnable());
+            thumbnails.scaleCaches(sCacheScale);
+            sBitmapPoolFullSize = bitmapPoolSize;
+            sBitmapPool.setMaxSize((int) (bitmapPoolSize * sCacheScale));
         }
     }
 
     /**
-     * Starts an image download and decode
+     * Shrinks the memory caches when the system asks the app to release memory. A trim never
+     * grows the caches; only onMemoryAvailable() does. Call this from the Activity's
+     * onTrimMemory(), which the system calls from API level 14 on. Must be called on the UI
+     * thread.
      *
-     * @param imageView The ImageView that will get the resulting Bitmap
-     * @param cacheFlag Determines if caching should be used
-     * @return The task instance that will handle the work
+     * @param level The level passed to onTrimMemory()
      */
-    static public PhotoTask startDownload(
-            PhotoView imageView,
-            boolean cacheFlag) {
+    public static synchronized void onTrimMemory(int level) {
+        float scale;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
 
-        /*
-         * Gets a task from the pool of tasks, returning null if the pool is empty
-         */
-        PhotoTask downloadTask = sInstance.mPhotoTaskWorkQueue.poll();
-
-        // If the queue was empty, create a new task instead.
-        if (null == downloadTask) {
-            downloadTask = new PhotoTask();
-        }
+            // The process is next in line to be killed, so the caches won't be used again
+            scale = CACHE_SCALE_EMPTY;
+        } else if ((level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+                || (ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL == level)) {
+            scale = CACHE_SCALE_CRITICAL;
+        } else if (ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN == level) {
 
-        // Initializes the task
-        downloadTask.initializeDownloaderTask(PhotoManager.sInstance, imageView, cacheFlag);
-        
-        /*
-         * Provides the download task with the cache buffer corresponding to the URL to be
-         * downloaded.
-         */
-        downloadTask.setByteBuffer(sInstance.mPhotoCache.get(downloadTask.getImageURL()));
+            // Keeping the images makes coming back to the grid instant, so nothing changes
+            return;
+        } else {
 
-        // If the byte buffer was empty, the image wasn't cached
-        if (null == downloadTask.getByteBuffer()) {
-            
             /*
-             * "Executes" the tasks' download Runnable in order to download the image. If no
-             * Threads are available in the thread pool, the Runnable waits in the queue.
+             * TRIM_MEMORY_BACKGROUND, TRIM_MEMORY_RUNNING_LOW, and TRIM_MEMORY_RUNNING_MODERATE.
+             * Even the moderate level means the device is running low on memory.
              */
-            sInstance.mDownloadThreadPool.execute(downloadTask.getHTTPDownloadRunnable());
+            scale = CACHE_SCALE_LOW;
+        }
 
-            // Sets the display to show that the image is queued for downloading and decoding.
-            imageView.setStatusResource(R.drawable.imagequeued);
-        
-        // The image was cached, so no download is required.
-        } else {
-            
-            /*
-             * Signals that the download is "complete", because the byte array already contains the
-             * undecoded image. The decoding starts.
+        // Caches that an earlier, higher level shrank further stay that size
+        setCacheScale(Math.min(scale, sCacheScale));
+    }
+
+    /**
+     * Empties the memory caches. Call this from the Activity's onLowMemory(), which is all
+     * that the system calls before API level 14.
+     */
+    public static synchronized void onLowMemory() {
+        setCacheScale(CACHE_SCALE_EMPTY);
+    }
+
+    /**
+     * Lets the memory caches grow back to their full sizes. Call this when the app comes back
+     * to the foreground, where the system no longer considers it for trimming.
+     */
+    public static synchronized void onMemoryAvailable() {
+        setCacheScale(CACHE_SCALE_FULL);
+    }
+
+    /**
+     * Halves the memory caches after a decode ran out of memory, so that the next try has
+     * room. Can be called on any thread.
+     */
+    static synchronized void onDecodeOutOfMemory() {
+        setCacheScale(sCacheScale / 2);
+    }
+
+    // Scales the memory caches of every pipeline. The caller holds the class lock.
+    private static void setCacheScale(float scale) {
+        if (scale == sCacheScale) {
+            return;
+        }
+        sCacheScale = scale;
+        for (PhotoManager pipeline : sPipelines) {
+            pipeline.scaleCaches(scale);
+        }
+        sBitmapPool.setMaxSize((int) (sBitmapPoolFullSize * scale));
+    }
+
+    /**
+     * Returns the pool of Bitmaps that decodes draw into
+     * @return The pool
+     */
+    static BitmapPool getBitmapPool() {
+        return sBitmapPool;
+    }
+
+    /**
+     * Returns the share of decodes that drew into a re-used Bitmap instead of allocating one
+     * @return A number between 0 and 1
+     */
+    public static float getBitmapPoolHitRate() {
+        return sBitmapPool.getHitRate();
+    }
+
+    // Resizes the memory caches to a share of their full sizes
+    private synchronized void scaleCaches(float scale) {
+        mPhotoCache.setMaxSize(Math.max(1, (int) (mFullCacheSize * scale)));
+        mBitmapCache.setMaxSize(Math.max(1, (int) (mFullBitmapCacheSize * scale)));
+    }
+
+    // Creates an eviction policy for one of this pipeline's memory caches
+    private <K> EvictionPolicy<K> newEvictionPolicy() {
+        return mEvictByFrequency ? new WTinyLfuPolicy<K>() : new LruPolicy<K>();
+    }
+
+    /**
+     * Starts recording the lookups in the byte cache, so that eviction policies can be compared
+     * on them (see compareEvictionPolicies()). Starts a new recording if one is running.
+     */
+    public void startCacheTrace() {
+        mPhotoCache.setTrace(new CacheSimulator.Trace());
+    }
+
+    /**
+     * Replays the recorded byte cache lookups through simulated LRU and W-TinyLFU caches of
+     * the byte cache's current size, and stops recording
+     *
+     * @return A line with the hit rate of each policy, or null if nothing was recorded
+     */
+    public String compareEvictionPolicies() {
+        CacheSimulator.Trace trace = mPhotoCache.getTrace();
+        mPhotoCache.setTrace(null);
+        return (null == trace) ? null : CacheSimulator.compare(trace, mPhotoCache.maxSize());
+    }
+
+    /**
+     * Returns the disk cache
+     * @return The cache, or null if initialize() hasn't been called
+     */
+    static DiskImageCache getDiskCache() {
+        return sDiskCache;
+    }
+
+    /**
+     * Returns the thumbnail pipeline
+     * @return The PhotoManager object for thumbnails
+     */
+    public static PhotoManager getInstance() {
+
+        return sPipelines[PIPELINE_THUMBNAILS];
+    }
+
+    /**
+     * Returns one of the pipelines
+     * @param pipeline PIPELINE_THUMBNAILS or PIPELINE_FULLSCREEN
+     * @return The PhotoManager object for the pipeline
+     */
+    public static PhotoManager getPipeline(int pipeline) {
+        return sPipelines[pipeline];
+    }
+    
+    /**
+     * Returns the next sequence number for a task that's being queued
+     * @return A number that's larger than any number returned before
+     */
+    long nextSequenceNumber() {
+        return mSequenceNumber.incrementAndGet();
+    }
+
+    /**
+     * Ranks a download by how visible its PhotoView is. Must be called on the UI thread.
+     *
+     * @param photoView The View that will show the image, or null if no View is waiting for it
+     * @return The download priority
+     */
+    static int computePriority(PhotoView photoView) {
+
+        // A task that isn't bound to a View is only warming the cache
+        if (null == photoView) {
+            return PRIORITY_PREFETCH;
+        }
+
+        int area = photoView.getWidth() * photoView.getHeight();
+
+        /*
+         * A View that hasn't been laid out yet is being bound by the adapter so that it can be
+         * shown, so it's treated as fully visible until the next re-ranking.
+         */
+        if (0 == area) {
+            return PRIORITY_VISIBLE + 100;
+        }
+
+        // Gets the part of the View that's actually on screen
+        Rect visibleRect = new Rect();
+        if (!photoView.isShown() || !photoView.getGlobalVisibleRect(visibleRect)) {
+            return PRIORITY_OFFSCREEN;
+        }
+        return PRIORITY_VISIBLE + (visibleRect.width() * visibleRect.height() * 100) / area;
+    }
+
+    /**
+     * Re-ranks the downloads that are waiting in the queue, based on where their PhotoViews are
+     * now. The priority queue only orders a task when it's inserted, so the waiting tasks are
+     * drained, given new priorities, and put back. Tasks that are already downloading aren't
+     * affected.
+     * <p>
+     * Call this on the UI thread after the visible part of the grid changes.
+     */
+    static public void reprioritizeDownloads() {
+        for (PhotoManager pipeline : sPipelines) {
+            pipeline.reprioritizeQueuedDownloads();
+        }
+    }
+
+    /*
+     * Re-ranks the downloads that are waiting in this pipeline's queue
+     */
+    private void reprioritizeQueuedDownloads() {
+
+        // Takes the waiting downloads out of the queue
+        ArrayList<Runnable> queuedDownloads =
+                new ArrayList<Runnable>(mDownloadWorkQueue.size());
+        mDownloadWorkQueue.drainTo(queuedDownloads);
+
+        // Ranks each download again, and puts it back in the queue in its new position
+        for (Runnable download : queuedDownloads) {
+            ((PhotoTask) ((PhotoDownloadRunnable) download).mPhotoTask).updatePriority();
+            mDownloadWorkQueue.offer(download);
+        }
+    }
+
+    /**
+     * Handles state messages for a particular task object
+     * @param photoTask A task object
+     * @param state The state of the task
+     */
+    @SuppressLint("HandlerLeak")
+    public void handleState(PhotoTask photoTask, int state) {
+        switch (state) {
+            
+            // The task finished downloading and decoding the image
+            case TASK_COMPLETE:
+                
+                // Puts the image into cache
+                if (photoTask.isCacheEnabled()) {
+                    /*
+                     * If the task is set to cache the results, put the buffer that was
+                     * successfully decoded into the cache. An image that was decoded from the
+                     * disk cache has no buffer, and stays on disk.
+                     */
+                    if (null != photoTask.getByteBuffer()) {
+                        mPhotoCache.put(photoTask.getImageKey(), photoTask.getByteBuffer());
+                    }
+
+                    // Keeps the decoded Bitmap as well, as the variant for Views of this size
+                    mBitmapCache.put(photoTask.getImageKey(), photoTask.getTargetWidth(),
+                            photoTask.getTargetHeight(), photoTask.getImage());
+                }
+                
+                // Queues the state change for the next batch of View updates
+                postUpdate(photoTask, state);
+                break;
+            
+            // The task finished downloading the image
+            case DOWNLOAD_COMPLETE:
+
+                /*
+                 * If the image came from the network, uses the download to tune the pool size,
+                 * and records that the host is healthy
+                 */
+                if (photoTask.getDownloadMillis() >= 0) {
+                    recordDownload(photoTask.getByteBuffer().length,
+                            photoTask.getDownloadMillis());
+                    getCircuitBreaker(photoTask.getImageKey().getHost()).onSuccess();
+
+                    // Saves the image for the next run of the app
+                    DiskImageCache diskCache = sDiskCache;
+                    if ((null != diskCache) && photoTask.isCacheEnabled()) {
+                        diskCache.put(
+                                DiskImageCache.keyFor(photoTask.getImageKey().getCanonicalURL()),
+                                photoTask.getByteBuffer());
+                    }
+                }
+
+                /*
+                 * A prefetched image that no View has asked for yet goes into the cache without
+                 * being decoded. If a View asks for it while the task is finishing, the View
+                 * starts again and finds the image in the cache.
+                 */
+                if (photoTask.isPrefetch() && photoTask.getPhotoViews().isEmpty()) {
+
+                    // An image that was found in the disk cache is left there
+                    if (null != photoTask.getByteBuffer()) {
+                        mPhotoCache.put(photoTask.getImageKey(), photoTask.getByteBuffer());
+                    }
+                    if (photoTask.compareAndSetState(
+                            PhotoTask.STATE_DECODE_QUEUED, PhotoTask.STATE_FINISHED)) {
+                        postUpdate(photoTask, PREFETCH_COMPLETE);
+                    } else {
+                        handleState(photoTask, TASK_DROPPED);
+                    }
+                    break;
+                }
+
+                /*
+                 * Decodes the image, by queuing the decoder object to run in the decoder
+                 * thread pool
+                 */
+                executeDecode(photoTask);
+                break;
+
+            /*
+             * The task was dropped, because it was stale, because a queue was full, or because
+             * it was cancelled. Makes sure that no stage runs it after this.
+             */
+            case TASK_DROPPED:
+                photoTask.markCancelled();
+                mDroppedTaskCount.incrementAndGet();
+                if (photoTask.isExpired()) {
+                    mExpiredTaskCount.incrementAndGet();
+                }
+                postUpdate(photoTask, state);
+                break;
+            
+            // In all other cases, pass along the state change without any other action.
+            default:
+                postUpdate(photoTask, state);
+                break;
+        }
+
+    }
+
+    /*
+     * Queues a task's decode. If the decode queue is full, drops the queued decodes whose Views
+     * are gone or whose deadlines have passed, and tries again; if there's still no room, the
+     * new decode is dropped. A dropped image is put in the byte cache first, if the task uses
+     * the cache, so that the View doesn't download it again when it asks for it the next time.
+     */
+    private void executeDecode(PhotoTask photoTask) {
+        try {
+            mDecodeThreadPool.execute(photoTask.getPhotoDecodeRunnable());
+        } catch (RejectedExecutionException e) {
+            for (Runnable decode : mDecodeThreadPool.getQueuedTasks()) {
+
+                // Preview decodes are left alone; they're small and release their own task
+                if (!(decode instanceof PhotoDecodeRunnable)) {
+                    continue;
+                }
+                PhotoTask queuedTask = (PhotoTask) ((PhotoDecodeRunnable) decode).mPhotoTask;
+                if ((queuedTask.isStale() || queuedTask.isExpired())
+                        && mDecodeThreadPool.remove(decode)) {
+                    handleState(queuedTask, TASK_DROPPED);
+                }
+            }
+            try {
+                mDecodeThreadPool.execute(photoTask.getPhotoDecodeRunnable());
+            } catch (RejectedExecutionException e2) {
+                if (photoTask.isCacheEnabled() && (null != photoTask.getByteBuffer())) {
+                    mPhotoCache.put(photoTask.getImageKey(), photoTask.getByteBuffer());
+                }
+                handleState(photoTask, TASK_DROPPED);
+                return;
+            }
+        }
+
+        // Tells the Views that the decode is queued
+        postUpdate(photoTask, DOWNLOAD_COMPLETE);
+    }
+
+    /*
+     * Queues the decode of a progressive JPEG preview on the decode pool. Previews aren't worth
+     * making room for, so if the decode queue is full, the preview is skipped.
+     * Returns false if the preview wasn't queued.
+     */
+    boolean decodePreview(PhotoPreviewDecodeRunnable previewDecode) {
+        try {
+            mDecodeThreadPool.execute(previewDecode);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of tasks that were dropped before they finished, because their Views
+     * no longer needed them, because a work queue was full, or because they were cancelled
+     * @return The number of dropped tasks since the app started
+     */
+    public long getDroppedTaskCount() {
+        return mDroppedTaskCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that were dropped because their deadlines passed before they
+     * could run. A high count for prefetches means that they're started too far ahead.
+     * @return The number of expired tasks since the app started
+     */
+    public long getExpiredTaskCount() {
+        return mExpiredTaskCount.get();
+    }
+
+    /*
+     * Passes a completed network download to the concurrency controller, and resizes the download
+     * pool if the controller chooses a new level.
+     */
+    private void recordDownload(int byteCount, long downloadMillis) {
+        if (mConcurrencyController.onDownloadComplete(
+                byteCount, downloadMillis, SystemClock.elapsedRealtime())) {
+            int concurrency = mConcurrencyController.getConcurrency();
+
+            /*
+             * The core size can't be larger than the maximum size, so the order of the two calls
+             * depends on whether the pool is growing or shrinking. Threads above the new size
+             * finish their current download and then time out.
+             */
+            if (concurrency > mDownloadThreadPool.getMaximumPoolSize()) {
+                mDownloadThreadPool.setMaximumPoolSize(concurrency);
+                mDownloadThreadPool.setCorePoolSize(concurrency);
+
+                // The new threads take from the queue, like the ones started with the pool
+                mDownloadThreadPool.prestartAllCoreThreads();
+            } else {
+                mDownloadThreadPool.setCorePoolSize(concurrency);
+                mDownloadThreadPool.setMaximumPoolSize(concurrency);
+            }
+        }
+    }
+
+    /*
+     * Returns the circuit breaker for a host, creating it the first time the host is seen
+     */
+    private static CircuitBreaker getCircuitBreaker(String host) {
+        CircuitBreaker breaker = sCircuitBreakers.get(host);
+        if (null == breaker) {
+            CircuitBreaker newBreaker = new CircuitBreaker();
+            breaker = sCircuitBreakers.putIfAbsent(host, newBreaker);
+            if (null == breaker) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * Chooses the URL to load an image from. While the host of the preferred URL is failing, and
+     * the host of the fallback URL isn't, returns the fallback, so that the View shows something
+     * instead of waiting for a host that's down.
+     *
+     * @param preferredKey The key of the image the View wants
+     * @param fallbackKey The key of another URL for the same image, such as a smaller version,
+     * or null
+     * @return The key of the URL to load
+     */
+    static ImageKey selectImage(ImageKey preferredKey, ImageKey fallbackKey) {
+        if ((null == fallbackKey) || (null == preferredKey)
+                || getCircuitBreaker(preferredKey.getHost()).isClosed()) {
+            return preferredKey;
+        }
+        return getCircuitBreaker(fallbackKey.getHost()).isClosed() ? fallbackKey : preferredKey;
+    }
+
+    /**
+     * Decides whether a failed download is tried again, and if so, schedules it. Records the
+     * failure with the host's circuit breaker. Called on the thread that saw the failure, while
+     * the task is still in the DOWNLOADING state.
+     *
+     * @param photoTask The task whose download failed
+     * @return true if the download will be tried again, in which case the failure isn't reported
+     */
+    boolean retryDownload(final PhotoTask photoTask) {
+
+        // A cancelled download didn't fail because of the host, and isn't wanted any more
+        if (photoTask.isCancelled()) {
+            return false;
+        }
+        long now = SystemClock.uptimeMillis();
+        CircuitBreaker breaker = getCircuitBreaker(photoTask.getImageKey().getHost());
+        breaker.onFailure(now);
+
+        // An image that nobody will see isn't worth another attempt
+        int attempt = photoTask.getAttemptCount();
+        if (photoTask.isStale() || photoTask.isExpired() || !mRetryPolicy.tryRetry(attempt)) {
+            return false;
+        }
+        if (!photoTask.compareAndSetState(
+                PhotoTask.STATE_DOWNLOADING, PhotoTask.STATE_DOWNLOAD_QUEUED)) {
+            return false;
+        }
+
+        /*
+         * A failure seen on a download pool thread is reported while the attempt still holds
+         * its slot in the queue. If the retry were queued now, the same runnable could be
+         * dispatched again before the slot is given back, so the pool schedules it in
+         * afterExecute(). A transfer on the non-blocking engine has already given back its
+         * slot, so its retry is scheduled now.
+         */
+        long delayMillis = mRetryPolicy.getBackoffMillis(attempt);
+        if (photoTask.getCurrentThread() == Thread.currentThread()) {
+            photoTask.setPendingRetry(delayMillis);
+        } else {
+            scheduleResubmit(photoTask, delayMillis);
+        }
+        return true;
+    }
+
+    /*
+     * Waits on the UI thread's Handler, so the wait doesn't hold a download thread, and then
+     * puts the download back in the host-fair queue behind the downloads that are already
+     * waiting. Must only be called once the failed attempt has given back its slot.
+     */
+    private void scheduleResubmit(final PhotoTask photoTask, long delayMillis) {
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                resubmitDownload(photoTask);
+            }
+        }, delayMillis);
+    }
+
+    /*
+     * Puts a download back in the queue at once, after the non-blocking engine couldn't handle
+     * its host's response. The engine has already given back the download's slot. The host
+     * isn't failing, so the breaker and the retry budget are left alone. Called on the
+     * engine's selector thread.
+     */
+    void rerunDownload(PhotoTask photoTask) {
+        mDownloadThreadPool.execute(photoTask.getHTTPDownloadRunnable());
+    }
+
+    /*
+     * Puts a download that's being retried back in the queue, once its wait is over. If the
+     * host's breaker opened in the meantime, the download fails instead. Runs on the UI thread.
+     */
+    private void resubmitDownload(PhotoTask photoTask) {
+        if (photoTask.isCancelled()) {
+            handleState(photoTask, TASK_DROPPED);
+            return;
+        }
+        CircuitBreaker breaker = getCircuitBreaker(photoTask.getImageKey().getHost());
+        if (!breaker.allowRequest(SystemClock.uptimeMillis())) {
+            mFastFailureCount.incrementAndGet();
+            if (photoTask.compareAndSetState(
+                    PhotoTask.STATE_DOWNLOAD_QUEUED, PhotoTask.STATE_FINISHED)) {
+                handleState(photoTask, DOWNLOAD_FAILED);
+            } else {
+                handleState(photoTask, TASK_DROPPED);
+            }
+            return;
+        }
+        photoTask.updatePriority();
+        mDownloadThreadPool.execute(photoTask.getHTTPDownloadRunnable());
+    }
+
+    /**
+     * Returns the number of failed downloads that were tried again
+     * @return The retry count
+     */
+    public long getRetryCount() {
+        return mRetryPolicy.getRetryCount();
+    }
+
+    /**
+     * Returns the number of failed downloads that weren't tried again because the retry budget
+     * had run out
+     * @return The refused retry count
+     */
+    public long getRetriesRefusedCount() {
+        return mRetryPolicy.getRefusedCount();
+    }
+
+    /**
+     * Returns the number of downloads that failed without being tried, because their host's
+     * circuit breaker was open
+     * @return The fast failure count
+     */
+    public long getFastFailureCount() {
+        return mFastFailureCount.get();
+    }
+
+    /**
+     * Returns the pipeline's non-blocking download engine
+     * @return The engine, or null if every download runs on a download pool thread
+     */
+    NioDownloadEngine getDownloadEngine() {
+        return mDownloadEngine;
+    }
+
+    /**
+     * Returns the share of the non-blocking engine's downloads that re-used an open connection
+     * instead of connecting again. Downloads on HttpURLConnection use the platform's connection
+     * pool, which doesn't report re-use.
+     * @return A number between 0 and 1, or 0 if the pipeline has no engine or hasn't downloaded
+     */
+    public float getConnectionReuseRatio() {
+        return (null == mDownloadEngine) ? 0.0f : mDownloadEngine.getConnectionReuseRatio();
+    }
+
+    /**
+     * Tells the download queue that a download that was handed to the non-blocking engine has
+     * ended, so that another download from the same host can start
+     * @param download The download's runnable
+     */
+    void onDownloadFinished(Runnable download) {
+        mDownloadWorkQueue.onDownloadFinished(download);
+    }
+
+    /**
+     * Returns the number of images that are currently allowed to download at the same time
+     * @return The current size of the download pool
+     */
+    public int getDownloadConcurrency() {
+        return mConcurrencyController.getConcurrency();
+    }
+
+    /**
+     * Returns the number of downloads waiting for a host
+     * @param host A host name
+     * @return The number of queued downloads for the host
+     */
+    public int getDownloadQueueDepth(String host) {
+        return mDownloadWorkQueue.getQueueDepth(host);
+    }
+
+    /**
+     * Returns the number of downloads waiting for each host
+     * @return A map from host name to the number of queued downloads
+     */
+    public Map<String, Integer> getDownloadQueueDepths() {
+        return mDownloadWorkQueue.getQueueDepths();
+    }
+
+    /**
+     * Cancels all the tasks that are queued or running. Queued tasks are taken out of their
+     * queues; running tasks have their Threads interrupted, and drop their results when they
+     * stop. The Views that were waiting start their downloads again the next time they're drawn.
+     * Must be called on the UI thread.
+     */
+    public static void cancelAll() {
+        for (PhotoManager pipeline : sPipelines) {
+            pipeline.cancelAllTasks();
+        }
+    }
+
+    /*
+     * Cancels all the tasks in this pipeline. Must be called on the UI thread.
+     */
+    private void cancelAllTasks() {
+
+        // Copies the tasks, because dropping a task can change the in-flight table
+        ArrayList<PhotoTask> inFlightTasks = new ArrayList<PhotoTask>(mInFlightTasks.values());
+
+        // Cancels each task without taking a lock; see PhotoTask.cancel()
+        for (PhotoTask task : inFlightTasks) {
+            cancelTask(task);
+        }
+    }
+
+    /*
+     * Cancels a task. If it was waiting in a queue, removes it and drops it here, because its
+     * runnable will never run to report the drop. Must be called on the UI thread.
+     */
+    private void cancelTask(PhotoTask task) {
+        if (!task.cancel()) {
+            return;
+        }
+        if (mDownloadThreadPool.remove(task.getHTTPDownloadRunnable())
+                || mDecodeThreadPool.remove(task.getPhotoDecodeRunnable())) {
+            handleState(task, TASK_DROPPED);
+        }
+    }
+
+    /**
+     * Stops a download Thread and removes it from the threadpool. If other Views are waiting for
+     * the same image, the View is detached from the task and the download keeps running.
+     *
+     * @param downloaderTask The download task associated with the Thread
+     * @param pictureKey The key of the image being downloaded
+     * @param photoView The View that no longer needs the image
+     */
+    static public void removeDownload(PhotoTask downloaderTask, ImageKey pictureKey,
+            PhotoView photoView) {
+
+        // If the Thread object still exists and the download matches the specified URL
+        if (downloaderTask != null && downloaderTask.getImageKey().equals(pictureKey)) {
+
+            // If another View still wants the image, only detaches this View
+            if (downloaderTask.removePhotoView(photoView)) {
+                return;
+            }
+
+            /*
+             * Cancels the task and interrupts its Thread, if it has one. If the task was still
+             * in a queue, this removes it, which opens a Thread in the pool and allows a task in
+             * the queue to start. Otherwise, the runnable that's working on the task drops it
+             * when it sees the cancellation. The task belongs to the pipeline that started it.
+             */
+            downloaderTask.getPhotoManager().cancelTask(downloaderTask);
+        }
+    }
+
+    /**
+     * Starts an image download and decode, in the pipeline that the View has chosen
+     *
+     * @param imageView The ImageView that will get the resulting Bitmap
+     * @param cacheFlag Determines if caching should be used
+     * @return The task instance that will handle the work, or null if the decoded image was
+     * cached and has already been shown
+     */
+    static public PhotoTask startDownload(
+            PhotoView imageView,
+            boolean cacheFlag) {
+        return sPipelines[imageView.getPipeline()].startTask(imageView, cacheFlag);
+    }
+
+    /**
+     * Returns the number of images that were shown from the decoded Bitmap cache, without
+     * being decoded again
+     * @return The hit count
+     */
+    public int getBitmapCacheHitCount() {
+        return mBitmapCache.hitCount();
+    }
+
+    /**
+     * Returns the number of images that were shown by downscaling a larger decoded variant,
+     * without being decoded again
+     * @return The downscale count
+     */
+    public int getBitmapCacheDownscaleCount() {
+        return mBitmapCache.downscaleCount();
+    }
+
+    /*
+     * Starts an image download and decode in this pipeline. Must be called on the UI thread.
+     */
+    private PhotoTask startTask(PhotoView imageView, boolean cacheFlag) {
+
+        /*
+         * If the image has already been decoded for a View of this size, shows it at once. No
+         * task is needed, so none is returned.
+         */
+        if (cacheFlag) {
+            Bitmap cachedBitmap = mBitmapCache.get(imageView.getLocation(),
+                    imageView.getWidth(), imageView.getHeight());
+            if (null != cachedBitmap) {
+                imageView.setImageBitmap(cachedBitmap);
+
+                // The View holds the Bitmap now
+                sBitmapPool.release(cachedBitmap);
+                return null;
+            }
+        }
+
+        /*
+         * If the image is already being downloaded or decoded for another View, attaches this
+         * View to the running task instead of fetching the same bytes again.
+         */
+        PhotoTask inFlightTask = mInFlightTasks.get(imageView.getLocation());
+        if ((null != inFlightTask) && (inFlightTask.isCacheEnabled() == cacheFlag)
+                && (PhotoTask.STATE_CANCELLED != inFlightTask.getState())) {
+            inFlightTask.addPhotoView(imageView);
+
+            /*
+             * If the download is still waiting in the queue, re-queues it so that it's ranked
+             * by the most visible of its Views. A View is waiting for the image now, so a
+             * prefetch's deadline no longer applies.
              */
+            Runnable downloadRunnable = inFlightTask.getHTTPDownloadRunnable();
+            boolean queued = mDownloadWorkQueue.remove(downloadRunnable);
+            inFlightTask.setDeadline(0);
+            if (queued) {
+                inFlightTask.updatePriority();
+                mDownloadWorkQueue.offer(downloadRunnable);
+            }
+
+            // Sets the display to show that the image is queued for downloading and decoding.
+            imageView.setStatusResource(R.drawable.imagequeued);
+            return inFlightTask;
+        }
+
+        /*
+         * Gets a task from the pool of tasks. If the pool is empty, this creates a new task
+         * instead.
+         */
+        PhotoTask downloadTask = mPhotoTaskPool.acquire();
+
+        // Initializes the task
+        downloadTask.initializeDownloaderTask(this, imageView, cacheFlag);
+
+        // Lets other Views that ask for this URL share the task
+        mInFlightTasks.put(downloadTask.getImageKey(), downloadTask);
+
+        /*
+         * If the image has been decoded for a somewhat larger View, the decode stage draws that
+         * variant smaller, instead of decoding the image again. The drawing is too slow for the
+         * UI thread, so it goes through the decode queue like any other cached image.
+         */
+        Bitmap sourceImage = cacheFlag ? mBitmapCache.getLargerVariant(imageView.getLocation(),
+                imageView.getWidth(), imageView.getHeight()) : null;
+        if (null != sourceImage) {
+            downloadTask.setSourceImage(sourceImage);
+            downloadTask.compareAndSetState(PhotoTask.STATE_IDLE, PhotoTask.STATE_DECODE_QUEUED);
+            handleState(downloadTask, DOWNLOAD_COMPLETE);
+            return downloadTask;
+        }
+        
+        /*
+         * Provides the download task with the cache buffer corresponding to the URL to be
+         * downloaded.
+         */
+        downloadTask.setByteBuffer(mPhotoCache.get(downloadTask.getImageKey()));
+
+        /*
+         * If the image wasn't cached and its host is failing, fails the task at once, instead of
+         * giving a download thread to a request that will most likely fail as well
+         */
+        if ((null == downloadTask.getByteBuffer())
+                && !getCircuitBreaker(downloadTask.getImageKey().getHost())
+                        .allowRequest(SystemClock.uptimeMillis())) {
+            mFastFailureCount.incrementAndGet();
+            downloadTask.compareAndSetState(PhotoTask.STATE_IDLE, PhotoTask.STATE_FINISHED);
+            handleState(downloadTask, DOWNLOAD_FAILED);
+
+        // If the byte buffer was empty, the image wasn't cached
+        } else if (null == downloadTask.getByteBuffer()) {
+
+            // Marks the task as queued before a download thread can pick it up
+            downloadTask.compareAndSetState(PhotoTask.STATE_IDLE, PhotoTask.STATE_DOWNLOAD_QUEUED);
+
+            // Each new download adds to the budget for retrying failed ones
+            mRetryPolicy.onRequest();
             
-            sInstance.handleState(downloadTask, DOWNLOAD_COMPLETE);
+            /*
+             * "Executes" the tasks' download Runnable in order to download the image. If no
+             * Threads are available in the thread pool, the Runnable waits in the queue.
+             */
+            mDownloadThreadPool.execute(downloadTask.getHTTPDownloadRunnable());
+
+            // Sets the display to show that the image is queued for downloading and decoding.
+            imageView.setStatusResource(R.drawable.imagequeued);
+        
+        // The image was cached, so no download is required.
+        } else {
+            
+            /*
+             * Signals that the download is "complete", because the byte array already contains the
+             * undecoded image. The decoding starts.
+             */
+            downloadTask.compareAndSetState(PhotoTask.STATE_IDLE, PhotoTask.STATE_DECODE_QUEUED);
+
+            handleState(downloadTask, DOWNLOAD_COMPLETE);
         }
 
         // Returns a task object, either newly-created or one from the task pool
         return downloadTask;
     }
 
+    /**
+     * Starts downloading an image that isn't on screen yet into the cache, at the lowest
+     * priority. Nothing happens if the image is already cached or in progress. Must be called on
+     * the UI thread.
+     *
+     * @param imageKey The key of the image
+     * @param targetWidth The expected width of the View that will show the image
+     * @param targetHeight The expected height of the View that will show the image
+     * @param deadlineMillis The time, in SystemClock.uptimeMillis(), after which the prefetch
+     * is dropped if it hasn't started, or 0 for no deadline
+     * @return The prefetch task, or null if no task was started
+     */
+    static PhotoTask prefetch(ImageKey imageKey, int targetWidth, int targetHeight,
+            long deadlineMillis) {
+
+        // Only thumbnails are prefetched
+        return sPipelines[PIPELINE_THUMBNAILS].prefetchImage(
+                imageKey, targetWidth, targetHeight, deadlineMillis);
+    }
+
+    /*
+     * Starts a prefetch in this pipeline. Must be called on the UI thread.
+     */
+    private PhotoTask prefetchImage(ImageKey imageKey, int targetWidth, int targetHeight,
+            long deadlineMillis) {
+        if (mInFlightTasks.containsKey(imageKey) || (null != mPhotoCache.get(imageKey))) {
+            return null;
+        }
+
+        // A prefetch isn't worth the trial request of a host that's failing
+        if (!getCircuitBreaker(imageKey.getHost()).isClosed()) {
+            return null;
+        }
+        PhotoTask prefetchTask = mPhotoTaskPool.acquire();
+        prefetchTask.initializePrefetchTask(this, imageKey, targetWidth, targetHeight);
+        prefetchTask.setDeadline(deadlineMillis);
+
+        // A View that asks for the image while it downloads joins the prefetch task
+        mInFlightTasks.put(imageKey, prefetchTask);
+        prefetchTask.compareAndSetState(PhotoTask.STATE_IDLE, PhotoTask.STATE_DOWNLOAD_QUEUED);
+        mRetryPolicy.onRequest();
+        mDownloadThreadPool.execute(prefetchTask.getHTTPDownloadRunnable());
+        return prefetchTask;
+    }
+
+    /**
+     * Cancels a prefetch, unless a View has asked for its image since it started. Must be called
+     * on the UI thread.
+     *
+     * @param prefetchTask A task returned by {@link #prefetch}
+     * @param sequenceNumber The task's sequence number when it was returned; a task that has
+     * been recycled for another image has a different one, and isn't cancelled
+     */
+    static void cancelPrefetch(PhotoTask prefetchTask, long sequenceNumber) {
+        if ((prefetchTask.getSequenceNumber() == sequenceNumber) && prefetchTask.isPrefetch()
+                && prefetchTask.getPhotoViews().isEmpty()) {
+            prefetchTask.getPhotoManager().cancelTask(prefetchTask);
+        }
+    }
+
+    /**
+     * Finishes a task that has completed, failed, or been removed from the queue. The task is
+     * removed from the in-flight table, so that the next request for its URL starts over, and
+     * then recycled. Must be called on the UI thread.
+     * @param photoTask The finished task
+     */
+    void finishTask(PhotoTask photoTask) {
+
+        // Only removes the entry if it still refers to this task
+        ImageKey imageKey = photoTask.getImageKey();
+        if (mInFlightTasks.get(imageKey) == photoTask) {
+            mInFlightTasks.remove(imageKey);
+        }
+        recycleTask(photoTask);
+    }
+
     /**
      * Recycles tasks by calling their internal recycle() method and then putting them back into
-     * the task queue.
+     * the task pool.
      * @param downloadTask The task to recycle
      */
     void recycleTask(PhotoTask downloadTask) {
@@ -440,7 +1766,31 @@ public class PhotoManager {
         // Frees up memory in the task
         downloadTask.recycle();
         
-        // Puts the task object back into the queue for re-use.
-        mPhotoTaskWorkQueue.offer(downloadTask);
+        // Puts the task object back into the pool for re-use, if the pool has room.
+        mPhotoTaskPool.release(downloadTask);
+    }
+
+    /**
+     * Returns the number of tasks that were re-used from the task pool
+     * @return The number of re-used tasks since the app started
+     */
+    public long getReusedTaskCount() {
+        return mPhotoTaskPool.getReusedCount();
+    }
+
+    /**
+     * Returns the number of tasks that were created because the task pool was empty
+     * @return The number of allocated tasks since the app started
+     */
+    public long getAllocatedTaskCount() {
+        return mPhotoTaskPool.getAllocatedCount();
+    }
+
+    /**
+     * Returns the number of recycled tasks that were released because the task pool was full
+     * @return The number of released tasks since the app started
+     */
+    public long getDiscardedTaskCount() {
+        return mPhotoTaskPool.getDiscardedCount();
     }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * This runnable decodes the part of a progressive JPEG that has been downloaded so far, to show
+ * a preview while the rest of the image arrives. The preview is decoded at half the resolution
+ * of the final image: it's blurry anyway, and a smaller Bitmap decodes faster and uses less
+ * memory.
+ * <p>
+ * A preview is only useful until the final image is ready, so a preview that fails to decode,
+ * or that arrives late, is simply discarded.
+ */
+class PhotoPreviewDecodeRunnable implements Runnable {
+
+    // Sets the log tag
+    private static final String LOG_TAG = "PhotoPreviewDecodeRunnable";
+
+    // The task that the preview is for
+    private final PhotoTask mPhotoTask;
+
+    // A copy of the bytes that had been downloaded when the preview was requested
+    private final byte[] mPartialImage;
+
+    // The sequence number of the task when the preview was requested
+    private final long mSequenceNumber;
+
+    // The number of complete scans in the partial image
+    private final int mScanCount;
+
+    /**
+     * Creates a preview decode
+     *
+     * @param photoTask The task that's downloading the image
+     * @param partialImage The bytes downloaded so far
+     * @param sequenceNumber The task's sequence number, which identifies the download
+     * @param scanCount The number of complete scans in the bytes
+     */
+    PhotoPreviewDecodeRunnable(PhotoTask photoTask, byte[] partialImage, long sequenceNumber,
+            int scanCount) {
+        mPhotoTask = photoTask;
+        mPartialImage = partialImage;
+        mSequenceNumber = sequenceNumber;
+        mScanCount = scanCount;
+    }
+
+    @Override
+    public void run() {
+        Bitmap preview = null;
+        try {
+
+            // Gets the size of the image from the frame header
+            BitmapFactory.Options bitmapOptions = new BitmapFactory.Options();
+            bitmapOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(mPartialImage, 0, mPartialImage.length, bitmapOptions);
+            if ((bitmapOptions.outWidth <= 0) || (bitmapOptions.outHeight <= 0)) {
+                return;
+            }
+
+            /*
+             * Uses twice the sample size of the final decode, with the same rounding as
+             * PhotoDecodeRunnable
+             */
+            int targetWidth = Math.max(1, mPhotoTask.getTargetWidth());
+            int targetHeight = Math.max(1, mPhotoTask.getTargetHeight());
+            int sampleSize = Math.max(bitmapOptions.outHeight / targetHeight,
+                    bitmapOptions.outWidth / targetWidth);
+            bitmapOptions.inSampleSize = Math.max(1, sampleSize) * 2;
+            bitmapOptions.inJustDecodeBounds = false;
+
+            if (Thread.interrupted()) {
+                return;
+            }
+            preview = BitmapFactory.decodeByteArray(
+                    mPartialImage, 0, mPartialImage.length, bitmapOptions);
+
+        // A preview isn't worth retrying, even after running out of memory
+        } catch (Throwable e) {
+            Log.w(LOG_TAG, "Couldn't decode a preview", e);
+        } finally {
+
+            // Hands the preview to the task, which ignores it if the download has moved on
+            mPhotoTask.handlePreview(preview, mSequenceNumber, mScanCount);
+        }
+    }
+}
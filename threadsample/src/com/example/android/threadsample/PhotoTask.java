@@ -20,9 +20,17 @@ import com.example.android.threadsample.PhotoDecodeRunnable.TaskRunnableDecodeMe
 import com.example.android.threadsample.PhotoDownloadRunnable.TaskRunnableDownloadMethods;
 
 import android.graphics.Bitmap;
+import android.os.SystemClock;
 
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * This class manages PhotoDownloadRunnable and PhotoDownloadRunnable objects.  It does't perform
@@ -35,6 +43,20 @@ import java.net.URL;
 public class PhotoTask implements
         TaskRunnableDownloadMethods, TaskRunnableDecodeMethods {
 
+    /*
+     * The stages of a task. A task moves forward through the stages with compare-and-set, so
+     * the UI thread, the download threads, and the decode threads never block on each other. A
+     * task that's cancelled at any stage before it finishes goes to STATE_CANCELLED, and the
+     * stage that was supposed to run next sees that its transition fails and drops the task.
+     */
+    static final int STATE_IDLE = 0;
+    static final int STATE_DOWNLOAD_QUEUED = 1;
+    static final int STATE_DOWNLOADING = 2;
+    static final int STATE_DECODE_QUEUED = 3;
+    static final int STATE_DECODING = 4;
+    static final int STATE_FINISHED = 5;
+    static final int STATE_CANCELLED = 6;
+
     /*
      * Creates a weak reference to the ImageView that this Task will populate.
      * The weak reference prevents memory leaks and crashes, because it
@@ -45,11 +67,23 @@ public class PhotoTask implements
      * value continues to change; even worse, it can cause crashes if the
      * underlying component is destroyed. Using a weak reference to a View
      * ensures that the reference is more transitory in nature.
+     *
+     * A task can serve more than one View: if another View asks for the same URL while the task
+     * is running, it's added here instead of starting a second download. The list is changed
+     * on the UI thread, and read by the download and decode threads to decide whether the task
+     * is still needed.
+     */
+    private final CopyOnWriteArrayList<WeakReference<PhotoView>> mImageWeakRefs =
+            new CopyOnWriteArrayList<WeakReference<PhotoView>>();
+
+    /*
+     * true if the task was started for a View. A task without a View has nothing to go stale, so
+     * it's never dropped for being stale.
      */
-    private WeakReference<PhotoView> mImageWeakRef;
+    private volatile boolean mBoundToView;
 
-    // The image's URL
-    private URL mImageURL;
+    // The key of the image, which holds its URL
+    private ImageKey mImageKey;
 
     // The width and height of the decoded image
     private int mTargetHeight;
@@ -58,10 +92,40 @@ public class PhotoTask implements
     // Is the cache enabled for this transaction?
     private boolean mCacheEnabled;
 
+    // Was the task started by the prefetcher rather than by a View?
+    private boolean mPrefetch;
+
+    /*
+     * The scheduling priority of the download, and the order in which it was queued. The
+     * priority is written on the UI thread and read by the download queue, so it's volatile.
+     */
+    private volatile int mPriority;
+    private long mSequenceNumber;
+
+    /*
+     * The time, in SystemClock.uptimeMillis(), after which the task isn't worth doing, or 0 if
+     * the task has no deadline. Only changed while the task isn't in a queue.
+     */
+    private volatile long mDeadlineMillis;
+
+    // The number of times the download has been started, including retries
+    private volatile int mAttemptCount;
+
+    /*
+     * The wait before a failed download is put back in the queue, set while the download's
+     * thread still holds its slot in the queue, or -1 if no retry is waiting for the slot
+     */
+    private volatile long mRetryDelayMillis = -1;
+
     /*
-     * Field containing the Thread this task is running on.
+     * When the network download started, and how long it took, in milliseconds. Both are -1 if
+     * the image didn't come from the network.
      */
-    Thread mThreadThis;
+    private long mDownloadStartMillis;
+    private long mDownloadMillis;
+
+    // The stage that the task is in
+    private final AtomicInteger mState = new AtomicInteger(STATE_IDLE);
 
     /*
      * Fields containing references to the two runnable objects that handle downloading and
@@ -72,17 +136,43 @@ public class PhotoTask implements
 
     // A buffer for containing the bytes that make up the image
     byte[] mImageBuffer;
+
+    /*
+     * The image's file in the disk cache, open, when the image came from there. It takes the
+     * place of mImageBuffer, so the encoded image is never copied onto the heap.
+     */
+    private FileInputStream mImageFile;
     
     // The decoded image
     private Bitmap mDecodedImage;
+
+    /*
+     * A larger cached variant of the image, which the decode stage draws smaller instead of
+     * decoding the image again. The task is one of its holders in the BitmapPool.
+     */
+    private Bitmap mSourceImage;
+
+    // true if the View wants previews of a progressive JPEG while it downloads
+    private boolean mProgressiveRendering;
+
+    // true while a preview is being decoded; only one preview is decoded at a time
+    private final AtomicBoolean mPreviewDecoding = new AtomicBoolean();
+
+    /*
+     * The latest preview, and the number of progressive scans it was decoded from. A preview
+     * from fewer scans never replaces one from more.
+     */
+    private volatile Bitmap mPreviewImage;
+    private int mPreviewScanCount;
     
-    // The Thread on which this task is currently running.
-    private Thread mCurrentThread;
+    // The Thread on which this task is currently running, or null if it isn't running.
+    private final AtomicReference<Thread> mCurrentThread = new AtomicReference<Thread>();
     
     /*
-     * An object that contains the ThreadPool singleton.
+     * The pipeline that the task belongs to. Set each time the task is initialized, because a
+     * task is only ever re-used by the pipeline whose task pool it came from.
      */
-    private static PhotoManager sPhotoManager;
+    private PhotoManager mPhotoManager;
 
     /**
      * Creates an PhotoTask containing a download object and a decoder object.
@@ -91,7 +181,6 @@ public class PhotoTask implements
         // Create the runnables
         mDownloadRunnable = new PhotoDownloadRunnable(this);
         mDecodeRunnable = new PhotoDecodeRunnable(this);
-        sPhotoManager = PhotoManager.getInstance();
     }
     
     /**
@@ -107,21 +196,77 @@ public class PhotoTask implements
             boolean cacheFlag)
     {
         // Sets this object's ThreadPool field to be the input argument
-        sPhotoManager = photoManager;
+        mPhotoManager = photoManager;
         
         // Gets the URL for the View
-        mImageURL = photoView.getLocation();
+        mImageKey = photoView.getLocation();
 
         // Instantiates the weak reference to the incoming view
-        mImageWeakRef = new WeakReference<PhotoView>(photoView);
+        mImageWeakRefs.add(new WeakReference<PhotoView>(photoView));
+        mBoundToView = true;
 
         // Sets the cache flag to the input argument
         mCacheEnabled = cacheFlag;
 
+        // Previews are only decoded for Views that ask for them
+        mProgressiveRendering = photoView.isProgressiveRendering();
+
         // Gets the width and height of the provided ImageView
         mTargetWidth = photoView.getWidth();
         mTargetHeight = photoView.getHeight();
-        
+
+        // Ranks the download by how much of the View is currently on screen
+        mPriority = PhotoManager.computePriority(photoView);
+
+        // Records the order in which this task was queued
+        mSequenceNumber = photoManager.nextSequenceNumber();
+
+        // Clears the timing of the previous download
+        mDownloadStartMillis = -1;
+        mDownloadMillis = -1;
+        mPrefetch = false;
+
+        // A View is waiting, so the image is worth having whenever it arrives
+        mDeadlineMillis = 0;
+        mAttemptCount = 0;
+        mRetryDelayMillis = -1;
+    }
+
+    /**
+     * Initializes the Task to prefetch an image that no View shows yet. The image is downloaded
+     * into the cache, at the lowest priority, and is only decoded if a View asks for it while
+     * the download is running.
+     *
+     * @param photoManager A ThreadPool object
+     * @param imageKey The key of the image
+     * @param targetWidth The expected width of the View that will show the image
+     * @param targetHeight The expected height of the View that will show the image
+     */
+    void initializePrefetchTask(
+            PhotoManager photoManager,
+            ImageKey imageKey,
+            int targetWidth,
+            int targetHeight)
+    {
+        mPhotoManager = photoManager;
+        mImageKey = imageKey;
+
+        // The task has no View yet, so it can't go stale
+        mBoundToView = false;
+
+        // Prefetching only makes sense into the cache
+        mCacheEnabled = true;
+        mProgressiveRendering = false;
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+        mPriority = PhotoManager.PRIORITY_PREFETCH;
+        mSequenceNumber = photoManager.nextSequenceNumber();
+        mDownloadStartMillis = -1;
+        mDownloadMillis = -1;
+        mPrefetch = true;
+        mDeadlineMillis = 0;
+        mAttemptCount = 0;
+        mRetryDelayMillis = -1;
     }
     
     // Implements HTTPDownloaderRunnable.getByteBuffer
@@ -138,15 +283,29 @@ public class PhotoTask implements
      */
     void recycle() {
         
-        // Deletes the weak reference to the imageView
-        if ( null != mImageWeakRef ) {
-            mImageWeakRef.clear();
-            mImageWeakRef = null;
+        // Deletes the weak references to the imageViews
+        for (WeakReference<PhotoView> viewRef : mImageWeakRefs) {
+            viewRef.clear();
         }
+        mImageWeakRefs.clear();
+        mBoundToView = false;
+
+        // Makes the task ready for its next image
+        mCurrentThread.set(null);
+        mState.set(STATE_IDLE);
         
-        // Releases references to the byte buffer and the BitMap
+        /*
+         * Releases references to the byte buffer and the BitMap, and closes the cached file. The
+         * Bitmap goes into the pool for re-use once no View or cache holds it.
+         */
         mImageBuffer = null;
+        closeImageFile();
+        PhotoManager.getBitmapPool().release(mDecodedImage);
         mDecodedImage = null;
+        PhotoManager.getBitmapPool().release(mSourceImage);
+        mSourceImage = null;
+        mPreviewImage = null;
+        mPreviewScanCount = 0;
     }
 
     // Implements PhotoDownloadRunnable.getTargetWidth. Returns the global target width.
@@ -161,15 +320,88 @@ public class PhotoTask implements
         return mTargetHeight;
     }
 
+    // Implements PhotoDownloadRunnable.getPriority. Returns the current download priority.
+    @Override
+    public int getPriority() {
+        return mPriority;
+    }
+
+    // Implements PhotoDownloadRunnable.getSequenceNumber. Returns the order the task was queued in.
+    @Override
+    public long getSequenceNumber() {
+        return mSequenceNumber;
+    }
+
+    // Implements PhotoDownloadRunnable.getDeadline. Returns the deadline, or 0 for none.
+    @Override
+    public long getDeadline() {
+        return mDeadlineMillis;
+    }
+
+    /**
+     * Sets the time after which the task isn't worth doing. A download or decode that hasn't
+     * started by then is dropped. The task must not be in the download queue while this runs,
+     * because the queue orders tasks with the same priority by deadline.
+     *
+     * @param deadlineMillis A time in SystemClock.uptimeMillis(), or 0 for no deadline
+     */
+    void setDeadline(long deadlineMillis) {
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    /*
+     * Implements PhotoDownloadRunnable.isExpired() and PhotoDecodeRunnable.isExpired(). Returns
+     * true once the deadline has passed.
+     */
+    @Override
+    public boolean isExpired() {
+        long deadlineMillis = mDeadlineMillis;
+        return (0 != deadlineMillis) && (SystemClock.uptimeMillis() > deadlineMillis);
+    }
+
+    /*
+     * Re-computes the download priority from the current position of the Views on screen, using
+     * the most visible View. The task must not be in the download queue while this runs, because
+     * the queue only orders tasks when they're inserted.
+     */
+    void updatePriority() {
+        int priority = PhotoManager.computePriority(null);
+        for (PhotoView photoView : getPhotoViews()) {
+            priority = Math.max(priority, PhotoManager.computePriority(photoView));
+        }
+        mPriority = priority;
+    }
+
+    /*
+     * Returns how long the network download took, in milliseconds, or -1 if the image didn't
+     * come from the network.
+     */
+    long getDownloadMillis() {
+        return mDownloadMillis;
+    }
+
     // Detects the state of caching
     boolean isCacheEnabled() {
         return mCacheEnabled;
     }
 
+    // Detects whether the task was started by the prefetcher
+    boolean isPrefetch() {
+        return mPrefetch;
+    }
+
     // Implements PhotoDownloadRunnable.getImageURL. Returns the global Image URL.
     @Override
     public URL getImageURL() {
-        return mImageURL;
+        return mImageKey.getURL();
+    }
+
+    /**
+     * Returns the key of the image, which the caches and the in-flight table use
+     * @return The key
+     */
+    ImageKey getImageKey() {
+        return mImageKey;
     }
 
     // Implements PhotoDownloadRunnable.setByteBuffer. Sets the image buffer to a buffer object.
@@ -180,7 +412,7 @@ public class PhotoTask implements
     
     // Delegates handling the current state of the task to the PhotoManager object
     void handleState(int state) {
-        sPhotoManager.handleState(this, state);
+        mPhotoManager.handleState(this, state);
     }
 
     // Returns the image that PhotoDecodeRunnable decoded.
@@ -188,6 +420,56 @@ public class PhotoTask implements
         return mDecodedImage;
     }
 
+    // Returns the latest preview that PhotoPreviewDecodeRunnable decoded, or null.
+    Bitmap getPreviewImage() {
+        return mPreviewImage;
+    }
+
+    // Implements PhotoDownloadRunnable.isProgressiveRenderingEnabled().
+    @Override
+    public boolean isProgressiveRenderingEnabled() {
+        return mProgressiveRendering;
+    }
+
+    /*
+     * Implements PhotoDownloadRunnable.publishPartialImage(). Copies the bytes and queues a
+     * preview decode, unless the previous preview is still decoding.
+     */
+    @Override
+    public void publishPartialImage(byte[] buffer, int length, int scanCount) {
+        if (!mPreviewDecoding.compareAndSet(false, true)) {
+            return;
+        }
+        byte[] partialImage = new byte[length];
+        System.arraycopy(buffer, 0, partialImage, 0, length);
+        if (!mPhotoManager.decodePreview(
+                new PhotoPreviewDecodeRunnable(this, partialImage, mSequenceNumber, scanCount))) {
+            mPreviewDecoding.set(false);
+        }
+    }
+
+    /*
+     * Called by PhotoPreviewDecodeRunnable when a preview decode finishes. Keeps the preview and
+     * tells the Views, unless it failed, the task has been recycled for another image, the final
+     * image is done, or a better preview is already showing.
+     */
+    void handlePreview(Bitmap preview, long sequenceNumber, int scanCount) {
+        try {
+            int state = mState.get();
+            if ((null == preview) || (sequenceNumber != mSequenceNumber)
+                    || ((STATE_DOWNLOADING != state) && (STATE_DECODE_QUEUED != state)
+                            && (STATE_DECODING != state))
+                    || (scanCount <= mPreviewScanCount)) {
+                return;
+            }
+            mPreviewImage = preview;
+            mPreviewScanCount = scanCount;
+            handleState(PhotoManager.PREVIEW_READY);
+        } finally {
+            mPreviewDecoding.set(false);
+        }
+    }
+
     // Returns the instance that downloaded the image
     Runnable getHTTPDownloadRunnable() {
         return mDownloadRunnable;
@@ -200,32 +482,239 @@ public class PhotoTask implements
 
     // Returns the ImageView that's being constructed.
     public PhotoView getPhotoView() {
-        if ( null != mImageWeakRef ) {
-            return mImageWeakRef.get();
+        for (WeakReference<PhotoView> viewRef : mImageWeakRefs) {
+            PhotoView photoView = viewRef.get();
+            if (null != photoView) {
+                return photoView;
+            }
         }
         return null;
     }
 
     /*
-     * Returns the Thread that this Task is running on. The method must first get a lock on a
-     * static field, in this case the ThreadPool singleton. The lock is needed because the
-     * Thread object reference is stored in the Thread object itself, and that object can be
-     * changed by processes outside of this app.
+     * Implements PhotoDownloadRunnable.isStale() and PhotoDecodeRunnable.isStale(). A task is
+     * stale once none of its Views is still bound to its URL; the View may have been recycled
+     * for another row while the task waited in a queue.
      */
-    public Thread getCurrentThread() {
-        synchronized(sPhotoManager) {
-            return mCurrentThread;
+    @Override
+    public boolean isStale() {
+        return mBoundToView && getPhotoViews().isEmpty();
+    }
+
+    /**
+     * Returns the Views that are still waiting for this task's image. A View that has been
+     * garbage-collected, or that has since been bound to a different URL, isn't returned.
+     * Can be called on any thread; only the UI thread should touch the Views that it returns.
+     *
+     * @return A list of the Views that should get the result of the task
+     */
+    ArrayList<PhotoView> getPhotoViews() {
+        ArrayList<PhotoView> photoViews = new ArrayList<PhotoView>(mImageWeakRefs.size());
+        for (WeakReference<PhotoView> viewRef : mImageWeakRefs) {
+            PhotoView photoView = viewRef.get();
+
+            // Compares the keys, which never resolve host names; this runs on the UI thread
+            if ((null != photoView) && mImageKey.equals(photoView.getLocation())) {
+                photoViews.add(photoView);
+            }
+        }
+        return photoViews;
+    }
+
+    /**
+     * Attaches another View to this task, so that it gets the image when the task finishes.
+     * Must be called on the UI thread.
+     *
+     * @param photoView A View that's bound to the same URL as this task
+     */
+    void addPhotoView(PhotoView photoView) {
+        mImageWeakRefs.add(new WeakReference<PhotoView>(photoView));
+        mBoundToView = true;
+    }
+
+    /**
+     * Detaches a View from this task, because the View has been bound to another URL. Must be
+     * called on the UI thread.
+     *
+     * @param photoView The View to detach
+     * @return true if other Views are still waiting for this task's image
+     */
+    boolean removePhotoView(PhotoView photoView) {
+        for (WeakReference<PhotoView> viewRef : mImageWeakRefs) {
+            PhotoView waitingView = viewRef.get();
+            if ((null == waitingView) || (waitingView == photoView)) {
+                mImageWeakRefs.remove(viewRef);
+            }
         }
+        return !getPhotoViews().isEmpty();
+    }
+
+    /*
+     * Returns the Thread that this Task is running on. The reference is atomic, so it can be
+     * read on any thread without a lock.
+     */
+    public Thread getCurrentThread() {
+        return mCurrentThread.get();
     }
 
     /*
-     * Sets the identifier for the current Thread. This must be a synchronized operation; see the
-     * notes for getCurrentThread()
+     * Sets the identifier for the current Thread. See the notes for getCurrentThread()
      */
     public void setCurrentThread(Thread thread) {
-        synchronized(sPhotoManager) {
-            mCurrentThread = thread;
+        mCurrentThread.set(thread);
+    }
+
+    // Returns the pipeline that the task belongs to
+    PhotoManager getPhotoManager() {
+        return mPhotoManager;
+    }
+
+    // Returns the stage that the task is in
+    int getState() {
+        return mState.get();
+    }
+
+    /*
+     * Moves the task from one stage to the next, if it's still in the expected stage.
+     * Returns false if another thread moved it first, which usually means it was cancelled.
+     */
+    boolean compareAndSetState(int expectedState, int newState) {
+        return mState.compareAndSet(expectedState, newState);
+    }
+
+    /*
+     * Marks a task that was removed from a queue, or that a runnable decided not to run, as
+     * cancelled.
+     */
+    void markCancelled() {
+        mState.set(STATE_CANCELLED);
+    }
+
+    /**
+     * Cancels the task if it hasn't finished, and interrupts the Thread it's running on. Never
+     * blocks; if a download or decode thread is moving the task to its next stage at the same
+     * time, exactly one of the two wins the compare-and-set.
+     *
+     * @return true if this call cancelled the task
+     */
+    boolean cancel() {
+        while (true) {
+            int state = mState.get();
+            if ((STATE_IDLE == state) || (STATE_FINISHED == state)
+                    || (STATE_CANCELLED == state)) {
+                return false;
+            }
+            if (mState.compareAndSet(state, STATE_CANCELLED)) {
+                Thread thread = mCurrentThread.get();
+                if (null != thread) {
+                    thread.interrupt();
+                }
+                return true;
+            }
+        }
+    }
+
+    // Implements PhotoDownloadRunnable.isCancelled(). Returns true once the task is cancelled.
+    @Override
+    public boolean isCancelled() {
+        return STATE_CANCELLED == mState.get();
+    }
+
+    /*
+     * Implements PhotoDownloadRunnable.openDiskCache(). Only tasks that use the cache look in
+     * the disk cache.
+     */
+    @Override
+    public boolean openDiskCache() {
+        DiskImageCache diskCache = PhotoManager.getDiskCache();
+        if (!mCacheEnabled || (null == diskCache)) {
+            return false;
+        }
+        mImageFile = diskCache.open(DiskImageCache.keyFor(mImageKey.getCanonicalURL()));
+        return null != mImageFile;
+    }
+
+    // Implements PhotoDecodeRunnable.getImageFile(). Returns the open file, or null.
+    @Override
+    public FileInputStream getImageFile() {
+        return mImageFile;
+    }
+
+    // Implements PhotoDecodeRunnable.closeImageFile(). Closes the file once it's been decoded.
+    @Override
+    public void closeImageFile() {
+        FileInputStream imageFile = mImageFile;
+        mImageFile = null;
+        if (null != imageFile) {
+            try {
+                imageFile.close();
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    // Implements PhotoDownloadRunnable.getDownloadEngine(). Returns the pipeline's engine.
+    @Override
+    public NioDownloadEngine getDownloadEngine() {
+        return mPhotoManager.getDownloadEngine();
+    }
+
+    // Implements PhotoDownloadRunnable.onTransferFinished(). Frees the download's host slot.
+    @Override
+    public void onTransferFinished() {
+        mPhotoManager.onDownloadFinished(mDownloadRunnable);
+    }
+
+    /*
+     * Implements PhotoDownloadRunnable.rerunOnBlockingPath(). Puts the task back in the queue
+     * and takes back the attempt that beginDownload() counted, so that the same attempt runs
+     * again.
+     */
+    @Override
+    public boolean rerunOnBlockingPath() {
+        if (!mState.compareAndSet(STATE_DOWNLOADING, STATE_DOWNLOAD_QUEUED)) {
+            return false;
         }
+        mAttemptCount--;
+        mPhotoManager.rerunDownload(this);
+        return true;
+    }
+
+    /*
+     * Implements PhotoDownloadRunnable.beginDownload(). Moves the task out of the queue, and
+     * counts the attempt.
+     */
+    @Override
+    public boolean beginDownload() {
+        if (mState.compareAndSet(STATE_DOWNLOAD_QUEUED, STATE_DOWNLOADING)) {
+            mAttemptCount++;
+            return true;
+        }
+        return false;
+    }
+
+    // Returns the number of times the download has been started
+    int getAttemptCount() {
+        return mAttemptCount;
+    }
+
+    // Holds a retry until the download's thread has given up its slot in the queue
+    void setPendingRetry(long delayMillis) {
+        mRetryDelayMillis = delayMillis;
+    }
+
+    // Returns the wait of a retry that was held for the slot, and clears it, or returns -1
+    long consumePendingRetry() {
+        long delayMillis = mRetryDelayMillis;
+        mRetryDelayMillis = -1;
+        return delayMillis;
+    }
+
+    // Implements PhotoDecodeRunnable.beginDecode(). Moves the task out of the queue.
+    @Override
+    public boolean beginDecode() {
+        return mState.compareAndSet(STATE_DECODE_QUEUED, STATE_DECODING);
     }
 
     // Implements ImageCoderRunnable.setImage(). Sets the Bitmap for the current image.
@@ -234,6 +723,17 @@ public class PhotoTask implements
         mDecodedImage = decodedImage;
     }
 
+    // Implements PhotoDecodeRunnable.getSourceImage(). Returns the variant to draw, or null.
+    @Override
+    public Bitmap getSourceImage() {
+        return mSourceImage;
+    }
+
+    // Starts the task from a larger cached variant, which it holds until it's recycled
+    void setSourceImage(Bitmap sourceImage) {
+        mSourceImage = sourceImage;
+    }
+
     // Implements PhotoDownloadRunnable.setHTTPDownloadThread(). Calls setCurrentThread().
     @Override
     public void setDownloadThread(Thread currentThread) {
@@ -242,22 +742,40 @@ public class PhotoTask implements
 
     /*
      * Implements PhotoDownloadRunnable.handleHTTPState(). Passes the download state to the
-     * ThreadPool object.
+     * ThreadPool object. If the task was cancelled while it downloaded, the result is dropped.
      */
     
     @Override
     public void handleDownloadState(int state) {
         int outState;
         
-        // Converts the download state to the overall state
+        // Converts the download state to the overall state, and times the network download
         switch(state) {
             case PhotoDownloadRunnable.HTTP_STATE_COMPLETED:
-                outState = PhotoManager.DOWNLOAD_COMPLETE;
+                if (mDownloadStartMillis >= 0) {
+                    mDownloadMillis = SystemClock.elapsedRealtime() - mDownloadStartMillis;
+                }
+                outState = mState.compareAndSet(STATE_DOWNLOADING, STATE_DECODE_QUEUED)
+                        ? PhotoManager.DOWNLOAD_COMPLETE : PhotoManager.TASK_DROPPED;
                 break;
             case PhotoDownloadRunnable.HTTP_STATE_FAILED:
-                outState = PhotoManager.DOWNLOAD_FAILED;
+
+                // The failure may be temporary, so the pipeline may put the task back in line
+                if (mPhotoManager.retryDownload(this)) {
+                    return;
+                }
+                outState = mState.compareAndSet(STATE_DOWNLOADING, STATE_FINISHED)
+                        ? PhotoManager.DOWNLOAD_FAILED : PhotoManager.TASK_DROPPED;
+                break;
+            case PhotoDownloadRunnable.HTTP_STATE_FAILED_PERMANENTLY:
+                outState = mState.compareAndSet(STATE_DOWNLOADING, STATE_FINISHED)
+                        ? PhotoManager.DOWNLOAD_FAILED : PhotoManager.TASK_DROPPED;
+                break;
+            case PhotoDownloadRunnable.HTTP_STATE_DROPPED:
+                outState = PhotoManager.TASK_DROPPED;
                 break;
             default:
+                mDownloadStartMillis = SystemClock.elapsedRealtime();
                 outState = PhotoManager.DOWNLOAD_STARTED;
                 break;
         }
@@ -273,7 +791,7 @@ public class PhotoTask implements
 
     /*
      * Implements PhotoDecodeRunnable.handleDecodeState(). Passes the decoding state to the
-     * ThreadPool object.
+     * ThreadPool object. If the task was cancelled while it decoded, the result is dropped.
      */
     @Override
     public void handleDecodeState(int state) {
@@ -282,10 +800,15 @@ public class PhotoTask implements
         // Converts the decode state to the overall state.
         switch(state) {
             case PhotoDecodeRunnable.DECODE_STATE_COMPLETED:
-                outState = PhotoManager.TASK_COMPLETE;
+                outState = mState.compareAndSet(STATE_DECODING, STATE_FINISHED)
+                        ? PhotoManager.TASK_COMPLETE : PhotoManager.TASK_DROPPED;
                 break;
             case PhotoDecodeRunnable.DECODE_STATE_FAILED:
-                outState = PhotoManager.DOWNLOAD_FAILED;
+                outState = mState.compareAndSet(STATE_DECODING, STATE_FINISHED)
+                        ? PhotoManager.DOWNLOAD_FAILED : PhotoManager.TASK_DROPPED;
+                break;
+            case PhotoDecodeRunnable.DECODE_STATE_DROPPED:
+                outState = PhotoManager.TASK_DROPPED;
                 break;
             default:
                 outState = PhotoManager.DECODE_STARTED;
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * This class keeps finished PhotoTask objects for re-use. Each PhotoTask allocates its own
+ * download and decode runnables, so re-using tasks keeps the allocation rate flat while the
+ * user scrolls, which keeps the garbage collector from pausing the UI.
+ * <p>
+ * The pool is a fixed array of slots. A task is taken by clearing its slot, and returned by
+ * filling an empty slot, both with compare-and-set, so the pool never blocks. A task that's
+ * returned when every slot is full is left for the garbage collector, so the pool never holds
+ * more tasks than its capacity, however many were running at the peak.
+ */
+class PhotoTaskPool {
+
+    // The slots; an empty slot is null
+    private final AtomicReferenceArray<PhotoTask> mSlots;
+
+    // The number of tasks that were taken from the pool
+    private final AtomicLong mReusedCount = new AtomicLong();
+
+    // The number of tasks that were created because the pool was empty
+    private final AtomicLong mAllocatedCount = new AtomicLong();
+
+    // The number of tasks that were left for the garbage collector because the pool was full
+    private final AtomicLong mDiscardedCount = new AtomicLong();
+
+    /**
+     * Creates an empty pool
+     *
+     * @param capacity The largest number of tasks that the pool keeps
+     */
+    PhotoTaskPool(int capacity) {
+        mSlots = new AtomicReferenceArray<PhotoTask>(capacity);
+    }
+
+    /*
+     * Returns the slot where a thread starts looking. Threads start in different places, so
+     * that they don't all compete for the first slot.
+     */
+    private int startSlot() {
+        return (int) (Thread.currentThread().getId() % mSlots.length());
+    }
+
+    /**
+     * Takes a task from the pool, or creates a new one if the pool is empty
+     *
+     * @return A task that's ready to be initialized
+     */
+    PhotoTask acquire() {
+        int length = mSlots.length();
+        int start = startSlot();
+        for (int i = 0; i < length; i++) {
+            int slot = (start + i) % length;
+            PhotoTask task = mSlots.get(slot);
+            if ((null != task) && mSlots.compareAndSet(slot, task, null)) {
+                mReusedCount.incrementAndGet();
+                return task;
+            }
+        }
+        mAllocatedCount.incrementAndGet();
+        return new PhotoTask();
+    }
+
+    /**
+     * Returns a recycled task to the pool. If the pool is full, the task is dropped.
+     *
+     * @param task A task that has been recycled
+     * @return true if the pool kept the task
+     */
+    boolean release(PhotoTask task) {
+        int length = mSlots.length();
+        int start = startSlot();
+        for (int i = 0; i < length; i++) {
+            int slot = (start + i) % length;
+            if ((null == mSlots.get(slot)) && mSlots.compareAndSet(slot, null, task)) {
+                return true;
+            }
+        }
+        mDiscardedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of tasks that were taken from the pool instead of being created
+     * @return The reuse count
+     */
+    long getReusedCount() {
+        return mReusedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that were created because the pool was empty
+     * @return The allocation count
+     */
+    long getAllocatedCount() {
+        return mAllocatedCount.get();
+    }
+
+    /**
+     * Returns the number of tasks that the pool dropped because it was full
+     * @return The discard count
+     */
+    long getDiscardedCount() {
+        return mDiscardedCount.get();
+    }
+}
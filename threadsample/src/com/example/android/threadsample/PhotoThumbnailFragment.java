@@ -42,7 +42,6 @@ import android.widget.GridView;
 import android.widget.ImageView;
 
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
@@ -51,13 +50,21 @@ import java.util.concurrent.RejectedExecutionException;
  * PhotoThumbnailFragment displays a GridView of picture thumbnails downloaded from Picasa
  */
 public class PhotoThumbnailFragment extends Fragment implements
-        LoaderManager.LoaderCallbacks<Cursor>, AdapterView.OnItemClickListener {
+        LoaderManager.LoaderCallbacks<Cursor>, AdapterView.OnItemClickListener,
+        AbsListView.OnScrollListener {
     
     private static final String STATE_IS_HIDDEN =
             "com.example.android.threadsample.STATE_IS_HIDDEN";
     
     // Array List of image url
 	List<String> urlList;
+
+    /*
+     * The keys of the images, in the same order as urlList. Each row's URLs are parsed once,
+     * when the feed loads, instead of every time a cell is bound. A row whose URL doesn't parse
+     * has a null key.
+     */
+    private List<ImageKey> mImageKeys;
     
     // The width of each column in the grid
     private int mColumnWidth;
@@ -70,6 +77,12 @@ public class PhotoThumbnailFragment extends Fragment implements
     
     // Denotes if the GridView has been loaded
     private boolean mIsLoaded;
+
+    // The first grid position that was visible the last time the downloads were re-ranked
+    private int mRankedFirstVisibleItem = -1;
+
+    // Downloads the rows that are about to scroll into view
+    private ThumbnailPrefetcher mPrefetcher;
     
     // Intent for starting the IntentService that downloads the Picasa featured picture RSS feed
     private Intent mServiceIntent;
@@ -146,6 +159,7 @@ public class PhotoThumbnailFragment extends Fragment implements
         mGridView = ((GridView) localView.findViewById(android.R.id.list));
         
     	urlList = new ArrayList<String>();
+        mImageKeys = new ArrayList<ImageKey>();
 
         // Instantiates a DisplayMetrics object
         DisplayMetrics localDisplayMetrics = new DisplayMetrics();
@@ -161,6 +175,9 @@ public class PhotoThumbnailFragment extends Fragment implements
         
         // Calculates the grid column width
         mColumnWidth = (localDisplayMetrics.widthPixels / widthScale);
+
+        // Prefetches from the same URLs that the grid shows, at the size of a single cell
+        mPrefetcher = new ThumbnailPrefetcher(mImageKeys, mColumnWidth);
         
         // Sets the GridView's column width
         //mGridView.setColumnWidth(mColumnWidth);
@@ -176,6 +193,12 @@ public class PhotoThumbnailFragment extends Fragment implements
          * GridView, PhotoThumbnailFragment.onClick() is invoked.
          */
         mGridView.setOnItemClickListener(this);
+
+        /*
+         * Sets the GridView's scroll listener to be this class, so that queued downloads can be
+         * re-ranked when different cells come on screen.
+         */
+        mGridView.setOnScrollListener(this);
         
         /*
          * Sets the "empty" View for the layout. If there's nothing to show, a ProgressBar
@@ -228,6 +251,12 @@ public class PhotoThumbnailFragment extends Fragment implements
      */
     @Override
     public void onDestroyView() {
+
+        // Stops downloading rows that will never be shown
+        if (mPrefetcher != null) {
+            mPrefetcher.cancelAll();
+            mPrefetcher = null;
+        }
         
         // Sets variables to null, to avoid memory leaks
         mGridView = null;
@@ -296,6 +325,40 @@ public class PhotoThumbnailFragment extends Fragment implements
         LocalBroadcastManager.getInstance(getActivity()).sendBroadcast(localIntent);
     }
 
+    /*
+     * Implements OnScrollListener.onScroll(). onScroll() is called for every frame of a scroll,
+     * so the download queue is only re-ranked, and the prefetcher only moves, when the first
+     * visible cell changes.
+     */
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        if (firstVisibleItem != mRankedFirstVisibleItem) {
+            mRankedFirstVisibleItem = firstVisibleItem;
+            PhotoManager.reprioritizeDownloads();
+            if ((mPrefetcher != null) && (totalItemCount > 0)) {
+                mPrefetcher.onScroll(firstVisibleItem, visibleItemCount,
+                        ((GridView) view).getNumColumns());
+            }
+        }
+    }
+
+    /*
+     * Implements OnScrollListener.onScrollStateChanged(). When the grid comes to rest, re-ranks
+     * the queue so that partially visible cells are ordered by their final position, and
+     * prefetches the rows past the ones on screen.
+     */
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        if (AbsListView.OnScrollListener.SCROLL_STATE_IDLE == scrollState) {
+            PhotoManager.reprioritizeDownloads();
+            if (mPrefetcher != null) {
+                mPrefetcher.onScrollIdle(view.getFirstVisiblePosition(), view.getChildCount(),
+                        ((GridView) view).getNumColumns());
+            }
+        }
+    }
+
     /*
      * Invoked when the CursorLoader finishes the query. A reference to the Loader and the
      * returned Cursor are passed in as arguments
@@ -307,15 +370,24 @@ public class PhotoThumbnailFragment extends Fragment implements
          *  Changes the adapter's Cursor to be the results of the load. This forces the View to
          *  redraw.
          */
-    	List<String> thumbUrlList = new ArrayList<String>();
+    	/*
+    	 * Rebuilds the three lists together, so that they stay aligned by position. The URL
+    	 * and key lists are cleared in place, because the prefetcher shares the key list.
+    	 */
+    	urlList.clear();
+    	mImageKeys.clear();
+    	List<ImageKey> thumbKeyList = new ArrayList<ImageKey>();
     	int count = returnCursor.getCount();
     	returnCursor.moveToFirst();
     	while (returnCursor.moveToNext()) {
-    		urlList.add(returnCursor.getString(IMAGE_URL_CURSOR_INDEX));
-    		thumbUrlList.add(returnCursor.getString(IMAGE_THUMBURL_CURSOR_INDEX));
+    		String urlString = returnCursor.getString(IMAGE_URL_CURSOR_INDEX);
+    		urlList.add(urlString);
+    		mImageKeys.add(ImageKey.parseOrNull(urlString));
+    		thumbKeyList.add(ImageKey.parseOrNull(
+    				returnCursor.getString(IMAGE_THUMBURL_CURSOR_INDEX)));
     	}
     	
-    	Adapter adapter = new Adapter(this.getActivity(), 0, urlList);
+    	Adapter adapter = new Adapter(this.getActivity(), 0, urlList, mImageKeys, thumbKeyList);
     	mGridView.setAdapter(adapter);
     }
 
@@ -381,17 +453,17 @@ public class PhotoThumbnailFragment extends Fragment implements
             // Converts the URL string to a URL and tries to retrieve the picture
             try {
                 // Gets the URL
-                URL localURL =
-                        new URL(
+                ImageKey localKey =
+                        ImageKey.parse(
                             cursor.getString(IMAGE_THUMBURL_CURSOR_INDEX)
                         )
                 ;
                 /*
-                 * Invokes setImageURL for the View. If the image isn't already available, this
+                 * Invokes setImageKey for the View. If the image isn't already available, this
                  * will download and decode it.
                  */
-                localImageDownloaderView.setImageURL(
-                            localURL, true, PhotoThumbnailFragment.this.mEmptyDrawable);
+                localImageDownloaderView.setImageKey(
+                            localKey, true, PhotoThumbnailFragment.this.mEmptyDrawable);
             
             // Catches an invalid URL
             } catch (MalformedURLException localMalformedURLException) {
@@ -456,11 +528,20 @@ public class PhotoThumbnailFragment extends Fragment implements
   	  private Context context;
   	  private List<String> alImageUrl;
 
-  	  public Adapter(Context context, int resource, List<String> alImageUrl) {
+  	  // The keys of the images, parsed when the feed loaded
+  	  private List<ImageKey> alImageKey;
+
+  	  // The smaller versions of the images, used while the host of an image is failing
+  	  private List<ImageKey> alThumbKey;
+
+  	  public Adapter(Context context, int resource, List<String> alImageUrl,
+  			  List<ImageKey> alImageKey, List<ImageKey> alThumbKey) {
   		  super(context, resource, alImageUrl);
   		  
   		  this.context = context;
   		  this.alImageUrl = alImageUrl;
+  		  this.alImageKey = alImageKey;
+  		  this.alThumbKey = alThumbKey;
   	  }
 
   	  @Override
@@ -483,10 +564,7 @@ public class PhotoThumbnailFragment extends Fragment implements
 		
 		
 		//Get product base on current position
-		  String imageUrl = alImageUrl.get(position);
-		  
-		  try {
-		  URL localUrl = new URL(imageUrl);
+		  ImageKey imageKey = alImageKey.get(position);
 		    
 		  if (position % 3 == 0) {
 		  	convertView.setLayoutParams(new GridView.LayoutParams(mColumnWidth * 2,
@@ -496,13 +574,18 @@ public class PhotoThumbnailFragment extends Fragment implements
 		              mColumnWidth));
 		  }
 		  
-		  ((PhotoView) imageView).setImageURL(
-              localUrl, true, PhotoThumbnailFragment.this.mEmptyDrawable);
-		  } catch (MalformedURLException localMalformedURLException) {
-              localMalformedURLException.printStackTrace();
-              
-          // Catches errors trying to download and decode the picture in a ThreadPool
-          }
+		  // Falls back to the thumbnail-sized image while the full-size image's host is failing
+		  ImageKey thumbKey = null;
+		  if (position < alThumbKey.size()) {
+		  	thumbKey = alThumbKey.get(position);
+		  }
+
+		  /*
+		   * A row whose URL didn't parse gets a null key, which clears whatever the recycled
+		   * View showed before
+		   */
+		  ((PhotoView) imageView).setImageKey(
+              imageKey, thumbKey, true, PhotoThumbnailFragment.this.mEmptyDrawable);
   	    return convertView;
   	  }
   }
@@ -20,6 +20,7 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.AttributeSet;
@@ -28,7 +29,6 @@ import android.widget.ImageView;
 
 
 import java.lang.ref.WeakReference;
-import java.net.URL;
 
 /**
  * This class extends the standard Android ImageView View class with some features
@@ -42,6 +42,12 @@ public class PhotoView extends ImageView {
     
     // Status flag that indicates if onDraw has completed
     private boolean mIsDrawn;
+
+    // Indicates if previews of progressive JPEGs should be shown while the image downloads
+    private boolean mProgressiveRendering;
+
+    // The PhotoManager pipeline that downloads and decodes the View's images
+    private int mPipeline = PhotoManager.PIPELINE_THUMBNAILS;
     
     /*
      * Creates a weak reference to the ImageView in this object. The weak
@@ -58,12 +64,22 @@ public class PhotoView extends ImageView {
     // Contains the ID of the internal View
     private int mHideShowResId = -1;
     
-    // The URL that points to the source of the image for this ImageView
-    private URL mImageURL;
+    /*
+     * The key of the image for this ImageView, which holds the URL that points to its source.
+     * It's volatile because the download and decode threads read it to check whether their task
+     * is still needed.
+     */
+    private volatile ImageKey mImageKey;
     
     // The Thread that will be used to download the image for this ImageView
     private PhotoTask mDownloadThread;
 
+    /*
+     * The Bitmap that the View is showing. The View is one of its holders in the Bitmap pool,
+     * so the Bitmap isn't re-used while it's on screen.
+     */
+    private Bitmap mShownBitmap;
+
     /**
      * Creates an ImageDownloadView with no settings
      * @param context A context for the View
@@ -141,11 +157,48 @@ public class PhotoView extends ImageView {
     }
 
     /**
-     * Returns the URL of the picture associated with this ImageView
-     * @return a URL
+     * Turns previews of progressive JPEGs on or off. When they're on, the View shows a blurry
+     * version of the image as soon as the first scans have downloaded, and sharpens it as more
+     * arrive. This is worth it for large images on slow connections; thumbnails download too
+     * quickly for previews to help.
+     * @param progressiveRendering true to show previews
+     */
+    public void setProgressiveRendering(boolean progressiveRendering) {
+        mProgressiveRendering = progressiveRendering;
+    }
+
+    /**
+     * Returns true if the View shows previews of progressive JPEGs
+     * @return The setting
+     */
+    final boolean isProgressiveRendering() {
+        return mProgressiveRendering;
+    }
+
+    /**
+     * Chooses the PhotoManager pipeline that downloads and decodes the View's images. Views that
+     * show full-size photos use their own pipeline, so that they don't wait behind thumbnails.
+     * Takes effect from the next call to setImageKey().
+     * @param pipeline PhotoManager.PIPELINE_THUMBNAILS or PhotoManager.PIPELINE_FULLSCREEN
+     */
+    public void setPipeline(int pipeline) {
+        mPipeline = pipeline;
+    }
+
+    /**
+     * Returns the PhotoManager pipeline that the View uses
+     * @return The pipeline
+     */
+    final int getPipeline() {
+        return mPipeline;
+    }
+
+    /**
+     * Returns the key of the picture associated with this ImageView
+     * @return a key, or null
      */
-    final URL getLocation() {
-        return mImageURL;
+    final ImageKey getLocation() {
+        return mImageKey;
     }
 
     /*
@@ -178,7 +231,7 @@ public class PhotoView extends ImageView {
     protected void onDetachedFromWindow() {
         
         // Clears out the image drawable, turns off the cache, disconnects the view from a URL
-        setImageURL(null, false, null);
+        setImageKey(null, false, null);
         
         // Gets the current Drawable, or null if no Drawable is attached
         Drawable localDrawable = getDrawable();
@@ -208,7 +261,7 @@ public class PhotoView extends ImageView {
     @Override
     protected void onDraw(Canvas canvas) {
         // If the image isn't already drawn, and the URL is set
-        if ((!mIsDrawn) && (mImageURL != null)) {
+        if ((!mIsDrawn) && (mImageKey != null)) {
             
             // Starts downloading this View, using the current cache setting
             mDownloadThread = PhotoManager.startDownload(this, mCacheFlag);
@@ -220,6 +273,15 @@ public class PhotoView extends ImageView {
         super.onDraw(canvas);
     }
 
+    /**
+     * Forgets the download for this View without changing what it shows, so that the next
+     * onDraw() starts it again. Called when the task was dropped before it finished.
+     */
+    void resetDownload() {
+        mDownloadThread = null;
+        mIsDrawn = false;
+    }
+
     /**
      * Sets the current View weak reference to be the incoming View. See the definition of
      * mThisView
@@ -256,6 +318,10 @@ public class PhotoView extends ImageView {
 
         // Invokes the supermethod with the provided drawable
         super.setImageDrawable(drawable);
+
+        // Holds the new Bitmap, if it's a pooled one, and lets go of the one it replaced
+        setShownBitmap((drawable instanceof BitmapDrawable)
+                ? ((BitmapDrawable) drawable).getBitmap() : null);
     }
 
     /*
@@ -264,6 +330,7 @@ public class PhotoView extends ImageView {
     @Override
     public void setImageResource(int resId) {
         super.setImageResource(resId);
+        setShownBitmap(null);
     }
 
     /*
@@ -272,6 +339,20 @@ public class PhotoView extends ImageView {
     @Override
     public void setImageURI(Uri uri) {
         super.setImageURI(uri);
+        setShownBitmap(null);
+    }
+
+    /*
+     * Records the Bitmap that the View shows, and lets the Bitmap pool know. Called after the
+     * View has stopped drawing the old Bitmap, so that it can be re-used at once.
+     */
+    private void setShownBitmap(Bitmap bitmap) {
+        if (bitmap != mShownBitmap) {
+            BitmapPool bitmapPool = PhotoManager.getBitmapPool();
+            bitmapPool.acquire(bitmap);
+            bitmapPool.release(mShownBitmap);
+            mShownBitmap = bitmap;
+        }
     }
 
     /**
@@ -283,19 +364,41 @@ public class PhotoView extends ImageView {
      * If the input URL is the same as the stored URL, then nothing needs to be done.
      * <p>
      * If the stored URL is null, then this method starts a download and decode of the picture
-     * @param pictureURL An incoming URL for a Picasa picture
+     * <p>
+     * The URL is passed as an ImageKey, parsed once when the feed is loaded, so binding a View
+     * neither parses a URL nor compares URLs with URL.equals(), which can resolve host names.
+     * @param pictureKey The key of an incoming URL for a Picasa picture
+     * @param cacheFlag Whether to use caching when doing downloading and decoding
+     * @param imageDrawable The Drawable to use for this ImageView
+     */
+    public void setImageKey(ImageKey pictureKey, boolean cacheFlag, Drawable imageDrawable) {
+        setImageKey(pictureKey, null, cacheFlag, imageDrawable);
+    }
+
+    /**
+     * Sets the picture URL for this ImageView, with another URL for the same picture that's used
+     * while the host of the first URL is failing. The choice is made when the URL is set, so a
+     * View that's bound again after the host recovers goes back to the first URL.
+     * @param pictureKey The key of an incoming URL for a Picasa picture
+     * @param fallbackKey The key of another URL for the picture, such as a smaller version, or
+     * null
      * @param cacheFlag Whether to use caching when doing downloading and decoding
      * @param imageDrawable The Drawable to use for this ImageView
      */
-    public void setImageURL(URL pictureURL, boolean cacheFlag, Drawable imageDrawable) {
+    public void setImageKey(ImageKey pictureKey, ImageKey fallbackKey, boolean cacheFlag,
+            Drawable imageDrawable) {
+
+        // Skips a host that's failing, if there's somewhere else to get the picture from
+        pictureKey = PhotoManager.selectImage(pictureKey, fallbackKey);
+
         // If the picture URL for this ImageView is already set
-        if (mImageURL != null) {
+        if (mImageKey != null) {
             
             // If the stored URL doesn't match the incoming URL, then the picture has changed.
-            if (!mImageURL.equals(pictureURL)) {
+            if (!mImageKey.equals(pictureKey)) {
                 
                 // Stops any ongoing downloads for this ImageView
-                PhotoManager.removeDownload(mDownloadThread, mImageURL);
+                PhotoManager.removeDownload(mDownloadThread, mImageKey, this);
             } else {
                 
                 // The stored URL matches the incoming URL. Returns without doing any work.
@@ -307,10 +410,10 @@ public class PhotoView extends ImageView {
         setImageDrawable(imageDrawable);
         
         // Stores the picture URL for this ImageView
-        mImageURL = pictureURL;
+        mImageKey = pictureKey;
         
         // If the draw operation for this ImageVIew has completed, and the picture URL isn't empty
-        if ((mIsDrawn) && (pictureURL != null)) {
+        if ((mIsDrawn) && (pictureKey != null)) {
             
             // Sets the cache flag
             mCacheFlag = cacheFlag;
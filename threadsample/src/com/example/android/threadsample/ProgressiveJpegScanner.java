@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+/**
+ * This class follows the markers of a JPEG file while it's being downloaded, to find out whether
+ * the file is progressive and how many of its scans have arrived.
+ * <p>
+ * A progressive JPEG stores the whole image several times over, in scans of increasing
+ * quality. Once the first scans have arrived, the bytes so far decode to a blurry version of the
+ * complete image, which is a useful preview. A baseline JPEG stores the image top to bottom in a
+ * single scan, so its bytes so far only decode to the top of the image; the scanner stops
+ * looking as soon as it sees a baseline frame header.
+ * <p>
+ * The scanner is fed the same buffer again and again as it grows, and only looks at the bytes
+ * that are new since the last call. It skips the payload of each header segment, so that
+ * markers inside an embedded EXIF thumbnail aren't counted.
+ */
+class ProgressiveJpegScanner {
+
+    // JPEG marker codes, the byte that follows 0xFF
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_SOF2 = 0xC2;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_RST7 = 0xD7;
+
+    // The offset of the next byte to look at
+    private int mOffset;
+
+    // true while the scanner is inside the entropy-coded data of a scan
+    private boolean mInScan;
+
+    // true once the frame header says that the image is progressive
+    private boolean mProgressive;
+
+    // true once there's nothing more to learn, because the file is baseline, ended, or invalid
+    private boolean mFinished;
+
+    // The number of scans that have started
+    private int mScanCount;
+
+    /**
+     * Clears the scanner so that it can follow a new file
+     */
+    void reset() {
+        mOffset = 0;
+        mInScan = false;
+        mProgressive = false;
+        mFinished = false;
+        mScanCount = 0;
+    }
+
+    /**
+     * Returns true if the frame header that has arrived so far is a progressive one
+     * @return true for a progressive JPEG
+     */
+    boolean isProgressive() {
+        return mProgressive;
+    }
+
+    /**
+     * Returns the number of scans that have arrived completely. A scan is complete when the
+     * marker that follows it has arrived.
+     * @return The number of complete scans
+     */
+    int getCompletedScanCount() {
+        return mInScan ? mScanCount - 1 : mScanCount;
+    }
+
+    /**
+     * Looks at the bytes that have arrived since the last call
+     *
+     * @param buffer The download buffer
+     * @param length The number of bytes in the buffer that have been downloaded
+     */
+    void update(byte[] buffer, int length) {
+        while (!mFinished) {
+
+            // The file must start with a start-of-image marker
+            if (0 == mOffset) {
+                if (length < 2) {
+                    return;
+                }
+                if (((buffer[0] & 0xFF) != MARKER_PREFIX) || ((buffer[1] & 0xFF) != MARKER_SOI)) {
+                    mFinished = true;
+                    return;
+                }
+                mOffset = 2;
+                continue;
+            }
+
+            if (mInScan) {
+
+                /*
+                 * Inside a scan, 0xFF is followed by a stuffed zero or a restart marker, or it
+                 * starts the next marker, which ends the scan.
+                 */
+                if (mOffset + 1 >= length) {
+                    return;
+                }
+                if ((buffer[mOffset] & 0xFF) != MARKER_PREFIX) {
+                    mOffset++;
+                    continue;
+                }
+                int next = buffer[mOffset + 1] & 0xFF;
+                if ((0 == next) || ((next >= MARKER_RST0) && (next <= MARKER_RST7))) {
+                    mOffset += 2;
+                } else if (MARKER_PREFIX == next) {
+                    mOffset++;
+                } else {
+                    mInScan = false;
+                }
+                continue;
+            }
+
+            // Between scans, each marker is followed by a two-byte segment length
+            if (mOffset + 1 >= length) {
+                return;
+            }
+            if ((buffer[mOffset] & 0xFF) != MARKER_PREFIX) {
+                mFinished = true;
+                return;
+            }
+            int marker = buffer[mOffset + 1] & 0xFF;
+            if (MARKER_PREFIX == marker) {
+
+                // Fill byte before a marker
+                mOffset++;
+                continue;
+            }
+            if (MARKER_EOI == marker) {
+                mFinished = true;
+                return;
+            }
+            if (mOffset + 3 >= length) {
+                return;
+            }
+            int segmentLength = ((buffer[mOffset + 2] & 0xFF) << 8) | (buffer[mOffset + 3] & 0xFF);
+
+            if (MARKER_SOF2 == marker) {
+                mProgressive = true;
+            } else if (isOtherFrameHeader(marker)) {
+
+                // Baseline and other non-progressive frames have nothing to preview
+                mFinished = true;
+                return;
+            } else if (MARKER_SOS == marker) {
+                mScanCount++;
+                mInScan = true;
+            }
+
+            // Skips the marker and the segment; the scan data, if any, starts after it
+            mOffset += 2 + segmentLength;
+        }
+    }
+
+    /*
+     * Returns true for the start-of-frame markers other than SOF2. 0xC4 (DHT), 0xC8 (JPG) and
+     * 0xCC (DAC) are in the same range, but aren't frame headers.
+     */
+    private static boolean isOtherFrameHeader(int marker) {
+        return (marker >= 0xC0) && (marker <= 0xCF) && (MARKER_SOF2 != marker)
+                && (0xC4 != marker) && (0xC8 != marker) && (0xCC != marker);
+    }
+}
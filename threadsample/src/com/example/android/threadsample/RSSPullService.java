@@ -26,6 +26,7 @@ import org.json.JSONException;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -69,6 +70,9 @@ public class RSSPullService extends IntentService {
         // Gets a URL to read from the incoming Intent's "data" value
         String localUrlString = workIntent.getDataString();
 
+        // Lets the feed connection be re-used, with the same limits as the image downloads
+        HttpKeepAlive.configure();
+
         // Creates a projection to use in querying the modification date table in the provider.
         final String[] dateProjection = new String[]
         {
@@ -185,13 +189,20 @@ public class RSSPullService extends IntentService {
                          */
                         RSSPullParser localPicasaPullParser = new RSSPullParser();
 
+                        /*
+                         * Reads the feed to the end and closes it afterwards, even if parsing
+                         * fails, so that the connection goes back to the pool
+                         */
+                        InputStream feedStream = localURLConnection.getInputStream();
 						try {
 							localPicasaPullParser.parseXml(
-	                            localURLConnection.getInputStream(),
+	                            feedStream,
 	                            mBroadcaster);
 						} catch (JSONException e) {
 							// TODO Auto-generated catch block
 							e.printStackTrace();
+						} finally {
+						    HttpKeepAlive.drainAndClose(feedStream);
 						}
 
                         // Reports that the service is now writing data to the content provider.
@@ -241,6 +252,13 @@ public class RSSPullService extends IntentService {
                         }
                         break;
 
+                    /*
+                     * Any other response, such as 304 Not Modified, has nothing to parse. Reads
+                     * what there is, so that the connection goes back to the pool.
+                     */
+                    default:
+                        HttpKeepAlive.release(localHttpURLConnection);
+                        break;
                 }
 
                 // Reports that the feed retrieval is complete.
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.Random;
+
+/**
+ * This class decides whether a failed download is tried again, and how long to wait first.
+ * <p>
+ * Each retry waits a random time between a short floor and an exponentially growing ceiling
+ * ("full jitter"), so that downloads that failed together don't all come back at the same
+ * moment. The floor keeps a retry from hitting a host again the instant it failed.
+ * <p>
+ * Retries are also limited by a budget. Each new download adds a fraction of a retry to the
+ * budget, and each retry takes a whole one out. While most downloads succeed, every failure
+ * can be retried; when a host is failing across the board, the budget runs out, and the
+ * number of retries stays a small fraction of the number of downloads instead of multiplying
+ * the load on a host that's already struggling.
+ * <p>
+ * The methods can be called on any thread.
+ */
+class RetryPolicy {
+
+    // The number of times a download is tried in all, including the first
+    private static final int MAXIMUM_ATTEMPTS = 3;
+
+    // The ceiling of the first wait, and the highest ceiling, in milliseconds
+    private static final long BASE_DELAY_MILLIS = 500;
+    private static final long MAXIMUM_DELAY_MILLIS = 8 * 1000;
+
+    // The shortest wait, in milliseconds
+    private static final long MINIMUM_DELAY_MILLIS = 100;
+
+    // The share of a retry that each new download adds to the budget
+    private static final float BUDGET_RATIO = 0.2f;
+
+    // The largest number of retries that the budget can save up
+    private static final float MAXIMUM_BUDGET = 10.0f;
+
+    private final Random mRandom = new Random();
+
+    // The retries that can be made now
+    private float mBudget = MAXIMUM_BUDGET;
+
+    // The number of retries made, and the number refused because the budget was empty
+    private long mRetryCount;
+    private long mRefusedCount;
+
+    /**
+     * Adds to the retry budget for a download that's starting for the first time
+     */
+    synchronized void onRequest() {
+        mBudget = Math.min(MAXIMUM_BUDGET, mBudget + BUDGET_RATIO);
+    }
+
+    /**
+     * Decides whether a failed download can be tried again, and takes the retry out of the
+     * budget if it can
+     *
+     * @param attempt The number of attempts made so far, starting at 1
+     * @return true if the download should be tried again
+     */
+    synchronized boolean tryRetry(int attempt) {
+        if (attempt >= MAXIMUM_ATTEMPTS) {
+            return false;
+        }
+        if (mBudget < 1.0f) {
+            mRefusedCount++;
+            return false;
+        }
+        mBudget -= 1.0f;
+        mRetryCount++;
+        return true;
+    }
+
+    /**
+     * Chooses how long to wait before an attempt
+     *
+     * @param attempt The number of attempts made so far, starting at 1
+     * @return The wait, in milliseconds
+     */
+    synchronized long getBackoffMillis(int attempt) {
+        long ceiling = Math.min(MAXIMUM_DELAY_MILLIS,
+                BASE_DELAY_MILLIS << Math.min(attempt - 1, 16));
+        return MINIMUM_DELAY_MILLIS
+                + (long) (mRandom.nextDouble() * (ceiling - MINIMUM_DELAY_MILLIS));
+    }
+
+    /**
+     * Returns the number of retries made
+     * @return The retry count
+     */
+    synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    /**
+     * Returns the number of retries that the budget refused
+     * @return The refused count
+     */
+    synchronized long getRefusedCount() {
+        return mRefusedCount;
+    }
+}
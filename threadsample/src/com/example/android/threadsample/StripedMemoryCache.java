@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class is a memory cache for entries that many threads look up and add at once. A
+ * MemoryCache, like support-v4's LruCache, puts every get() and put() behind a single lock;
+ * this cache splits its entries into segments by key, each with its own lock and its own
+ * EvictionPolicy, so that threads working on different keys rarely wait for each other.
+ * <p>
+ * The maximum size applies to the cache as a whole, not to each segment. The total size is
+ * kept in an AtomicInteger, and a put() that takes it over the maximum evicts from its own
+ * segment first, and from the other segments if that isn't enough. The cache can only exceed
+ * its maximum by the puts that are under way at the same moment, which is at most an entry
+ * per thread.
+ * <p>
+ * Each segment's policy is sized for its share of the cache, so with more segments each
+ * policy sees fewer entries and evicts less accurately. A few segments are enough to take
+ * the lock out of the contention profile; PhotoManager uses CACHE_SEGMENTS.
+ * <p>
+ * The methods can be called on any thread. sizeOf() is called while a segment is locked;
+ * entryRemoved() is called after the segment is unlocked. Neither may call back into the
+ * cache.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+class StripedMemoryCache<K, V> {
+
+    // The segments. Their number is a power of two, so a key's segment is a masked hash.
+    private final ArrayList<Segment> mSegments;
+    private final int mSegmentMask;
+
+    // The total size of the entries in every segment
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    // The largest total size of the entries
+    private volatile int mMaxSize;
+
+    // Records the lookups, or null if they aren't being recorded
+    private volatile CacheSimulator.Trace mTrace;
+
+    /**
+     * Creates an empty cache
+     *
+     * @param maxSize The largest total size of the entries, in the units of sizeOf()
+     * @param segmentCount The number of segments, rounded up to a power of two
+     * @param policies Creates the policy for each segment
+     */
+    StripedMemoryCache(int maxSize, int segmentCount, PolicyFactory<K> policies) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        int count = 1;
+        while (count < segmentCount) {
+            count <<= 1;
+        }
+        mSegments = new ArrayList<Segment>(count);
+        mSegmentMask = count - 1;
+        mMaxSize = maxSize;
+        for (int i = 0; i < count; i++) {
+            EvictionPolicy<K> policy = policies.newPolicy();
+            policy.setMaxSize(Math.max(1, maxSize / count));
+            mSegments.add(new Segment(policy));
+        }
+    }
+
+    /**
+     * Creates the eviction policy for each segment of a cache
+     *
+     * @param <K> The type of the cache's keys
+     */
+    interface PolicyFactory<K> {
+
+        /**
+         * Creates a policy for one segment
+         * @return A new policy
+         */
+        EvictionPolicy<K> newPolicy();
+    }
+
+    /**
+     * Returns the value for a key
+     *
+     * @param key The key
+     * @return The value, or null if the cache has no entry for the key
+     */
+    final V get(K key) {
+        Segment segment = mSegments.get(indexFor(key));
+        V value;
+        int size;
+        synchronized (segment) {
+            segment.mPolicy.recordAccess(key);
+            value = segment.mEntries.get(key);
+            if (null != value) {
+                segment.mHitCount++;
+                size = sizeOf(key, value);
+            } else {
+                segment.mMissCount++;
+                size = -1;
+            }
+        }
+        CacheSimulator.Trace trace = mTrace;
+        if (null != trace) {
+            trace.recordAccess(key, size);
+        }
+        return value;
+    }
+
+    /**
+     * Adds an entry, replacing any entry that the key already has, and evicts entries if the
+     * cache is over its maximum size
+     *
+     * @param key The key
+     * @param value The value
+     * @return The value that was replaced, or null
+     */
+    final V put(K key, V value) {
+        if ((null == key) || (null == value)) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        int index = indexFor(key);
+        Segment segment = mSegments.get(index);
+        int size = sizeOf(key, value);
+        V previous;
+        synchronized (segment) {
+            previous = segment.mEntries.put(key, value);
+            segment.mPolicy.recordInsert(key, size);
+            mSize.addAndGet((null == previous) ? size : size - sizeOf(key, previous));
+        }
+        CacheSimulator.Trace trace = mTrace;
+        if (null != trace) {
+            trace.recordSize(key, size);
+        }
+        if (null != previous) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(mMaxSize, index);
+        return previous;
+    }
+
+    /**
+     * Changes the largest total size of the cache, evicting entries if it shrinks
+     *
+     * @param maxSize The new size
+     */
+    final void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        int segmentSize = Math.max(1, maxSize / mSegments.size());
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                segment.mPolicy.setMaxSize(segmentSize);
+            }
+        }
+        trimToSize(maxSize, 0);
+    }
+
+    /**
+     * Starts or stops recording lookups
+     *
+     * @param trace The trace to record into, or null to stop
+     */
+    final void setTrace(CacheSimulator.Trace trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * Returns the trace that lookups are being recorded into
+     * @return The trace, or null if lookups aren't being recorded
+     */
+    final CacheSimulator.Trace getTrace() {
+        return mTrace;
+    }
+
+    /**
+     * Returns the total size of the entries
+     * @return The size, in the units of sizeOf()
+     */
+    final int size() {
+        return mSize.get();
+    }
+
+    /**
+     * Returns the largest total size of the entries
+     * @return The size, in the units of sizeOf()
+     */
+    final int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of lookups that found an entry
+     * @return The hit count
+     */
+    final int hitCount() {
+        int hits = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                hits += segment.mHitCount;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of lookups that didn't find an entry
+     * @return The miss count
+     */
+    final int missCount() {
+        int misses = 0;
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                misses += segment.mMissCount;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the size of an entry. The default counts each entry as 1.
+     *
+     * @param key The key
+     * @param value The value
+     * @return The size, which mustn't change while the entry is cached
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called when an entry is evicted or replaced. Does nothing by default.
+     *
+     * @param evicted true if the policy evicted the entry to make room
+     * @param key The key
+     * @param oldValue The value that left the cache
+     * @param newValue The value that replaced it, or null
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /*
+     * Evicts entries until the total size fits, starting with the given segment and going on
+     * to the others in turn. Each segment's policy chooses its own victims.
+     */
+    private void trimToSize(int maxSize, int firstSegment) {
+        for (int i = 0; (i < mSegments.size()) && (mSize.get() > maxSize); i++) {
+            Segment segment = mSegments.get((firstSegment + i) & mSegmentMask);
+            ArrayList<K> evictedKeys = null;
+            ArrayList<V> evictedValues = null;
+            synchronized (segment) {
+                while (mSize.get() > maxSize) {
+                    K key = segment.mPolicy.selectVictim();
+                    if (null == key) {
+                        break;
+                    }
+                    V value = segment.mEntries.remove(key);
+                    if (null == value) {
+                        continue;
+                    }
+                    mSize.addAndGet(-sizeOf(key, value));
+                    if (null == evictedKeys) {
+                        evictedKeys = new ArrayList<K>();
+                        evictedValues = new ArrayList<V>();
+                    }
+                    evictedKeys.add(key);
+                    evictedValues.add(value);
+                }
+            }
+            for (int j = 0; (null != evictedKeys) && (j < evictedKeys.size()); j++) {
+                entryRemoved(true, evictedKeys.get(j), evictedValues.get(j), null);
+            }
+        }
+    }
+
+    // Returns the index of the segment that holds a key
+    private int indexFor(K key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mSegmentMask;
+    }
+
+    /*
+     * A part of the cache, with its own entries, policy, and statistics. A segment is its own
+     * lock.
+     */
+    private final class Segment {
+
+        // The entries. Their order is kept by the policy.
+        final HashMap<K, V> mEntries = new HashMap<K, V>();
+
+        // Chooses the entries to evict from this segment
+        final EvictionPolicy<K> mPolicy;
+
+        // The number of lookups that found an entry, and that didn't
+        int mHitCount;
+        int mMissCount;
+
+        Segment(EvictionPolicy<K> policy) {
+            mPolicy = policy;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class downloads the images of the grid rows that are about to scroll into view, so that
+ * they're in the cache by the time their cells are drawn.
+ * <p>
+ * The prefetcher watches the first visible position to work out the scroll direction and speed.
+ * While the grid scrolls at a reading pace, or when it comes to rest, it prefetches the next
+ * few rows in the direction of travel. During a fast fling, most of the rows it could prefetch
+ * would fly past unseen, so it waits for the grid to slow down. When the direction reverses,
+ * the prefetches for the rows in the old direction are cancelled.
+ * <p>
+ * All the methods must be called on the UI thread.
+ */
+class ThumbnailPrefetcher {
+
+    // The number of rows ahead of the visible rows to prefetch
+    private static final int PREFETCH_ROWS = 3;
+
+    // Above this speed, in rows per second, the grid is flinging and nothing is prefetched
+    private static final float MAXIMUM_PREFETCH_ROWS_PER_SECOND = 12.0f;
+
+    /*
+     * How long a prefetch can wait in the queue before it's dropped. By then the user has
+     * usually scrolled on, or the rows have come into view and their own downloads have taken
+     * over. PhotoManager.getExpiredTaskCount() shows how often this happens.
+     */
+    private static final long PREFETCH_DEADLINE_MILLIS = 3000;
+
+    // The keys of the grid cells' images, in adapter order; null for a row without one
+    private final List<ImageKey> mImageKeys;
+
+    // The expected size of a cell, used as the target size of a prefetched image
+    private final int mCellSize;
+
+    // The first visible position and the time of the last scroll event that moved it
+    private int mLastFirstVisible = -1;
+    private long mLastMoveMillis;
+
+    // The scroll direction: 1 towards the end of the list, -1 towards the start
+    private int mDirection = 1;
+
+    // The speed of the last move, in rows per second
+    private float mRowsPerSecond;
+
+    // The positions that have already been prefetched in the current direction
+    private int mPrefetchedFrom = -1;
+    private int mPrefetchedTo = -1;
+
+    /*
+     * The prefetches that are running, with the sequence numbers that identify them, so that
+     * they can be cancelled if the direction reverses
+     */
+    private final ArrayList<PhotoTask> mPrefetchTasks = new ArrayList<PhotoTask>();
+    private final ArrayList<Long> mPrefetchSequenceNumbers = new ArrayList<Long>();
+
+    /**
+     * Creates a prefetcher
+     *
+     * @param imageKeys The keys of the grid cells' images, in adapter order. The list is read,
+     * not copied
+     * @param cellSize The expected width and height of a cell, in pixels
+     */
+    ThumbnailPrefetcher(List<ImageKey> imageKeys, int cellSize) {
+        mImageKeys = imageKeys;
+        mCellSize = cellSize;
+    }
+
+    /**
+     * Tracks the scroll, and prefetches ahead of it if it's slow enough. Called from
+     * OnScrollListener.onScroll().
+     *
+     * @param firstVisible The first visible position
+     * @param visibleCount The number of visible positions
+     * @param columns The number of columns in the grid
+     */
+    void onScroll(int firstVisible, int visibleCount, int columns) {
+        if (firstVisible == mLastFirstVisible) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        columns = Math.max(1, columns);
+        if (mLastFirstVisible >= 0) {
+            int direction = (firstVisible > mLastFirstVisible) ? 1 : -1;
+
+            // Measures the speed of the move, in rows per second
+            long elapsedMillis = Math.max(1, now - mLastMoveMillis);
+            float rows = (float) Math.abs(firstVisible - mLastFirstVisible) / columns;
+            mRowsPerSecond = rows * 1000.0f / elapsedMillis;
+
+            // The old prefetches are for rows the user has turned away from
+            if (direction != mDirection) {
+                cancelAll();
+                mDirection = direction;
+            }
+        }
+        mLastFirstVisible = firstVisible;
+        mLastMoveMillis = now;
+        if (mRowsPerSecond <= MAXIMUM_PREFETCH_ROWS_PER_SECOND) {
+            prefetchAhead(firstVisible, visibleCount, columns);
+        }
+    }
+
+    /**
+     * Prefetches ahead of the visible rows once the grid stops. Called from
+     * OnScrollListener.onScrollStateChanged() with SCROLL_STATE_IDLE.
+     *
+     * @param firstVisible The first visible position
+     * @param visibleCount The number of visible positions
+     * @param columns The number of columns in the grid
+     */
+    void onScrollIdle(int firstVisible, int visibleCount, int columns) {
+        mRowsPerSecond = 0;
+        prefetchAhead(firstVisible, visibleCount, Math.max(1, columns));
+    }
+
+    /*
+     * Prefetches the PREFETCH_ROWS rows past the visible ones in the scroll direction
+     */
+    private void prefetchAhead(int firstVisible, int visibleCount, int columns) {
+        int from;
+        int to;
+        if (mDirection > 0) {
+            from = firstVisible + visibleCount;
+            to = from + (PREFETCH_ROWS * columns) - 1;
+        } else {
+            to = firstVisible - 1;
+            from = to - (PREFETCH_ROWS * columns) + 1;
+        }
+        from = Math.max(0, from);
+        to = Math.min(mImageKeys.size() - 1, to);
+        long deadlineMillis = SystemClock.uptimeMillis() + PREFETCH_DEADLINE_MILLIS;
+        for (int position = from; position <= to; position++) {
+
+            // Skips the positions that were already prefetched in this direction
+            if ((position >= mPrefetchedFrom) && (position <= mPrefetchedTo)) {
+                continue;
+            }
+
+            // A row whose URL didn't parse can't show the image either, so there's nothing to do
+            ImageKey imageKey = mImageKeys.get(position);
+            if (null == imageKey) {
+                continue;
+            }
+            PhotoTask task = PhotoManager.prefetch(imageKey, mCellSize, mCellSize, deadlineMillis);
+            if (null != task) {
+                mPrefetchTasks.add(task);
+                mPrefetchSequenceNumbers.add(task.getSequenceNumber());
+            }
+        }
+        if (from <= to) {
+            mPrefetchedFrom = from;
+            mPrefetchedTo = to;
+        }
+        removeFinishedTasks();
+    }
+
+    /*
+     * Forgets the prefetches that have finished, or that a View has taken over
+     */
+    private void removeFinishedTasks() {
+        for (int i = mPrefetchTasks.size() - 1; i >= 0; i--) {
+            PhotoTask task = mPrefetchTasks.get(i);
+            if ((task.getSequenceNumber() != mPrefetchSequenceNumbers.get(i))
+                    || !task.getPhotoViews().isEmpty()) {
+                mPrefetchTasks.remove(i);
+                mPrefetchSequenceNumbers.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Cancels the prefetches that are still running. Images that a View has asked for in the
+     * meantime keep downloading.
+     */
+    void cancelAll() {
+        for (int i = 0; i < mPrefetchTasks.size(); i++) {
+            PhotoManager.cancelPrefetch(mPrefetchTasks.get(i), mPrefetchSequenceNumbers.get(i));
+        }
+        mPrefetchTasks.clear();
+        mPrefetchSequenceNumbers.clear();
+        mPrefetchedFrom = -1;
+        mPrefetchedTo = -1;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class evicts entries using W-TinyLFU, which keeps images that are looked at often
+ * even when a fast fling streams hundreds of images past them.
+ * <p>
+ * New entries go into a small LRU window, so an image that's seen twice in quick succession
+ * is still cached. When the window overflows, its oldest entry becomes a candidate for the
+ * main region. The main region is a segmented LRU: entries start on probation, and move to
+ * the protected segment when they're looked up again. When the cache is full, the candidate
+ * competes with the oldest entry on probation, and whichever has been looked up less often
+ * recently, according to a FrequencySketch, is evicted. Ties go to the entry that's already
+ * cached, so the one-time images of a fling pass through without pushing anything out.
+ * <p>
+ * Caffeine's W-TinyLFU starts with a window of 1% of the cache, and adapts it. A thumbnail
+ * takes up a few percent of a byte cache on its own, so this window is a fixed WINDOW_SHARE.
+ *
+ * @param <K> The type of the cache's keys
+ */
+class WTinyLfuPolicy<K> implements EvictionPolicy<K> {
+
+    // The share of the cache that the window gets
+    private static final float WINDOW_SHARE = 0.2f;
+
+    // The share of the main region that the protected segment gets
+    private static final float PROTECTED_SHARE = 0.8f;
+
+    // The number of keys that the sketch starts out sized for
+    private static final int INITIAL_SKETCH_KEYS = 64;
+
+    // The three regions, each mapping its keys to their sizes, from the least recently used
+    private final LinkedHashMap<K, Integer> mWindow =
+            new LinkedHashMap<K, Integer>(16, 0.75f, true);
+    private final LinkedHashMap<K, Integer> mProbation =
+            new LinkedHashMap<K, Integer>(16, 0.75f, true);
+    private final LinkedHashMap<K, Integer> mProtected =
+            new LinkedHashMap<K, Integer>(16, 0.75f, true);
+
+    /*
+     * The keys that the window has passed to probation and that haven't competed for a place
+     * yet, oldest first. The newest competes first, so that in a full cache each new entry
+     * competes as soon as it leaves the window. Keys that have since left probation are
+     * skipped.
+     */
+    private final ArrayDeque<K> mCandidates = new ArrayDeque<K>();
+
+    // The total sizes of the window and protected segment, and their limits
+    private int mWindowSize;
+    private int mProtectedSize;
+    private int mMaxWindowSize;
+    private int mMaxProtectedSize;
+
+    // Estimates how often each key has been looked up recently
+    private final FrequencySketch mSketch = new FrequencySketch(INITIAL_SKETCH_KEYS);
+
+    @Override
+    public void setMaxSize(int maxSize) {
+        mMaxWindowSize = (int) (maxSize * WINDOW_SHARE);
+        mMaxProtectedSize = (int) ((maxSize - mMaxWindowSize) * PROTECTED_SHARE);
+        trimWindow();
+        trimProtected();
+    }
+
+    @Override
+    public void recordAccess(K key) {
+        mSketch.increment(key);
+
+        // The access-ordered maps move a key to their most recently used end on get()
+        if (null != mWindow.get(key) || null != mProtected.get(key)) {
+            return;
+        }
+
+        // A second look promotes an entry on probation to the protected segment
+        Integer size = mProbation.remove(key);
+        if (null != size) {
+            mProtected.put(key, size);
+            mProtectedSize += size;
+            trimProtected();
+        }
+    }
+
+    @Override
+    public void recordInsert(K key, int size) {
+        recordRemoval(key);
+        mWindow.put(key, size);
+        mWindowSize += size;
+        trimWindow();
+        mSketch.ensureCapacity(mWindow.size() + mProbation.size() + mProtected.size());
+    }
+
+    @Override
+    public void recordRemoval(K key) {
+        Integer size = mWindow.remove(key);
+        if (null != size) {
+            mWindowSize -= size;
+            return;
+        }
+        size = mProtected.remove(key);
+        if (null != size) {
+            mProtectedSize -= size;
+            return;
+        }
+        mProbation.remove(key);
+    }
+
+    @Override
+    public K selectVictim() {
+
+        /*
+         * The newest candidate from the window competes with the oldest entry on probation,
+         * which is the entry that the main region would give up for it
+         */
+        if (!mProbation.isEmpty()) {
+            K victim = mProbation.keySet().iterator().next();
+            K candidate = nextCandidate();
+            if ((null != candidate) && !candidate.equals(victim)
+                    && (mSketch.frequency(candidate) <= mSketch.frequency(victim))) {
+                victim = candidate;
+            }
+            mProbation.remove(victim);
+            return victim;
+        }
+
+        // With nothing on probation, shrinks the protected segment, and then the window
+        if (!mProtected.isEmpty()) {
+            Map.Entry<K, Integer> eldest = removeEldest(mProtected);
+            mProtectedSize -= eldest.getValue();
+            return eldest.getKey();
+        }
+        if (!mWindow.isEmpty()) {
+            Map.Entry<K, Integer> eldest = removeEldest(mWindow);
+            mWindowSize -= eldest.getValue();
+            return eldest.getKey();
+        }
+        return null;
+    }
+
+    // Moves the window's oldest entries to probation until the window fits
+    private void trimWindow() {
+        while ((mWindowSize > mMaxWindowSize) && !mWindow.isEmpty()) {
+            Map.Entry<K, Integer> eldest = removeEldest(mWindow);
+            mWindowSize -= eldest.getValue();
+            mProbation.put(eldest.getKey(), eldest.getValue());
+            mCandidates.addLast(eldest.getKey());
+        }
+
+        // Candidates that never had to compete, because the cache wasn't full, are just entries
+        while (mCandidates.size() > mProbation.size()) {
+            mCandidates.pollFirst();
+        }
+    }
+
+    // Returns the newest candidate that's still on probation, or null if there's none
+    private K nextCandidate() {
+        K candidate;
+        while (null != (candidate = mCandidates.pollLast())) {
+            if (mProbation.containsKey(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // Moves the protected segment's oldest entries back to probation until the segment fits
+    private void trimProtected() {
+        while ((mProtectedSize > mMaxProtectedSize) && !mProtected.isEmpty()) {
+            Map.Entry<K, Integer> eldest = removeEldest(mProtected);
+            mProtectedSize -= eldest.getValue();
+            mProbation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    // Removes and returns the least recently used entry of a region
+    private static <K> Map.Entry<K, Integer> removeEldest(LinkedHashMap<K, Integer> region) {
+        Iterator<Map.Entry<K, Integer>> entries = region.entrySet().iterator();
+        Map.Entry<K, Integer> eldest = entries.next();
+        Map.Entry<K, Integer> removed =
+                new AbstractMap.SimpleImmutableEntry<K, Integer>(eldest);
+        entries.remove();
+        return removed;
+    }
+}
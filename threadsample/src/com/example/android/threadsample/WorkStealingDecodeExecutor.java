@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.threadsample;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs image decodes on a fixed set of threads, each with its own deque of work.
+ * <p>
+ * Decodes vary a lot in cost: a small thumbnail takes a fraction of the time of a full-size
+ * photo. With one shared queue, that doesn't matter much, but the queue is a single point of
+ * contention; with plain per-thread queues, a small decode can wait behind a large one while
+ * other threads are idle. Here, each thread takes work from the front of its own deque, and a
+ * thread whose deque is empty steals from the back of another thread's deque, so every core
+ * stays busy as long as there's work anywhere.
+ * <p>
+ * java.util.concurrent.ForkJoinPool isn't available on the Android versions this app supports,
+ * so the workers are plain Threads over LinkedBlockingDeques. A Semaphore counts the queued
+ * decodes: a thread only looks for work after it has taken a permit, so an idle thread sleeps
+ * instead of spinning.
+ * <p>
+ * The number of queued decodes is limited. When the deques are full, execute() throws
+ * RejectedExecutionException, and the caller decides whether to drop queued decodes to make
+ * room.
+ */
+class WorkStealingDecodeExecutor extends AbstractExecutorService {
+
+    // Sets the log tag
+    private static final String LOG_TAG = "WorkStealingDecodeExecutor";
+
+    /*
+     * A decode thread and its deque
+     */
+    private final class Worker extends Thread {
+
+        // The decodes that were submitted to this thread
+        final LinkedBlockingDeque<Runnable> mDeque = new LinkedBlockingDeque<Runnable>();
+
+        // The position of this thread in mWorkers, where stealing starts from
+        private final int mIndex;
+
+        Worker(int index) {
+            super("PhotoDecode-" + index);
+            mIndex = index;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+
+                    // Waits until there's a decode somewhere, or the executor is shut down
+                    try {
+                        mQueued.acquire();
+                    } catch (InterruptedException e) {
+
+                        /*
+                         * Cancelling a task interrupts the thread it ran on, and the interrupt
+                         * can arrive after the decode has finished. Only shutdownNow() should
+                         * stop the thread.
+                         */
+                        if (mShutdown) {
+                            return;
+                        }
+                        continue;
+                    }
+                    Runnable decode = findWork(mIndex);
+                    if (null == decode) {
+                        if (mShutdown) {
+                            return;
+                        }
+                        continue;
+                    }
+                    mQueuedCount.decrementAndGet();
+
+                    /*
+                     * Catches Errors as well, such as an OutOfMemoryError outside the decode's
+                     * own retries. The pool has a fixed set of threads and doesn't replace one
+                     * that dies, so a thread that let it through would be lost for good.
+                     */
+                    try {
+                        decode.run();
+                    } catch (Throwable e) {
+                        Log.e(LOG_TAG, "Decode threw an exception", e);
+                    }
+                }
+            } finally {
+                mTerminated.countDown();
+            }
+        }
+    }
+
+    // The decode threads
+    private final Worker[] mWorkers;
+
+    // Counts the decodes waiting in all the deques
+    private final Semaphore mQueued = new Semaphore(0);
+
+    /*
+     * The number of decodes that have been accepted and not yet taken. Unlike the Semaphore,
+     * this goes up before a decode is added, so that execute() can enforce the capacity.
+     */
+    private final AtomicInteger mQueuedCount = new AtomicInteger();
+
+    // The number of decodes that can wait in the deques
+    private final int mCapacity;
+
+    // Counts down as each worker exits
+    private final CountDownLatch mTerminated;
+
+    // Chooses the deques that a new decode is compared between
+    private final Random mRandom = new Random();
+
+    // The number of decodes that were run by a thread other than the one they were given to
+    private final AtomicLong mStealCount = new AtomicLong();
+
+    private volatile boolean mShutdown;
+
+    /**
+     * Creates the executor and starts its threads
+     *
+     * @param threadCount The number of decode threads, usually the number of cores
+     * @param capacity The number of decodes that can wait in the deques
+     */
+    WorkStealingDecodeExecutor(int threadCount, int capacity) {
+        mCapacity = capacity;
+        mWorkers = new Worker[threadCount];
+        mTerminated = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+        for (Worker worker : mWorkers) {
+            worker.start();
+        }
+    }
+
+    /*
+     * Takes a decode, first from the front of the worker's own deque and then from the back of
+     * the other deques. The caller holds a permit, so the scan only comes up empty after
+     * shutdownNow() has emptied the deques.
+     */
+    private Runnable findWork(int ownIndex) {
+        Runnable decode = mWorkers[ownIndex].mDeque.pollFirst();
+        if (null != decode) {
+            return decode;
+        }
+        while (!mShutdown || (getQueuedTaskCount() > 0)) {
+            for (int i = 1; i < mWorkers.length; i++) {
+                decode = mWorkers[(ownIndex + i) % mWorkers.length].mDeque.pollLast();
+                if (null != decode) {
+                    mStealCount.incrementAndGet();
+                    return decode;
+                }
+            }
+            decode = mWorkers[ownIndex].mDeque.pollFirst();
+            if (null != decode) {
+                return decode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queues a decode. The decode goes to the shorter of two randomly chosen deques, which
+     * keeps the deques balanced without looking at all of them; stealing evens out the rest.
+     *
+     * @param decode The decode to run
+     */
+    @Override
+    public void execute(Runnable decode) {
+        if (null == decode) {
+            throw new NullPointerException();
+        }
+        if (mShutdown) {
+            throw new RejectedExecutionException("Decode executor is shut down");
+        }
+
+        // Reserves a place for the decode, or rejects it if the deques are full
+        int queued;
+        do {
+            queued = mQueuedCount.get();
+            if (queued >= mCapacity) {
+                throw new RejectedExecutionException("Decode queue is full");
+            }
+        } while (!mQueuedCount.compareAndSet(queued, queued + 1));
+
+        Worker first;
+        Worker second;
+        synchronized (mRandom) {
+            first = mWorkers[mRandom.nextInt(mWorkers.length)];
+            second = mWorkers[mRandom.nextInt(mWorkers.length)];
+        }
+        Worker target = (second.mDeque.size() < first.mDeque.size()) ? second : first;
+        target.mDeque.offerLast(decode);
+
+        // Wakes a worker only after the decode can be found
+        mQueued.release();
+    }
+
+    /**
+     * Removes a decode that hasn't started yet
+     *
+     * @param decode The decode to remove
+     * @return true if the decode was waiting and has been removed
+     */
+    boolean remove(Runnable decode) {
+
+        // Takes the permit first, so that no worker goes looking for the decode
+        if (!mQueued.tryAcquire()) {
+            return false;
+        }
+        for (Worker worker : mWorkers) {
+            if (worker.mDeque.remove(decode)) {
+                mQueuedCount.decrementAndGet();
+                return true;
+            }
+        }
+        mQueued.release();
+        return false;
+    }
+
+    /**
+     * Returns the decodes that are waiting in the deques. The list is a snapshot; decodes in it
+     * may start at any time.
+     *
+     * @return A new list of queued decodes
+     */
+    List<Runnable> getQueuedTasks() {
+        ArrayList<Runnable> queued = new ArrayList<Runnable>();
+        for (Worker worker : mWorkers) {
+            queued.addAll(worker.mDeque);
+        }
+        return queued;
+    }
+
+    /**
+     * Returns the number of decodes waiting in all the deques
+     * @return The number of queued decodes
+     */
+    int getQueuedTaskCount() {
+        int count = 0;
+        for (Worker worker : mWorkers) {
+            count += worker.mDeque.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of decodes that were stolen by an idle thread
+     * @return The steal count since the executor was created
+     */
+    long getStealCount() {
+        return mStealCount.get();
+    }
+
+    /**
+     * Returns the number of decode threads
+     * @return The thread count
+     */
+    int getThreadCount() {
+        return mWorkers.length;
+    }
+
+    /*
+     * Stops accepting decodes. Queued decodes still run, and then the threads exit.
+     */
+    @Override
+    public void shutdown() {
+        mShutdown = true;
+
+        // Gives every worker a permit, so that idle workers wake up and see the flag
+        mQueued.release(mWorkers.length);
+    }
+
+    /*
+     * Stops accepting decodes, removes the queued decodes, and interrupts the threads.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        mShutdown = true;
+        ArrayList<Runnable> queued = new ArrayList<Runnable>();
+        for (Worker worker : mWorkers) {
+            worker.mDeque.drainTo(queued);
+        }
+        mQueuedCount.addAndGet(-queued.size());
+        for (Worker worker : mWorkers) {
+            worker.interrupt();
+        }
+        mQueued.release(mWorkers.length);
+        return queued;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return mShutdown && (0 == mTerminated.getCount());
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mTerminated.await(timeout, unit);
+    }
+}